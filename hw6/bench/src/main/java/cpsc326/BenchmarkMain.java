@@ -0,0 +1,47 @@
+/**
+ * CPSC 326, Spring 2025
+ * Runs the benchmarks.
+ */
+
+package cpsc326;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * The benchmarks jar's main class. Takes the usual JMH command line
+ * options (e.g., a benchmark regex, -p workload=MyProg1, or -h), and
+ * by default also:
+ *
+ *   - adds the gc profiler, which reports the allocation rate (in
+ *     MB/sec and bytes per operation) next to each result
+ *   - saves the results as JSON in jmh-result.json, to compare a
+ *     change against a baseline run (e.g., with -rff baseline.json
+ *     before the change)
+ */
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp()) {
+      cmd.showHelp();
+      return;
+    }
+    if (cmd.shouldList()) {
+      new Runner(cmd).list();
+      return;
+    }
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+    if (cmd.getProfilers().isEmpty())
+      options.addProfiler(GCProfiler.class);
+    if (!cmd.getResult().hasValue())
+      options.resultFormat(ResultFormatType.JSON).result("jmh-result.json");
+    new Runner(options.build()).run();
+  }
+
+}
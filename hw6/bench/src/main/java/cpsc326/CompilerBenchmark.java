@@ -0,0 +1,94 @@
+/**
+ * CPSC 326, Spring 2025
+ * Benchmarks of the compiler stages.
+ */
+
+package cpsc326;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures each compiler stage on its own over the source workloads:
+ * lexing (Lexer.nextToken to the end of the stream), parsing
+ * (ASTParser.parse, including lexing), checking (SemanticChecker over
+ * a parsed program), and code generation (CodeGenerator over a
+ * checked program), plus the whole pipeline through the peephole
+ * optimizer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+
+  @Param({"MyProg1", "MyProg2", "synthetic-10", "synthetic-100", "synthetic-1000"})
+  public String workload;
+
+  /* the workload's source characters */
+  private char[] source;
+
+  /* the parsed and checked workload (the input of checking and code
+     generation, which don't change the AST) */
+  private Program program;
+
+  @Setup
+  public void setup() {
+    source = Workloads.source(workload).toCharArray();
+    program = new ASTParser(new Lexer(CharBuffer.wrap(source))).parse();
+    program.accept(new SemanticChecker());
+  }
+
+  @Benchmark
+  public int lex() {
+    Lexer lexer = new Lexer(CharBuffer.wrap(source));
+    int count = 0;
+    while (lexer.nextToken().tokenType != TokenType.EOS)
+      ++count;
+    return count;
+  }
+
+  @Benchmark
+  public Program parse() {
+    return new ASTParser(new Lexer(CharBuffer.wrap(source))).parse();
+  }
+
+  @Benchmark
+  public SemanticChecker check() {
+    SemanticChecker checker = new SemanticChecker();
+    program.accept(checker);
+    return checker;
+  }
+
+  @Benchmark
+  public VM generate() {
+    VM vm = new VM();
+    program.accept(new CodeGenerator(vm));
+    return vm;
+  }
+
+  @Benchmark
+  public VM compile() {
+    Program p = new ASTParser(new Lexer(CharBuffer.wrap(source))).parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    new PeepholeOptimizer().optimize(vm);
+    return vm;
+  }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * CPSC 326, Spring 2025
+ * Benchmarks of the expression parsing strategies.
+ */
+
+package cpsc326;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures parsing (including lexing), checking, and code generation
+ * of programs with very long expressions under each expression
+ * parsing strategy (ASTParser.ExprMode). The checked and generated
+ * programs are the ones the strategy parsed, since the strategies
+ * build differently shaped expression trees.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+  @Param({"RECURSIVE", "PRECEDENCE"})
+  public String exprMode;
+
+  /* the number of terms per expression */
+  @Param({"500", "2000"})
+  public int terms;
+
+  /* the workload's source characters */
+  private char[] source;
+
+  /* the parsed and checked workload */
+  private Program program;
+
+  @Setup
+  public void setup() {
+    source = Workloads.expressions(terms).toCharArray();
+    program = parse();
+    program.accept(new SemanticChecker());
+  }
+
+  @Benchmark
+  public Program parse() {
+    ASTParser parser = new ASTParser(new Lexer(CharBuffer.wrap(source)));
+    parser.exprMode(ASTParser.ExprMode.valueOf(exprMode));
+    return parser.parse();
+  }
+
+  @Benchmark
+  public SemanticChecker check() {
+    SemanticChecker checker = new SemanticChecker();
+    program.accept(checker);
+    return checker;
+  }
+
+  @Benchmark
+  public VM generate() {
+    VM vm = new VM();
+    program.accept(new CodeGenerator(vm));
+    return vm;
+  }
+
+}
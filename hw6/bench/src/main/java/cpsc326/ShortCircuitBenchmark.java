@@ -0,0 +1,75 @@
+/**
+ * CPSC 326, Spring 2025
+ * Benchmarks of eager and short-circuit and/or.
+ */
+
+package cpsc326;
+
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures VM.run() over the guard workloads, with the code generated
+ * for eager and/or (both operands evaluated) and for short-circuit
+ * and/or (CodeGenerator.shortCircuitMode). As in VMBenchmark, the
+ * code is generated (and peephole optimized) once, each run gets a
+ * new VM, and the programs' output is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShortCircuitBenchmark {
+
+  @Param({"search", "call", "nested"})
+  public String workload;
+
+  @Param({"false", "true"})
+  public boolean shortCircuit;
+
+  /* the problem size of the workload */
+  @Param({"2000"})
+  public int n;
+
+  /* the workload's code */
+  private List<VMFrameTemplate> templates;
+
+  @Setup
+  public void setup() {
+    Workloads.discardOutput();
+    String source = Workloads.guards(workload, n);
+    Program p = new ASTParser(new Lexer(CharBuffer.wrap(source))).parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    CodeGenerator generator = new CodeGenerator(vm);
+    generator.shortCircuitMode(shortCircuit);
+    p.accept(generator);
+    new PeepholeOptimizer().optimize(vm);
+    templates = List.copyOf(vm.frameTemplates());
+  }
+
+  @Benchmark
+  public VM run() {
+    VM vm = new VM();
+    for (VMFrameTemplate template : templates)
+      vm.add(template);
+    vm.run();
+    return vm;
+  }
+
+}
@@ -0,0 +1,66 @@
+/**
+ * CPSC 326, Spring 2025
+ * Benchmarks of running generated code.
+ */
+
+package cpsc326;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures VM.run() over the source and instruction workloads. The
+ * code is generated once, and each run gets a new VM (with the same
+ * frame templates and a fresh copy of the workload's input). The
+ * programs' output is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VMBenchmark {
+
+  @Param({"MyProg1", "MyProg2", "HW5Prog1", "HW5Prog2", "synthetic-100"})
+  public String workload;
+
+  @Param({"SWITCH", "JIT"})
+  public String engine;
+
+  /* the workload's code and input */
+  private List<VMFrameTemplate> templates;
+  private String input;
+
+  @Setup
+  public void setup() {
+    Workloads.discardOutput();
+    templates = Workloads.templates(workload);
+    input = Workloads.input(workload);
+  }
+
+  @Benchmark
+  public VM run() {
+    VM vm = new VM();
+    vm.engineMode(VM.Engine.valueOf(engine));
+    for (VMFrameTemplate template : templates)
+      vm.add(template);
+    vm.setInput(new StringReader(input));
+    vm.run();
+    return vm;
+  }
+
+}
@@ -0,0 +1,451 @@
+/**
+ * CPSC 326, Spring 2025
+ * The fixed workload corpus for the benchmarks.
+ */
+
+package cpsc326;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+
+/**
+ * The programs the benchmarks measure. The mypl source workloads are:
+ *
+ *   MyProg1, MyProg2   the example programs (packaged as resources)
+ *   synthetic-N        a generated program with N functions (each with
+ *                      struct, array, loop, branch, and string code)
+ *
+ * The instruction workloads (for the vm only) are the HW-5 programs
+ * HW5Prog1 (summing read values until a prime) and HW5Prog2 (struct
+ * and array arithmetic), written directly as frame templates.
+ *
+ * The expression workloads (for the parser benchmark) are generated
+ * programs with a few very long int expressions, and the guard
+ * workloads (for the short-circuit benchmark) are loops guarded by
+ * and/or conditions.
+ */
+public class Workloads {
+
+  /* the source workload names (for a benchmark @Param) */
+  public static final String MYPROG1 = "MyProg1";
+  public static final String MYPROG2 = "MyProg2";
+  public static final String SYNTHETIC = "synthetic-";
+
+  /* the instruction workload names */
+  public static final String HW5PROG1 = "HW5Prog1";
+  public static final String HW5PROG2 = "HW5Prog2";
+
+  /* the number of (composite) values HW5Prog1 sums before its prime */
+  private static final int HW5PROG1_VALUES = 200;
+
+  /**
+   * Return the source code of a source workload.
+   *
+   * @param name the workload name (e.g., MyProg1 or synthetic-100)
+   */
+  public static String source(String name) {
+    if (name.startsWith(SYNTHETIC))
+      return synthetic(Integer.parseInt(name.substring(SYNTHETIC.length())));
+    String resource = "/workloads/" + name + ".mypl";
+    try (InputStream in = Workloads.class.getResourceAsStream(resource)) {
+      if (in == null)
+        throw new IllegalArgumentException("unknown workload: " + name);
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Return the frame templates of a workload, i.e., the generated
+   * (and peephole optimized) code of a source workload or the hand
+   * written code of an instruction workload.
+   *
+   * @param name the workload name
+   */
+  public static List<VMFrameTemplate> templates(String name) {
+    if (name.equals(HW5PROG1))
+      return hw5Prog1();
+    if (name.equals(HW5PROG2))
+      return hw5Prog2();
+    Program p = new ASTParser(new Lexer(CharBuffer.wrap(source(name)))).parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    new PeepholeOptimizer().optimize(vm);
+    return List.copyOf(vm.frameTemplates());
+  }
+
+  /**
+   * Return the standard input lines a workload reads (empty if it
+   * doesn't read).
+   */
+  public static String input(String name) {
+    if (!name.equals(HW5PROG1))
+      return "";
+    // odd composites (97 * 103), so each primality check loops a while
+    return "9991\n".repeat(HW5PROG1_VALUES) + "7\n";
+  }
+
+  /**
+   * Send System.out to a stream that drops everything (so the
+   * programs' output doesn't flood the benchmark log).
+   */
+  public static void discardOutput() {
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  // ----------------------------------------------------------------------
+  // Synthetic source
+  // ----------------------------------------------------------------------
+
+  /**
+   * Generate a program of the given number of functions. Each function
+   * is different (by a constant) so no two bodies are the same text.
+   */
+  static String synthetic(int functions) {
+    StringBuilder src = new StringBuilder();
+    src.append("struct Point {\n  x: int,\n  y: int\n}\n\n");
+    for (int f = 0; f < functions; ++f) {
+      src.append("int f").append(f).append("(n: int) {\n");
+      src.append("  var total = 0\n");
+      src.append("  var ps = new Point[n]\n");
+      src.append("  for i from 0 to n - 1 {\n");
+      src.append("    ps[i] = new Point(i, n - i)\n");
+      src.append("  }\n");
+      src.append("  for i from 0 to n - 1 {\n");
+      src.append("    var p = ps[i]\n");
+      src.append("    if (p.x < p.y) and (p.x > ").append(f % 10).append(") {\n");
+      src.append("      total = total + (p.x * ").append(f % 7 + 1).append(")\n");
+      src.append("    } else {\n");
+      src.append("      total = total - (p.y / 2)\n");
+      src.append("    }\n");
+      src.append("  }\n");
+      src.append("  var s = \"f").append(f).append("\"\n");
+      src.append("  var k = 0\n");
+      src.append("  while k < 5 {\n");
+      src.append("    s = s + str_val(k)\n");
+      src.append("    k = k + 1\n");
+      src.append("  }\n");
+      src.append("  return total + size(s)\n");
+      src.append("}\n\n");
+    }
+    src.append("void main() {\n  var sum = 0\n");
+    for (int f = 0; f < functions; ++f)
+      src.append("  sum = sum + f").append(f).append("(50)\n");
+    src.append("  println(sum)\n}\n");
+    return src.toString();
+  }
+
+  // ----------------------------------------------------------------------
+  // Expression source
+  // ----------------------------------------------------------------------
+
+  /**
+   * Generate a program whose main function has a few long int
+   * expressions of the given number of terms. The expressions only
+   * use int operands and arithmetic operators so they type check
+   * under both expression parsing strategies (their values differ
+   * since the strategies group the operators differently).
+   */
+  static String expressions(int terms) {
+    StringBuilder src = new StringBuilder("void main() {\n  var x = 1\n");
+    String[] ops = {"+", "*", "-", "+"};
+    for (int e = 0; e < 4; ++e) {
+      src.append("  x = ");
+      for (int i = 0; i < terms; ++i) {
+        if (i > 0)
+          src.append(" ").append(ops[i % ops.length]).append(" ");
+        src.append(i % 7 == 0 ? "x" : String.valueOf(i % 10));
+      }
+      src.append("\n");
+    }
+    src.append("  println(x)\n}\n");
+    return src.toString();
+  }
+
+  // ----------------------------------------------------------------------
+  // Guard source
+  // ----------------------------------------------------------------------
+
+  /* the guard workload names */
+  public static final String SEARCH = "search";
+  public static final String CALL = "call";
+  public static final String NESTED = "nested";
+
+  /* linear search with a bounds guard (the right operand is only
+     needed while the index is in bounds) */
+  private static final String SEARCH_SOURCE = """
+    void main() {
+      var n = %d
+      var xs = new int[n]
+      for i from 0 to n - 1 {
+        xs[i] = i
+      }
+      var found = 0
+      for k from 0 to 99 {
+        var i = 0
+        while (i < n) and (xs[i] != (n - 1)) {
+          i = i + 1
+        }
+        found = found + i
+      }
+      println(found)
+    }
+    """;
+
+  /* a guard with a call as its (mostly unneeded) right operand */
+  private static final String CALL_SOURCE = """
+    bool expensive(x: int) {
+      var s = 0
+      for i from 0 to 20 {
+        s = s + (x * i)
+      }
+      return s > 0
+    }
+    void main() {
+      var n = %d
+      var count = 0
+      for i from 0 to (n * 20) {
+        if (((i / 10) * 10) != i) or expensive(i) {
+          count = count + 1
+        }
+      }
+      println(count)
+    }
+    """;
+
+  /* nested or/and guards over struct fields */
+  private static final String NESTED_SOURCE = """
+    struct P {
+      x: int,
+      y: int
+    }
+    void main() {
+      var n = %d
+      var ps = new P[n]
+      for i from 0 to n - 1 {
+        ps[i] = new P(i, n - i)
+      }
+      var count = 0
+      for k from 0 to 49 {
+        for i from 0 to n - 1 {
+          var p = ps[i]
+          if (p.x < 10) or ((p.y > 10) and ((p.x + p.y) == n)) {
+            count = count + 1
+          }
+        }
+      }
+      println(count)
+    }
+    """;
+
+  /**
+   * Return the source code of a guard workload. The guards' right
+   * operands have no side effects, so each program prints the same
+   * result with eager and with short-circuit and/or.
+   *
+   * @param name the workload name (search, call, or nested)
+   * @param n the problem size
+   */
+  static String guards(String name, int n) {
+    String source = switch (name) {
+      case SEARCH -> SEARCH_SOURCE;
+      case CALL -> CALL_SOURCE;
+      case NESTED -> NESTED_SOURCE;
+      default -> throw new IllegalArgumentException("unknown workload: " + name);
+    };
+    return String.format(source, n);
+  }
+
+  // ----------------------------------------------------------------------
+  // HW-5 instruction programs
+  // ----------------------------------------------------------------------
+
+  /**
+   * HW5Prog1: read ints and print their sum once a prime is read.
+   *
+   *   bool is_prime(n: int) {
+   *     var m: int = n / 2
+   *     var v: int = 2
+   *     while v <= m {
+   *       var r: int = n / v
+   *       var p: int = r * v
+   *       if p == n {
+   *         return false
+   *       }
+   *       v = v + 1
+   *     }
+   *     return true
+   *   }
+   *
+   *   void main() {
+   *     println("Please enter integer values to sum (prime to quit)")
+   *     var sum: int = 0
+   *     while true {
+   *       print("Enter an int: ")
+   *       var val: int = int_val(readln())
+   *       if is_prime(val) {
+   *         println("The sum is: " + str_val(sum))
+   *         println("Goodbye!")
+   *         return null
+   *       }
+   *       sum = sum + val
+   *     }
+   *   }
+   */
+  static List<VMFrameTemplate> hw5Prog1() {
+    VMFrameTemplate p = new VMFrameTemplate("is_prime");
+    p.add(VMInstr.STORE(0));         // n
+    p.add(VMInstr.LOAD(0));
+    p.add(VMInstr.PUSH(2));
+    p.add(VMInstr.DIV());
+    p.add(VMInstr.STORE(1));         // m = n / 2
+    p.add(VMInstr.PUSH(2));
+    p.add(VMInstr.STORE(2));         // v = 2
+    int condition = p.instructions.size();
+    p.add(VMInstr.LOAD(2));
+    p.add(VMInstr.LOAD(1));
+    p.add(VMInstr.CMPLE());          // v <= m
+    int exitJump = p.instructions.size();
+    p.add(VMInstr.JMPF(0));
+    p.add(VMInstr.LOAD(0));
+    p.add(VMInstr.LOAD(2));
+    p.add(VMInstr.DIV());
+    p.add(VMInstr.STORE(3));         // r = n / v
+    p.add(VMInstr.LOAD(3));
+    p.add(VMInstr.LOAD(2));
+    p.add(VMInstr.MUL());
+    p.add(VMInstr.STORE(4));         // p = r * v
+    p.add(VMInstr.LOAD(4));
+    p.add(VMInstr.LOAD(0));
+    p.add(VMInstr.CMPEQ());          // p == n
+    int notEqualJump = p.instructions.size();
+    p.add(VMInstr.JMPF(0));
+    p.add(VMInstr.PUSH(false));
+    p.add(VMInstr.RET());
+    p.instructions.get(notEqualJump).operand = p.instructions.size();
+    p.add(VMInstr.LOAD(2));
+    p.add(VMInstr.PUSH(1));
+    p.add(VMInstr.ADD());
+    p.add(VMInstr.STORE(2));         // v = v + 1
+    p.add(VMInstr.JMP(condition));
+    p.instructions.get(exitJump).operand = p.instructions.size();
+    p.add(VMInstr.PUSH(true));
+    p.add(VMInstr.RET());
+
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("Please enter integer values to sum (prime to quit)\n"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(0));
+    m.add(VMInstr.STORE(0));         // sum = 0
+    int loop = m.instructions.size();
+    m.add(VMInstr.PUSH("Enter an int: "));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.READ());
+    m.add(VMInstr.TOINT());
+    m.add(VMInstr.STORE(1));         // val = int_val(readln())
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.CALL("is_prime"));
+    int notPrimeJump = m.instructions.size();
+    m.add(VMInstr.JMPF(0));
+    m.add(VMInstr.PUSH("The sum is: "));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.TOSTR());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("\nGoodbye!\n"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.RET());
+    m.instructions.get(notPrimeJump).operand = m.instructions.size();
+    m.add(VMInstr.LOAD(0));
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.ADD());
+    m.add(VMInstr.STORE(0));         // sum = sum + val
+    m.add(VMInstr.JMP(loop));
+    return List.of(p, m);
+  }
+
+  /**
+   * HW5Prog2: the average win percentage of two teams.
+   *
+   *   struct Team {
+   *     name: string,
+   *     wins: int,
+   *     games: int
+   *   }
+   *
+   *   void main() {
+   *     var teams: [Team] = new Team[2]
+   *     teams[0] = new Team("a", 10, 20)
+   *     teams[1] = new Team("b", 18, 20)
+   *     var sum: double = 0.0
+   *     sum = sum + (dbl_val(teams[0].wins) / dbl_val(teams[0].games))
+   *     sum = sum + (dbl_val(teams[1].wins) / dbl_val(teams[1].games))
+   *     print("The average win percentage is: ")
+   *     print(sum / 2.0)
+   *     println("")
+   *   }
+   */
+  static List<VMFrameTemplate> hw5Prog2() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH(2));
+    m.add(VMInstr.ALLOCA());
+    m.add(VMInstr.STORE(0));         // teams = new Team[2]
+    String[] names = {"a", "b"};
+    int[] wins = {10, 18};
+    for (int i = 0; i < 2; ++i) {
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(i));
+      m.add(VMInstr.ALLOCS(3));
+      m.add(VMInstr.DUP());
+      m.add(VMInstr.PUSH(names[i]));
+      m.add(VMInstr.SETF(0));        // name
+      m.add(VMInstr.DUP());
+      m.add(VMInstr.PUSH(wins[i]));
+      m.add(VMInstr.SETF(1));        // wins
+      m.add(VMInstr.DUP());
+      m.add(VMInstr.PUSH(20));
+      m.add(VMInstr.SETF(2));        // games
+      m.add(VMInstr.SETI());         // teams[i] = new Team(...)
+    }
+    m.add(VMInstr.PUSH(0.0));
+    m.add(VMInstr.STORE(1));         // sum = 0.0
+    for (int i = 0; i < 2; ++i) {
+      m.add(VMInstr.LOAD(1));
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(i));
+      m.add(VMInstr.GETI());
+      m.add(VMInstr.GETF(1));
+      m.add(VMInstr.TODBL());
+      m.add(VMInstr.LOAD(0));
+      m.add(VMInstr.PUSH(i));
+      m.add(VMInstr.GETI());
+      m.add(VMInstr.GETF(2));
+      m.add(VMInstr.TODBL());
+      m.add(VMInstr.DIV());
+      m.add(VMInstr.ADD());
+      m.add(VMInstr.STORE(1));       // sum = sum + (wins / games)
+    }
+    m.add(VMInstr.PUSH("The average win percentage is: "));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.LOAD(1));
+    m.add(VMInstr.PUSH(2.0));
+    m.add(VMInstr.DIV());
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH("\n"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.PUSH(VM.NULL));
+    m.add(VMInstr.RET());
+    return List.of(m);
+  }
+
+}
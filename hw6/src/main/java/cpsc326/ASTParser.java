@@ -20,6 +20,13 @@ public class ASTParser {
   private Lexer lexer; // the lexer
   private Token currToken; // the current token
 
+  /* the available expression parsing strategies */
+  public enum ExprMode {
+    RECURSIVE, PRECEDENCE
+  };
+
+  private ExprMode exprMode = ExprMode.RECURSIVE; // the expression strategy
+
   /**
    * Create a SimpleParser from the give lexer.
    * 
@@ -29,6 +36,17 @@ public class ASTParser {
     this.lexer = lexer;
   }
 
+  /**
+   * Select how binary expressions are parsed.
+   * 
+   * @param mode RECURSIVE (the default, right recursion with no
+   *             operator precedence) or PRECEDENCE (precedence
+   *             climbing with left-associative operators)
+   */
+  public void exprMode(ExprMode mode) {
+    this.exprMode = mode;
+  }
+
   /**
    * Run the parser.
    */
@@ -368,6 +386,8 @@ public class ASTParser {
   }
 
   private Expr exprDef() {
+    if (exprMode == ExprMode.PRECEDENCE)
+      return precedenceExpr(OR_PRECEDENCE);
     Expr expr;
     if (match(TokenType.NOT)) {
         UnaryExpr uexpr = new UnaryExpr();
@@ -396,6 +416,82 @@ public class ASTParser {
     return expr;
 }
 
+  /* binary operator precedence levels (0 for non-operators) */
+  private static final int OR_PRECEDENCE = 1;
+  private static final int AND_PRECEDENCE = 2;
+  private static final int COMPARE_PRECEDENCE = 3;
+  private static final int ADD_PRECEDENCE = 4;
+  private static final int MULT_PRECEDENCE = 5;
+
+  /**
+   * Helper to get the precedence of the current token as a binary
+   * operator.
+   */
+  private int precedence() {
+    switch (currToken.tokenType) {
+      case OR:
+        return OR_PRECEDENCE;
+      case AND:
+        return AND_PRECEDENCE;
+      case EQUAL: case NOT_EQUAL: case LESS: case LESS_EQ:
+      case GREATER: case GREATER_EQ:
+        return COMPARE_PRECEDENCE;
+      case PLUS: case MINUS:
+        return ADD_PRECEDENCE;
+      case TIMES: case DIVIDE:
+        return MULT_PRECEDENCE;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Parse an expression by precedence climbing. Operators bind by
+   * precedence (or, and, comparisons, + -, * /) and associate to the
+   * left. A chain of same-precedence operators is parsed in a loop
+   * instead of by recursion. As in the recursive strategy, the operand
+   * of not extends over the rest of the expression (e.g., not a and b
+   * is not (a and b)).
+   * 
+   * @param minPrecedence the lowest operator precedence to consume
+   */
+  private Expr precedenceExpr(int minPrecedence) {
+    Expr expr = operandDef();
+    int precedence = precedence();
+    while (precedence >= minPrecedence) {
+      BinaryExpr bexpr = new BinaryExpr();
+      bexpr.lhs = expr;
+      bexpr.binaryOp = currToken;
+      advance();
+      bexpr.rhs = precedenceExpr(precedence + 1);
+      expr = bexpr;
+      precedence = precedence();
+    }
+    return expr;
+  }
+
+  /**
+   * Parse a single operand of a binary expression (for precedence
+   * climbing).
+   */
+  private Expr operandDef() {
+    if (match(TokenType.NOT)) {
+      UnaryExpr uexpr = new UnaryExpr();
+      uexpr.unaryOp = currToken;
+      advance();
+      uexpr.expr = precedenceExpr(OR_PRECEDENCE);
+      return uexpr;
+    } else if (match(TokenType.LPAREN)) {
+      advance();
+      Expr expr = precedenceExpr(OR_PRECEDENCE);
+      eat(TokenType.RPAREN, "expecting ')'");
+      return expr;
+    }
+    BasicExpr bexpr = new BasicExpr();
+    bexpr.rvalue = rvalueDef();
+    return bexpr;
+  }
+
   private RValue rvalueDef() {
     if (isLiteral()) {
         SimpleRValue svalue = new SimpleRValue();
@@ -0,0 +1,286 @@
+/**
+ * CPSC 326, Spring 2025
+ * Binary file format for generated VM code.
+ */
+
+package cpsc326;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+
+
+/**
+ * Writes and loads a program's frame templates in a compact binary
+ * form, so a program can be run without lexing, parsing, checking,
+ * and generating code again. The file holds:
+ *
+ *   magic, version
+ *   source hash (length, bytes)
+ *   constant pool (count, then a tag and value per constant)
+ *   templates (count, then per template the pool index of its name,
+ *     its instruction count, and per instruction the opcode and the
+ *     operand's pool index or NO_OPERAND or NULL_OPERAND)
+ *
+ * All string, number, and bool operands (including function names)
+ * are kept once in the constant pool. Instruction comments are not
+ * saved.
+ */
+public class BytecodeFile {
+
+  /* file header (the code is saved as OpCode ordinals, so the version
+     must change whenever the opcodes or their order change) */
+  private static final int MAGIC = 0x4D59504C; // "MYPL"
+  private static final int VERSION = 2;
+
+  /* constant pool tags */
+  private static final byte INT = 1;
+  private static final byte DOUBLE = 2;
+  private static final byte STRING = 3;
+  private static final byte BOOL = 4;
+
+  /* operand indexes for instructions without a pool operand */
+  private static final int NO_OPERAND = -1;
+  private static final int NULL_OPERAND = -2;
+
+  /**
+   * Compute the hash that identifies the source a file was compiled
+   * from (including the compile options that change the code).
+   *
+   * @param source the program's source bytes
+   * @param options the compile options
+   * @return the SHA-256 hash
+   */
+  public static byte[] hash(byte[] source, String options) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(source);
+      digest.update(options.getBytes(StandardCharsets.UTF_8));
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Write the VM's frame templates.
+   *
+   * @param vm the VM holding the generated (unlinked or linked) code
+   * @param hash the source hash to store
+   * @param output the stream to write to
+   */
+  public static void write(VM vm, byte[] hash, OutputStream output) throws IOException {
+    List<Object> pool = new ArrayList<>();
+    Map<Object, Integer> poolIndex = new HashMap<>();
+    // the pool is written first, so collect it before the code
+    for (VMFrameTemplate template : vm.frameTemplates()) {
+      constant(template.functionName, pool, poolIndex);
+      for (VMInstr instr : template.instructions)
+        if (instr.operand != null && instr.operand != VM.NULL)
+          constant(operand(instr), pool, poolIndex);
+    }
+    DataOutputStream out = new DataOutputStream(output);
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+    out.writeShort(hash.length);
+    out.write(hash);
+    out.writeInt(pool.size());
+    for (Object value : pool) {
+      if (value instanceof Integer) {
+        out.writeByte(INT);
+        out.writeInt((Integer) value);
+      } else if (value instanceof Double) {
+        out.writeByte(DOUBLE);
+        out.writeDouble((Double) value);
+      } else if (value instanceof Boolean) {
+        out.writeByte(BOOL);
+        out.writeBoolean((Boolean) value);
+      } else {
+        byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+        out.writeByte(STRING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+    out.writeInt(vm.frameTemplates().size());
+    for (VMFrameTemplate template : vm.frameTemplates()) {
+      out.writeInt(poolIndex.get(template.functionName));
+      out.writeInt(template.instructions.size());
+      for (VMInstr instr : template.instructions) {
+        out.writeByte(instr.opcode.ordinal());
+        if (instr.operand == null)
+          out.writeInt(NO_OPERAND);
+        else if (instr.operand == VM.NULL)
+          out.writeInt(NULL_OPERAND);
+        else
+          out.writeInt(poolIndex.get(operand(instr)));
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Load frame templates into the VM if they were compiled from the
+   * source with the given hash. The templates are only added once the
+   * whole file is read, so the VM is unchanged if loading fails.
+   *
+   * @param input the stream to read from
+   * @param hash the hash of the current source
+   * @param vm the VM to add the templates to
+   * @return true if the templates were loaded, false if the file is
+   *         not a compiled file or is out of date
+   * @throws IOException if the file can't be read or is malformed
+   *         (e.g., truncated or corrupted after its header)
+   */
+  public static boolean load(InputStream input, byte[] hash, VM vm) throws IOException {
+    DataInputStream in = new DataInputStream(input);
+    if (in.readInt() != MAGIC || in.readShort() != VERSION)
+      return false;
+    byte[] storedHash = in.readNBytes(in.readUnsignedShort());
+    if (!Arrays.equals(storedHash, hash))
+      return false;
+    // counts aren't used to size arrays up front, so a corrupt count
+    // ends in an EOFException rather than a huge allocation
+    int poolCount = count(in);
+    List<Object> pool = new ArrayList<>();
+    for (int i = 0; i < poolCount; ++i) {
+      byte tag = in.readByte();
+      if (tag == INT)
+        pool.add(in.readInt());
+      else if (tag == DOUBLE)
+        pool.add(in.readDouble());
+      else if (tag == BOOL)
+        pool.add(in.readBoolean());
+      else if (tag == STRING) {
+        int length = count(in);
+        byte[] bytes = in.readNBytes(length);
+        check(bytes.length == length, "truncated string constant");
+        pool.add(new String(bytes, StandardCharsets.UTF_8));
+      } else
+        check(false, "unknown constant tag " + tag);
+    }
+    OpCode[] opcodes = OpCode.values();
+    List<VMFrameTemplate> templates = new ArrayList<>();
+    int templateCount = count(in);
+    for (int i = 0; i < templateCount; ++i) {
+      Object name = constant(in.readInt(), pool);
+      check(name instanceof String, "function name is not a string");
+      VMFrameTemplate template = new VMFrameTemplate((String) name);
+      int instrCount = count(in);
+      for (int j = 0; j < instrCount; ++j) {
+        int ordinal = in.readUnsignedByte();
+        check(ordinal < opcodes.length, "unknown opcode " + ordinal);
+        OpCode opcode = opcodes[ordinal];
+        int operand = in.readInt();
+        if (operand == NO_OPERAND) {
+          checkOperand(opcode, null, instrCount);
+          template.add(new VMInstr(opcode));
+        } else if (operand == NULL_OPERAND) {
+          checkOperand(opcode, VM.NULL, instrCount);
+          template.add(new VMInstr(opcode, VM.NULL));
+        } else {
+          Object value = constant(operand, pool);
+          checkOperand(opcode, value, instrCount);
+          template.add(new VMInstr(opcode, value));
+        }
+      }
+      templates.add(template);
+    }
+    check(in.read() == -1, "unexpected data after the code");
+    Set<String> names = new HashSet<>();
+    for (VMFrameTemplate template : templates)
+      names.add(template.functionName);
+    for (VMFrameTemplate template : templates)
+      for (VMInstr instr : template.instructions)
+        if (instr.opcode == OpCode.CALL)
+          check(names.contains(instr.operand), "call of undefined function " + instr.operand);
+    for (VMFrameTemplate template : templates)
+      vm.add(template);
+    return true;
+  }
+
+  // ----------------------------------------------------------------------
+  // Helper functions
+  // ----------------------------------------------------------------------
+
+  /**
+   * Return the instruction's operand as a pool value (a linked CALL
+   * operand is saved as its function name).
+   */
+  private static Object operand(VMInstr instr) {
+    if (instr.operand instanceof VMFrameTemplate)
+      return ((VMFrameTemplate) instr.operand).functionName;
+    return instr.operand;
+  }
+
+  /**
+   * Throw an error for a malformed file unless the condition holds.
+   */
+  private static void check(boolean condition, String message) throws IOException {
+    if (!condition)
+      throw new IOException("malformed compiled file: " + message);
+  }
+
+  /**
+   * Check that an instruction's operand (null if it has none) is the
+   * kind its opcode needs: a jump target within the function, a
+   * variable or field slot, a function name, or any value (PUSH).
+   * Variable slots are bounded by the instruction count, since each
+   * variable is stored before it is loaded.
+   */
+  private static void checkOperand(OpCode opcode, Object operand, int instrCount)
+      throws IOException {
+    switch (opcode) {
+      case PUSH -> check(operand != null, "PUSH without a value");
+      case JMP, JMPF -> check(operand instanceof Integer target && target >= 0
+                              && target <= instrCount, opcode + " target " + operand);
+      case LOAD, STORE -> check(operand instanceof Integer slot && slot >= 0
+                                && slot < instrCount, opcode + " slot " + operand);
+      case ALLOCS, SETF, GETF -> check(operand instanceof Integer slot && slot >= 0,
+                                       opcode + " operand " + operand);
+      case CALL -> check(operand instanceof String, "CALL operand " + operand);
+      default -> check(operand == null, opcode + " with operand " + operand);
+    }
+  }
+
+  /**
+   * Read a count (which can't be negative).
+   */
+  private static int count(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    check(count >= 0, "negative count " + count);
+    return count;
+  }
+
+  /**
+   * Get the constant at a pool index read from the file.
+   */
+  private static Object constant(int index, List<Object> pool) throws IOException {
+    check(index >= 0 && index < pool.size(), "constant pool index " + index
+          + " out of range");
+    return pool.get(index);
+  }
+
+  /**
+   * Add the value to the constant pool if it isn't there yet.
+   */
+  private static void constant(Object value, List<Object> pool, Map<Object, Integer> poolIndex) {
+    if (!poolIndex.containsKey(value)) {
+      poolIndex.put(value, pool.size());
+      pool.add(value);
+    }
+  }
+
+}
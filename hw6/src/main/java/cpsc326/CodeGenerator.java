@@ -11,6 +11,7 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.stream.IntStream;
 
 /**
  * Generates MyPL VM code from an AST.
@@ -29,6 +30,12 @@ public class CodeGenerator implements Visitor {
   /* struct defs for field names */
   private Map<String, StructDef> structs = new HashMap<>();
 
+  /* true if functions are generated in parallel */
+  private boolean parallel = false;
+
+  /* true if and/or only evaluate their right operand when needed */
+  private boolean shortCircuit = false;
+
   /**
    * Create a new Code Generator given a virtual machine
    * 
@@ -38,6 +45,45 @@ public class CodeGenerator implements Visitor {
     this.vm = vm;
   }
 
+  /**
+   * Create a generator for a single function that shares the
+   * (already collected) struct definitions of the given generator.
+   */
+  private CodeGenerator(CodeGenerator program) {
+    this.vm = program.vm;
+    this.structs = program.structs;
+    this.shortCircuit = program.shortCircuit;
+  }
+
+  /**
+   * Turn parallel code generation on or off. In parallel mode each
+   * function is generated by its own generator (with its own variable
+   * table) on a fork-join worker, and the frame templates are then
+   * added to the VM in source order.
+   * 
+   * @param on Set to true to generate functions in parallel
+   */
+  public void parallelMode(boolean on) {
+    parallel = on;
+  }
+
+  /**
+   * Turn short-circuit evaluation of and/or on or off. By default
+   * both operands are evaluated and combined with AND or OR. In
+   * short-circuit mode the right operand is skipped (using JMPF and
+   * JMP) when the left operand decides the result. Note this changes
+   * what a program does when the right operand has side effects
+   * (e.g., a call that prints or assigns to a struct field, or an
+   * array index or null value error), since they only happen when the
+   * right operand is evaluated. A null right operand also gives a null
+   * result instead of a null value error at the and/or itself.
+   * 
+   * @param on Set to true to short-circuit and/or
+   */
+  public void shortCircuitMode(boolean on) {
+    shortCircuit = on;
+  }
+
   // ----------------------------------------------------------------------
   // Helper functions
   // ----------------------------------------------------------------------
@@ -119,6 +165,27 @@ public class CodeGenerator implements Visitor {
     return false;
   }
 
+  /**
+   * Helper to check if the semantic checker found the operands of the
+   * binary expression to be of the given (non-array) base type.
+   */
+  private boolean hasOperandType(BinaryExpr node, String type) {
+    DataType t = node.operandType;
+    return t != null && !t.isArray && t.type.lexeme.equals(type);
+  }
+
+  /**
+   * Helper to find the slot of a field reference, i.e., the position
+   * of the field in its struct definition.
+   */
+  private int fieldSlot(VarRef ref) {
+    List<VarDef> fields = structs.get(ref.structName).fields;
+    for (int i = 0; i < fields.size(); i++)
+      if (fields.get(i).varName.lexeme.equals(ref.varName.lexeme))
+        return i;
+    return -1;
+  }
+
   private void handleVarRValuePath(List<VarRef> path) {
     String baseName = path.get(0).varName.lexeme;
     int baseIndex = varTable.get(baseName);
@@ -129,7 +196,7 @@ public class CodeGenerator implements Visitor {
     }
     for (int i = 1; i < path.size(); i++) {
       VarRef ref = path.get(i);
-      add(VMInstr.GETF(ref.varName.lexeme), "get field " + ref.varName.lexeme);
+      add(VMInstr.GETF(fieldSlot(ref)), "get field " + ref.varName.lexeme);
       if (ref.arrayExpr.isPresent()) {
         ref.arrayExpr.get().accept(this);
         add(VMInstr.GETI(), "get array element");
@@ -147,14 +214,31 @@ public class CodeGenerator implements Visitor {
   public void visit(Program node) {
     for (StructDef s : node.structs)
       s.accept(this);
-    for (FunDef f : node.functions)
-      f.accept(this);
+    if (parallel) {
+      List<FunDef> funs = node.functions;
+      VMFrameTemplate[] templates = new VMFrameTemplate[funs.size()];
+      IntStream.range(0, funs.size()).parallel().forEach(i -> {
+        templates[i] = new CodeGenerator(this).generate(funs.get(i));
+      });
+      for (VMFrameTemplate template : templates)
+        vm.add(template);
+    } else {
+      for (FunDef f : node.functions)
+        f.accept(this);
+    }
   }
 
   /**
    * Generates a function definition
    */
   public void visit(FunDef node) {
+    vm.add(generate(node));
+  }
+
+  /**
+   * Helper to generate the frame template of a function definition.
+   */
+  private VMFrameTemplate generate(FunDef node) {
     currTemplate = new VMFrameTemplate(node.funName.lexeme);
     varTable.pushEnvironment();
     for (VarDef param : node.params) {
@@ -181,7 +265,7 @@ public class CodeGenerator implements Visitor {
       add(VMInstr.RET(), "implicit return from function");
     }
     varTable.popEnvironment();
-    vm.add(currTemplate);
+    return currTemplate;
   }
 
   /**
@@ -253,7 +337,7 @@ public class CodeGenerator implements Visitor {
     }
     for (int i = 1; i < node.lvalue.size() - 1; i++) {
       VarRef ref = node.lvalue.get(i);
-      add(VMInstr.GETF(ref.varName.lexeme), "get field " + ref.varName.lexeme);
+      add(VMInstr.GETF(fieldSlot(ref)), "get field " + ref.varName.lexeme);
       if (ref.arrayExpr.isPresent()) {
         ref.arrayExpr.get().accept(this);
         add(VMInstr.GETI(), "get array element");
@@ -261,13 +345,13 @@ public class CodeGenerator implements Visitor {
     }
     VarRef lastRef = node.lvalue.get(node.lvalue.size() - 1);
     if (lastRef.arrayExpr.isPresent()) {
-      add(VMInstr.GETF(lastRef.varName.lexeme), "get last field " + lastRef.varName.lexeme);
+      add(VMInstr.GETF(fieldSlot(lastRef)), "get last field " + lastRef.varName.lexeme);
       lastRef.arrayExpr.get().accept(this);
       add(VMInstr.LOAD(tempIndex), "load expression value");
       add(VMInstr.SETI(), "set array element");
     } else {
       add(VMInstr.LOAD(tempIndex), "load expression value");
-      add(VMInstr.SETF(lastRef.varName.lexeme), "set field " + lastRef.varName.lexeme);
+      add(VMInstr.SETF(fieldSlot(lastRef)), "set field " + lastRef.varName.lexeme);
     }
     varTable.popEnvironment();
   }
@@ -294,13 +378,13 @@ public class CodeGenerator implements Visitor {
     int conditionPos = currTemplate.instructions.size();
     add(VMInstr.LOAD(varIndex), "load loop variable");
     node.toExpr.accept(this);
-    add(VMInstr.CMPLE(), "check if loop variable <= upper bound");
+    add(VMInstr.ICMPLE(), "check if loop variable <= upper bound");
     int jumpInstrPos = currTemplate.instructions.size();
     add(VMInstr.JMPF(0), "exit loop if done");
     execBody(node.stmts);
     add(VMInstr.LOAD(varIndex), "load loop variable");
     add(VMInstr.PUSH(1), "increment value");
-    add(VMInstr.ADD(), "add 1 to loop variable");
+    add(VMInstr.IADD(), "add 1 to loop variable");
     add(VMInstr.STORE(varIndex), "update loop variable");
     add(VMInstr.JMP(conditionPos), "jump back to loop condition");
     int endPos = currTemplate.instructions.size();
@@ -342,8 +426,40 @@ public class CodeGenerator implements Visitor {
     }
   }
 
+  /**
+   * Helper to generate a short-circuit and/or, i.e., for "a and b":
+   *
+   *   a, JMPF L, b, JMP E, L: PUSH false, E:
+   *
+   * and for "a or b":
+   *
+   *   a, JMPF L, PUSH true, JMP E, L: b, E:
+   */
+  private void shortCircuit(BinaryExpr node) {
+    boolean isAnd = node.binaryOp.lexeme.equals("and");
+    node.lhs.accept(this);
+    int falseJumpPos = currTemplate.instructions.size();
+    add(VMInstr.JMPF(0), "skip " + (isAnd ? "right operand of and" : "to right operand of or"));
+    if (isAnd)
+      node.rhs.accept(this);
+    else
+      add(VMInstr.PUSH(true), "or is true");
+    int endJumpPos = currTemplate.instructions.size();
+    add(VMInstr.JMP(0), "jump past " + (isAnd ? "false" : "right operand"));
+    currTemplate.instructions.get(falseJumpPos).operand = currTemplate.instructions.size();
+    if (isAnd)
+      add(VMInstr.PUSH(false), "and is false");
+    else
+      node.rhs.accept(this);
+    currTemplate.instructions.get(endJumpPos).operand = currTemplate.instructions.size();
+  }
+
   public void visit(BinaryExpr node) {
     String op = node.binaryOp.lexeme;
+    if (shortCircuit && (op.equals("and") || op.equals("or"))) {
+      shortCircuit(node);
+      return;
+    }
     if (op.equals(">") || op.equals(">=")) {
       node.rhs.accept(this);
       node.lhs.accept(this);
@@ -351,22 +467,52 @@ public class CodeGenerator implements Visitor {
       node.lhs.accept(this);
       node.rhs.accept(this);
     }
+    boolean isInt = hasOperandType(node, "int");
+    boolean isDouble = hasOperandType(node, "double");
     if (op.equals("+")) {
-      add(VMInstr.ADD(), "addition");
+      if (isInt)
+        add(VMInstr.IADD(), "int addition");
+      else if (isDouble)
+        add(VMInstr.DADD(), "double addition");
+      else
+        add(VMInstr.ADD(), "addition");
     } else if (op.equals("-")) {
-      add(VMInstr.SUB(), "subtraction");
+      if (isInt)
+        add(VMInstr.ISUB(), "int subtraction");
+      else if (isDouble)
+        add(VMInstr.DSUB(), "double subtraction");
+      else
+        add(VMInstr.SUB(), "subtraction");
     } else if (op.equals("*")) {
-      add(VMInstr.MUL(), "multiplication");
+      if (isInt)
+        add(VMInstr.IMUL(), "int multiplication");
+      else if (isDouble)
+        add(VMInstr.DMUL(), "double multiplication");
+      else
+        add(VMInstr.MUL(), "multiplication");
     } else if (op.equals("/")) {
-      add(VMInstr.DIV(), "division");
-    } else if (op.equals("<")) {
-      add(VMInstr.CMPLT(), "less than");
-    } else if (op.equals("<=")) {
-      add(VMInstr.CMPLE(), "less than or equal");
-    } else if (op.equals(">")) {
-      add(VMInstr.CMPLT(), "greater than");
-    } else if (op.equals(">=")) {
-      add(VMInstr.CMPLE(), "greater than or equal");
+      if (isInt)
+        add(VMInstr.IDIV(), "int division");
+      else if (isDouble)
+        add(VMInstr.DDIV(), "double division");
+      else
+        add(VMInstr.DIV(), "division");
+    } else if (op.equals("<") || op.equals(">")) {
+      String comment = op.equals("<") ? "less than" : "greater than";
+      if (isInt)
+        add(VMInstr.ICMPLT(), "int " + comment);
+      else if (isDouble)
+        add(VMInstr.DCMPLT(), "double " + comment);
+      else
+        add(VMInstr.CMPLT(), comment);
+    } else if (op.equals("<=") || op.equals(">=")) {
+      String comment = op.equals("<=") ? "less than or equal" : "greater than or equal";
+      if (isInt)
+        add(VMInstr.ICMPLE(), "int " + comment);
+      else if (isDouble)
+        add(VMInstr.DCMPLE(), "double " + comment);
+      else
+        add(VMInstr.CMPLE(), comment);
     } else if (op.equals("==")) {
       add(VMInstr.CMPEQ(), "equal to");
     } else if (op.equals("!=")) {
@@ -408,12 +554,13 @@ public class CodeGenerator implements Visitor {
   }
 
   public void visit(NewStructRValue node) {
-    add(VMInstr.ALLOCS(), "new struct " + node.structName.lexeme);
+    StructDef structDef = structs.get(node.structName.lexeme);
+    add(VMInstr.ALLOCS(structDef.fields.size()), "new struct " + node.structName.lexeme);
     for (int i = 0; i < node.args.size(); i++) {
       add(VMInstr.DUP(), "duplicate struct reference");
       node.args.get(i).accept(this);
-      String fieldName = structs.get(node.structName.lexeme).fields.get(i).varName.lexeme;
-      add(VMInstr.SETF(fieldName), "set field " + fieldName);
+      String fieldName = structDef.fields.get(i).varName.lexeme;
+      add(VMInstr.SETF(i), "set field " + fieldName);
     }
   }
 
@@ -0,0 +1,312 @@
+/**
+ * CPSC 326, Spring 2025
+ * Constant folding of checked MyPL programs.
+ */
+
+package cpsc326;
+
+import java.util.List;
+
+
+/**
+ * Replaces the operator expressions whose operands are all literals
+ * with the literal of their value, so the values are computed once at
+ * compile time instead of each time the code runs. Runs over a
+ * checked AST (before code generation). The folded operators are:
+ *
+ *   int and double  + - * / < <= > >= == !=
+ *   string          + < <= > >= == !=
+ *   bool            and or not == !=
+ *   null            == !=
+ *
+ * The values are computed the same way the VM computes them (e.g.,
+ * with int wraparound and truncating int division). An expression
+ * that fails at run time (a division by zero or an operator other
+ * than == and != on null) is left as is, so the error is still raised
+ * when (and only if) the expression is evaluated.
+ */
+public class ConstantFolder implements Visitor {
+
+  /* the literal value of the last visited expression (null if the
+     expression is not constant) */
+  private Token result;
+
+  /* the number of operator expressions folded */
+  private int foldedCount = 0;
+
+  /**
+   * Gives the number of operator expressions folded so far.
+   */
+  public int foldedCount() {
+    return foldedCount;
+  }
+
+  /**
+   * Summarize what the folder did (e.g., for IR mode).
+   */
+  public String toString() {
+    return String.format("constant folder: %d expressions folded", foldedCount);
+  }
+
+  // ----------------------------------------------------------------------
+  // Helper functions
+  // ----------------------------------------------------------------------
+
+  /**
+   * Fold the expression.
+   *
+   * @return the expression's literal if it is constant, otherwise the
+   *         (possibly rewritten) expression
+   */
+  private Expr fold(Expr expr) {
+    result = null;
+    expr.accept(this);
+    if (result == null)
+      return expr;
+    ++foldedCount;
+    SimpleRValue rvalue = new SimpleRValue();
+    rvalue.literal = result;
+    result = null;
+    BasicExpr folded = new BasicExpr();
+    folded.rvalue = rvalue;
+    return folded;
+  }
+
+  /**
+   * Fold each expression of the list in place.
+   */
+  private void foldAll(List<Expr> exprs) {
+    for (int i = 0; i < exprs.size(); ++i)
+      exprs.set(i, fold(exprs.get(i)));
+  }
+
+  /**
+   * Fold the index expressions of a variable path.
+   */
+  private void foldPath(List<VarRef> path) {
+    for (VarRef ref : path)
+      ref.arrayExpr = ref.arrayExpr.map(this::fold);
+  }
+
+  /**
+   * Visit each statement of the list.
+   */
+  private void visitAll(List<Stmt> stmts) {
+    for (Stmt s : stmts)
+      s.accept(this);
+  }
+
+  /**
+   * Return the literal token of an expression that is a literal (and
+   * null otherwise).
+   */
+  private static Token literal(Expr expr) {
+    if (expr instanceof BasicExpr && ((BasicExpr) expr).rvalue instanceof SimpleRValue)
+      return ((SimpleRValue) ((BasicExpr) expr).rvalue).literal;
+    return null;
+  }
+
+  /**
+   * Return the value a literal is pushed as (the same conversion as
+   * the code generator).
+   */
+  private static Object value(Token literal) {
+    String lexeme = literal.lexeme;
+    switch (literal.tokenType) {
+      case INT_VAL:
+        return Integer.parseInt(lexeme);
+      case DOUBLE_VAL:
+        return Double.parseDouble(lexeme);
+      case BOOL_VAL:
+        return Boolean.parseBoolean(lexeme);
+      case STRING_VAL:
+        return lexeme.replace("\\n", "\n").replace("\\t", "\t").replace("\\r", "\r");
+      default:
+        return VM.NULL;
+    }
+  }
+
+  /**
+   * Create the literal token of a folded value at the given token's
+   * position.
+   */
+  private static Token token(Object value, Token at) {
+    TokenType type;
+    if (value instanceof Integer)
+      type = TokenType.INT_VAL;
+    else if (value instanceof Double)
+      type = TokenType.DOUBLE_VAL;
+    else
+      type = TokenType.BOOL_VAL;
+    return new Token(type, String.valueOf(value), at.line, at.column);
+  }
+
+  /**
+   * Compute the value of a binary operator over two literals.
+   *
+   * @return the literal of the value, or null if the expression can't
+   *         be (or isn't) folded
+   */
+  private static Token evaluate(Token lhs, String op, Token rhs) {
+    Object x = value(lhs);
+    Object y = value(rhs);
+    if (op.equals("==") || op.equals("!=")) {
+      // same as the vm's equality (which is defined on null)
+      boolean isEqual = (x == VM.NULL && y == VM.NULL)
+        || (x != VM.NULL && y != VM.NULL && x.equals(y));
+      return token(op.equals("==") ? isEqual : !isEqual, lhs);
+    }
+    if (x == VM.NULL || y == VM.NULL)
+      return null; // a null value error at run time
+    if (x instanceof Integer) {
+      int a = (int) x;
+      int b = (int) y;
+      switch (op) {
+        case "+": return token(a + b, lhs);
+        case "-": return token(a - b, lhs);
+        case "*": return token(a * b, lhs);
+        case "/": return b == 0 ? null : token(a / b, lhs);
+        case "<": return token(a < b, lhs);
+        case "<=": return token(a <= b, lhs);
+        case ">": return token(a > b, lhs);
+        case ">=": return token(a >= b, lhs);
+      }
+    } else if (x instanceof Double) {
+      double a = (double) x;
+      double b = (double) y;
+      switch (op) {
+        case "+": return token(a + b, lhs);
+        case "-": return token(a - b, lhs);
+        case "*": return token(a * b, lhs);
+        case "/": return b == 0.0 ? null : token(a / b, lhs);
+        case "<": return token(a < b, lhs);
+        case "<=": return token(a <= b, lhs);
+        case ">": return token(a > b, lhs);
+        case ">=": return token(a >= b, lhs);
+      }
+    } else if (x instanceof Boolean) {
+      if (op.equals("and"))
+        return token((boolean) x && (boolean) y, lhs);
+      if (op.equals("or"))
+        return token((boolean) x || (boolean) y, lhs);
+    } else {
+      int cmp = ((String) x).compareTo((String) y);
+      switch (op) {
+        case "+":
+          // concatenate the lexemes (unless that would join a trailing
+          // backslash and a leading letter into a new escape)
+          if (lhs.lexeme.endsWith("\\"))
+            return null;
+          return new Token(TokenType.STRING_VAL, lhs.lexeme + rhs.lexeme, lhs.line, lhs.column);
+        case "<": return token(cmp < 0, lhs);
+        case "<=": return token(cmp <= 0, lhs);
+        case ">": return token(cmp > 0, lhs);
+        case ">=": return token(cmp >= 0, lhs);
+      }
+    }
+    return null;
+  }
+
+  // ----------------------------------------------------------------------
+  // Visitors for programs, functions, and structs
+  // ----------------------------------------------------------------------
+
+  public void visit(Program node) {
+    for (FunDef f : node.functions)
+      f.accept(this);
+  }
+
+  public void visit(FunDef node) {
+    visitAll(node.stmts);
+  }
+
+  public void visit(StructDef node) {
+  }
+
+  public void visit(DataType node) {
+  }
+
+  public void visit(VarDef node) {
+  }
+
+  // ----------------------------------------------------------------------
+  // Visitors for statements
+  // ----------------------------------------------------------------------
+
+  public void visit(ReturnStmt node) {
+    node.expr = fold(node.expr);
+  }
+
+  public void visit(VarStmt node) {
+    node.expr = node.expr.map(this::fold);
+  }
+
+  public void visit(AssignStmt node) {
+    foldPath(node.lvalue);
+    node.expr = fold(node.expr);
+  }
+
+  public void visit(WhileStmt node) {
+    node.condition = fold(node.condition);
+    visitAll(node.stmts);
+  }
+
+  public void visit(ForStmt node) {
+    node.fromExpr = fold(node.fromExpr);
+    node.toExpr = fold(node.toExpr);
+    visitAll(node.stmts);
+  }
+
+  public void visit(IfStmt node) {
+    node.condition = fold(node.condition);
+    visitAll(node.ifStmts);
+    if (node.elseIf.isPresent())
+      node.elseIf.get().accept(this);
+    if (node.elseStmts.isPresent())
+      visitAll(node.elseStmts.get());
+  }
+
+  // ----------------------------------------------------------------------
+  // Visitors for expressions
+  // ----------------------------------------------------------------------
+
+  public void visit(BasicExpr node) {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(UnaryExpr node) {
+    node.expr = fold(node.expr);
+    Token operand = literal(node.expr);
+    if (operand != null && operand.tokenType == TokenType.BOOL_VAL)
+      result = token(!(boolean) value(operand), node.unaryOp);
+  }
+
+  public void visit(BinaryExpr node) {
+    node.lhs = fold(node.lhs);
+    node.rhs = fold(node.rhs);
+    Token lhs = literal(node.lhs);
+    Token rhs = literal(node.rhs);
+    if (lhs != null && rhs != null)
+      result = evaluate(lhs, node.binaryOp.lexeme, rhs);
+  }
+
+  public void visit(CallRValue node) {
+    foldAll(node.args);
+  }
+
+  public void visit(SimpleRValue node) {
+  }
+
+  public void visit(NewStructRValue node) {
+    foldAll(node.args);
+  }
+
+  public void visit(NewArrayRValue node) {
+    node.arrayExpr = fold(node.arrayExpr);
+  }
+
+  public void visit(VarRValue node) {
+    foldPath(node.path);
+  }
+
+}
@@ -0,0 +1,250 @@
+/**
+ * CPSC 326, Spring 2025
+ * Incremental compilation of MyPL programs.
+ */
+
+package cpsc326;
+
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+
+/**
+ * Compiles successive versions of a program (e.g., on each save),
+ * only redoing the work for the parts that changed. The source is
+ * split into its top-level struct and function definitions (units).
+ * Each unit's AST and generated frame template are cached by the
+ * unit's text, so an unchanged unit is not parsed again, even if it
+ * moved. A function body is only checked (and its code generated)
+ * again if its text changed, or if a struct definition or a function
+ * signature changed since it was last checked.
+ */
+public class IncrementalCompiler {
+
+  /**
+   * A cached top-level definition.
+   */
+  private static class Unit {
+    Program ast;              // the parsed definition (one struct or function)
+    List<Token> tokens;       // the definition's tokens (for moving it)
+    int line;                 // the line of its first token
+    int column;               // the column of its first token
+    int checkedWith;          // the signatures version it was last checked against
+    VMFrameTemplate template; // the generated code (for functions)
+  }
+
+  /**
+   * A lexer that records the tokens it returns.
+   */
+  private static class RecordingLexer extends Lexer {
+    List<Token> tokens = new ArrayList<>();
+
+    RecordingLexer(CharBuffer source, int line, int column) {
+      super(source, line, column);
+    }
+
+    @Override
+    public Token nextToken() {
+      Token t = super.nextToken();
+      tokens.add(t);
+      return t;
+    }
+  }
+
+  /* cached units by their source text */
+  private Map<String, Unit> cache = new HashMap<>();
+
+  /* the struct definitions and function signatures of the last
+     compile, and their version (incremented whenever they change, so
+     a new unit's version 0 is never current) */
+  private String signatures = "";
+  private int version = 0;
+
+  /* the counts of the last compile */
+  private int unitCount = 0;
+  private int parsedCount = 0;
+  private int functionCount = 0;
+  private int checkedCount = 0;
+
+  /**
+   * Compile the program.
+   *
+   * @param source the program's source code
+   * @return a VM holding the program's frame templates
+   */
+  public VM compile(String source) {
+    char[] chars = source.toCharArray();
+    PackedTokens tokens = new Lexer(CharBuffer.wrap(chars)).tokenize();
+    Map<String, Unit> units = new HashMap<>();
+    Map<FunDef, Unit> unitOf = new IdentityHashMap<>();
+    Program program = new Program();
+    StringBuilder currSignatures = new StringBuilder();
+    unitCount = parsedCount = functionCount = checkedCount = 0;
+    int i = skipComments(tokens, 0);
+    while (tokens.type(i) != TokenType.EOS) {
+      int end = unitEnd(tokens, i);
+      int start = tokens.offset(i);
+      String text = new String(chars, start, tokens.offset(end) + tokens.length(end) - start);
+      // (a repeated definition text gets its own unit)
+      Unit unit = units.containsKey(text) ? null : cache.get(text);
+      if (unit == null) {
+        unit = parse(chars, start, text.length(), tokens.line(i), tokens.column(i));
+        ++parsedCount;
+      } else {
+        move(unit, tokens.line(i), tokens.column(i));
+      }
+      units.put(text, unit);
+      ++unitCount;
+      for (StructDef s : unit.ast.structs) {
+        program.structs.add(s);
+        currSignatures.append(text).append('\n');
+      }
+      for (FunDef f : unit.ast.functions) {
+        program.functions.add(f);
+        unitOf.put(f, unit);
+        currSignatures.append(signature(f)).append('\n');
+      }
+      i = skipComments(tokens, end + 1);
+    }
+    cache = units;
+    if (!signatures.contentEquals(currSignatures)) {
+      signatures = currSignatures.toString();
+      ++version;
+    }
+    // check (only the function bodies that need it)
+    List<FunDef> changed = new ArrayList<>();
+    new SemanticChecker().visit(program, f -> {
+      if (unitOf.get(f).checkedWith == version)
+        return false;
+      changed.add(f);
+      return true;
+    });
+    functionCount = program.functions.size();
+    checkedCount = changed.size();
+    // generate code for the checked functions
+    VM generated = new VM();
+    CodeGenerator generator = new CodeGenerator(generated);
+    for (StructDef s : program.structs)
+      s.accept(generator);
+    for (FunDef f : changed)
+      f.accept(generator);
+    Map<String, VMFrameTemplate> templates = new HashMap<>();
+    for (VMFrameTemplate template : generated.frameTemplates())
+      templates.put(template.functionName, template);
+    for (FunDef f : changed) {
+      Unit unit = unitOf.get(f);
+      unit.template = templates.get(f.funName.lexeme);
+      unit.checkedWith = version;
+    }
+    VM vm = new VM();
+    for (FunDef f : program.functions)
+      vm.add(unitOf.get(f).template);
+    return vm;
+  }
+
+  /**
+   * Gives the number of definitions parsed by the last compile.
+   */
+  public int parsedCount() {
+    return parsedCount;
+  }
+
+  /**
+   * Gives the number of function bodies checked (and generated) by the
+   * last compile.
+   */
+  public int checkedCount() {
+    return checkedCount;
+  }
+
+  /**
+   * Summarize the work done by the last compile.
+   */
+  public String toString() {
+    String s = "incremental compile: %d of %d definitions parsed, %d of %d functions checked";
+    return String.format(s, parsedCount, unitCount, checkedCount, functionCount);
+  }
+
+  // ----------------------------------------------------------------------
+  // Helper functions
+  // ----------------------------------------------------------------------
+
+  /**
+   * Return the index of the first non-comment token starting at i.
+   */
+  private static int skipComments(PackedTokens tokens, int i) {
+    while (tokens.type(i) == TokenType.COMMENT)
+      ++i;
+    return i;
+  }
+
+  /**
+   * Return the index of the last token of the definition starting at
+   * token i, i.e., the right brace closing its body (or the last
+   * token before the end of the stream if the braces don't balance).
+   */
+  private static int unitEnd(PackedTokens tokens, int i) {
+    int depth = 0;
+    for (; tokens.type(i) != TokenType.EOS; ++i) {
+      if (tokens.type(i) == TokenType.LBRACE)
+        ++depth;
+      else if (tokens.type(i) == TokenType.RBRACE && --depth == 0)
+        return i;
+    }
+    return i - 1;
+  }
+
+  /**
+   * Parse the definition text at the given source position.
+   */
+  private static Unit parse(char[] chars, int start, int length, int line, int column) {
+    RecordingLexer lexer = new RecordingLexer(CharBuffer.wrap(chars, start, length),
+                                              line, column);
+    Unit unit = new Unit();
+    unit.ast = new ASTParser(lexer).parse();
+    unit.tokens = lexer.tokens;
+    unit.line = line;
+    unit.column = column;
+    return unit;
+  }
+
+  /**
+   * Update the token positions of a cached definition that now starts
+   * at the given line and column.
+   */
+  private static void move(Unit unit, int line, int column) {
+    if (unit.line == line && unit.column == column)
+      return;
+    for (Token t : unit.tokens) {
+      if (t.line == unit.line)
+        t.column += column - unit.column;
+      t.line += line - unit.line;
+    }
+    unit.line = line;
+    unit.column = column;
+  }
+
+  /**
+   * Return the text of a function's signature (what the checks of
+   * other functions depend on).
+   */
+  private static String signature(FunDef f) {
+    StringBuilder s = new StringBuilder(typeName(f.returnType));
+    s.append(' ').append(f.funName.lexeme).append('(');
+    for (VarDef p : f.params)
+      s.append(p.varName.lexeme).append(':').append(typeName(p.dataType)).append(',');
+    return s.append(')').toString();
+  }
+
+  /**
+   * Return the text of a data type.
+   */
+  private static String typeName(DataType t) {
+    return t.isArray ? "[" + t.type.lexeme + "]" : t.type.lexeme;
+  }
+
+}
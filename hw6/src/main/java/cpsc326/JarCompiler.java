@@ -0,0 +1,1106 @@
+/**
+ * CPSC 326, Spring 2025
+ * Ahead-of-time compiler from MyPL programs to JVM classes.
+ */
+
+package cpsc326;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.Collections;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import static org.objectweb.asm.Opcodes.*;
+
+
+/**
+ * Compiles a checked MyPL program to JVM classes, packaged as a
+ * runnable jar that doesn't need the interpreter (only JarRuntime).
+ * Each struct becomes a class with a (public) field per struct field,
+ * and each function becomes a static method of the program class,
+ * mypl.Program (whose Java main method runs the MyPL main function).
+ *
+ * Values are held the same way as Java would: ints, doubles, and
+ * bools as Integer, Double, and Boolean objects (since they may be
+ * null), strings as Strings, structs as their classes, and arrays as
+ * JVM arrays of these. Expressions (e.g., arithmetic) compute on
+ * unboxed values, and a local variable of type int, double, or bool
+ * that is only assigned values that can't be null is kept unboxed.
+ *
+ * The compiled code does what the VM code from the CodeGenerator does
+ * (including the order operands are evaluated in) and reports the
+ * same run-time errors, but with the function and source position of
+ * the error instead of the instruction.
+ */
+public class JarCompiler implements Visitor {
+
+  /* the name of the program class (the jar's main class) */
+  public static final String PROGRAM_CLASS = "mypl.Program";
+
+  /* JVM names and descriptors used by the compiled code */
+  private static final String PROGRAM_TYPE = "mypl/Program";
+  private static final String RUNTIME_TYPE = "cpsc326/JarRuntime";
+  private static final String OBJECT_TYPE = "java/lang/Object";
+  private static final String OBJECT_DESC = "Ljava/lang/Object;";
+  private static final String STRING_DESC = "Ljava/lang/String;";
+  private static final String ERROR_DESC = "(Ljava/lang/String;)Ljava/lang/RuntimeException;";
+
+  /* the classes (besides the compiled ones) a compiled program needs
+     at run time */
+  private static final List<String> RUNTIME_CLASSES = List.of(
+      "cpsc326/JarRuntime", "cpsc326/MyPLException", "cpsc326/MyPLException$ErrorType");
+
+  /* the types of values that aren't the type of a variable, field, or
+     parameter */
+  private static final DataType INT_TYPE = baseType("int", TokenType.INT_TYPE);
+  private static final DataType DOUBLE_TYPE = baseType("double", TokenType.DOUBLE_TYPE);
+  private static final DataType BOOL_TYPE = baseType("bool", TokenType.BOOL_TYPE);
+  private static final DataType STRING_TYPE = baseType("string", TokenType.STRING_TYPE);
+
+  /* emits nothing (for analyzing a function) */
+  private static final MethodVisitor NO_CODE = new MethodVisitor(ASM9) {};
+
+  /* struct and function definitions by name */
+  private Map<String, StructDef> structs = new HashMap<>();
+  private Map<String, FunDef> functions = new HashMap<>();
+
+  /* the compiled classes: JVM (internal) name -> class file */
+  private Map<String, byte[]> classes = new LinkedHashMap<>();
+
+  /* true if and/or only evaluate their right operand when needed */
+  private boolean shortCircuit = false;
+
+  /**
+   * A local variable of the function being compiled.
+   */
+  private static class Local {
+    DataType type;
+    int slot;          // its (first) JVM local variable
+    boolean unboxed;   // true if held as a JVM int or double
+    Object definition; // the parameter, var, or for statement defining it
+
+    Local(DataType type, int slot, boolean unboxed, Object definition) {
+      this.type = type;
+      this.slot = slot;
+      this.unboxed = unboxed;
+      this.definition = definition;
+    }
+  }
+
+  /* the function being compiled and where its code is emitted */
+  private FunDef currFunction;
+  private MethodVisitor mv;
+
+  /* variable -> index mappings with respect to environments, and the
+     local variable of each index */
+  private VarTable varTable;
+  private List<Local> locals;
+
+  /* the next free JVM local variable */
+  private int nextSlot;
+
+  /* the definitions of the variables that must be boxed (e.g., ones
+     assigned null), found by analyzing the function until no more are
+     found */
+  private Set<Object> boxed;
+  private boolean boxedChanged;
+
+  /* the type of the last compiled expression and whether its value is
+     unboxed (a JVM int, double, or int for a bool) */
+  private DataType currType;
+  private boolean currUnboxed;
+
+  /**
+   * Turn short-circuit evaluation of and/or on or off (the same as
+   * the CodeGenerator's short-circuit mode).
+   *
+   * @param on Set to true to short-circuit and/or
+   */
+  public void shortCircuitMode(boolean on) {
+    shortCircuit = on;
+  }
+
+  /**
+   * Gives the compiled classes, each by its (binary) class name.
+   */
+  public Map<String, byte[]> classes() {
+    Map<String, byte[]> named = new LinkedHashMap<>();
+    for (String name : classes.keySet())
+      named.put(name.replace('/', '.'), classes.get(name));
+    return Collections.unmodifiableMap(named);
+  }
+
+  /**
+   * Write the compiled program as a runnable jar, i.e., the compiled
+   * classes and the run-time support classes, with the program class
+   * as the main class.
+   *
+   * @param out where to write the jar (left open)
+   */
+  public void write(OutputStream out) throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, PROGRAM_CLASS);
+    JarOutputStream jar = new JarOutputStream(out, manifest);
+    for (String name : classes.keySet()) {
+      jar.putNextEntry(new JarEntry(name + ".class"));
+      jar.write(classes.get(name));
+    }
+    for (String name : RUNTIME_CLASSES) {
+      try (InputStream in = JarCompiler.class.getResourceAsStream("/" + name + ".class")) {
+        if (in == null)
+          throw new IOException("missing run-time class " + name);
+        jar.putNextEntry(new JarEntry(name + ".class"));
+        jar.write(in.readAllBytes());
+      }
+    }
+    jar.finish();
+  }
+
+  // ----------------------------------------------------------------------
+  // Helper functions
+  // ----------------------------------------------------------------------
+
+  /**
+   * Create the (non-array) type with the given name.
+   */
+  private static DataType baseType(String name, TokenType tokenType) {
+    DataType t = new DataType();
+    t.type = new Token(tokenType, name, 0, 0);
+    return t;
+  }
+
+  /**
+   * Gives the type of an array's elements.
+   */
+  private static DataType elementType(DataType array) {
+    DataType t = new DataType();
+    t.type = array.type;
+    return t;
+  }
+
+  /**
+   * Check if a type is the given non-array type (the null type, i.e.,
+   * null, is none).
+   */
+  private static boolean is(DataType t, String name) {
+    return t != null && !t.isArray && t.type.lexeme.equals(name);
+  }
+
+  /**
+   * Check if values of a type can be held unboxed.
+   */
+  private static boolean isUnboxable(DataType t) {
+    return is(t, "int") || is(t, "double") || is(t, "bool");
+  }
+
+  /**
+   * Gives the JVM class holding the (non-array) values of a type.
+   */
+  private static String className(String type) {
+    switch (type) {
+      case "int": return "java/lang/Integer";
+      case "double": return "java/lang/Double";
+      case "bool": return "java/lang/Boolean";
+      case "string": return "java/lang/String";
+      default: return structClass(type);
+    }
+  }
+
+  /**
+   * Gives the JVM class of a struct.
+   */
+  private static String structClass(String struct) {
+    return PROGRAM_TYPE + "$" + struct;
+  }
+
+  /**
+   * Gives the JVM descriptor of a (boxed) type, where null is the
+   * type of null (and of void calls).
+   */
+  private static String descriptor(DataType t) {
+    if (t == null)
+      return OBJECT_DESC;
+    return (t.isArray ? "[L" : "L") + className(t.type.lexeme) + ";";
+  }
+
+  /**
+   * Gives the JVM descriptor of a function's method.
+   */
+  private static String descriptor(FunDef f) {
+    StringBuilder s = new StringBuilder("(");
+    for (VarDef param : f.params)
+      s.append(descriptor(param.dataType));
+    s.append(")");
+    s.append(is(f.returnType, "void") ? "V" : descriptor(f.returnType));
+    return s.toString();
+  }
+
+  /**
+   * Gives the function and source position of a token (for error
+   * messages).
+   */
+  private String where(Token token) {
+    return String.format("%s at [%d,%d]", currFunction.funName.lexeme, token.line, token.column);
+  }
+
+  /**
+   * Gives a token of an expression (for the position of its errors).
+   */
+  private static Token token(Expr expr) {
+    if (expr instanceof BinaryExpr)
+      return ((BinaryExpr) expr).binaryOp;
+    if (expr instanceof UnaryExpr)
+      return ((UnaryExpr) expr).unaryOp;
+    RValue rvalue = ((BasicExpr) expr).rvalue;
+    if (rvalue instanceof SimpleRValue)
+      return ((SimpleRValue) rvalue).literal;
+    if (rvalue instanceof CallRValue)
+      return ((CallRValue) rvalue).funName;
+    if (rvalue instanceof NewStructRValue)
+      return ((NewStructRValue) rvalue).structName;
+    if (rvalue instanceof NewArrayRValue)
+      return ((NewArrayRValue) rvalue).type;
+    return ((VarRValue) rvalue).path.get(0).varName;
+  }
+
+  /**
+   * Gives the definition of a struct field.
+   */
+  private VarDef field(String struct, String name) {
+    for (VarDef field : structs.get(struct).fields)
+      if (field.varName.lexeme.equals(name))
+        return field;
+    return null;
+  }
+
+  /**
+   * Helper to call a run-time helper.
+   */
+  private void runtime(String name, String descriptor) {
+    mv.visitMethodInsn(INVOKESTATIC, RUNTIME_TYPE, name, descriptor, false);
+  }
+
+  /**
+   * Helper to throw an error (with the given message) at a token.
+   */
+  private void error(String msg, Token token) {
+    mv.visitLdcInsn(msg);
+    mv.visitLdcInsn(where(token));
+    runtime("error", "(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/RuntimeException;");
+    mv.visitInsn(ATHROW);
+  }
+
+  /**
+   * Helper to raise a null value error (at the token) if the value on
+   * top of the stack is null.
+   */
+  private void ensureNotNull(Token token) {
+    Label notNull = new Label();
+    mv.visitInsn(DUP);
+    mv.visitJumpInsn(IFNONNULL, notNull);
+    mv.visitLdcInsn(where(token));
+    runtime("nullError", ERROR_DESC);
+    mv.visitInsn(ATHROW);
+    mv.visitLabel(notNull);
+  }
+
+  /**
+   * Helper to push an int constant.
+   */
+  private void push(int value) {
+    if (value >= -1 && value <= 5)
+      mv.visitInsn(ICONST_0 + value);
+    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+      mv.visitIntInsn(BIPUSH, value);
+    else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+      mv.visitIntInsn(SIPUSH, value);
+    else
+      mv.visitLdcInsn(value);
+  }
+
+  /**
+   * Helper to box the (unboxed) value of the last expression.
+   */
+  private void box() {
+    if (is(currType, "int"))
+      mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false);
+    else if (is(currType, "double"))
+      mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", false);
+    else
+      mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", false);
+    currUnboxed = false;
+  }
+
+  /**
+   * Helper to unbox the (boxed) value of the last expression, with a
+   * null value error (at the token) if it is null.
+   */
+  private void unbox(Token token) {
+    ensureNotNull(token);
+    if (is(currType, "int"))
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I", false);
+    else if (is(currType, "double"))
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D", false);
+    else
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
+    currUnboxed = true;
+  }
+
+  /**
+   * Compile an expression whose value is used boxed (e.g., stored in
+   * a field).
+   */
+  private void boxed(Expr expr) {
+    expr.accept(this);
+    if (currUnboxed)
+      box();
+  }
+
+  /**
+   * Compile an expression whose value is used unboxed (e.g., an
+   * operand), with a null value error at the token if it is null.
+   */
+  private void unboxed(Expr expr, Token token) {
+    expr.accept(this);
+    if (!currUnboxed)
+      unbox(token);
+  }
+
+  /**
+   * Check if the value of an expression is unboxed (without emitting
+   * its code).
+   */
+  private boolean isUnboxed(Expr expr) {
+    MethodVisitor code = mv;
+    mv = NO_CODE;
+    expr.accept(this);
+    mv = code;
+    return currUnboxed;
+  }
+
+  /**
+   * Helper to pop the value of the last expression.
+   */
+  private void pop() {
+    mv.visitInsn(currUnboxed && is(currType, "double") ? POP2 : POP);
+  }
+
+  /**
+   * Helper to turn the result of a conditional jump into a bool, i.e.,
+   * push 1 if it jumps and 0 otherwise.
+   */
+  private void jumpToBool(int opcode) {
+    Label isTrue = new Label();
+    Label end = new Label();
+    mv.visitJumpInsn(opcode, isTrue);
+    mv.visitInsn(ICONST_0);
+    mv.visitJumpInsn(GOTO, end);
+    mv.visitLabel(isTrue);
+    mv.visitInsn(ICONST_1);
+    mv.visitLabel(end);
+    currType = BOOL_TYPE;
+    currUnboxed = true;
+  }
+
+  /**
+   * Add a local variable in the current environment. It is unboxed if
+   * its type allows it and the analysis hasn't found that it must be
+   * boxed.
+   */
+  private Local addLocal(String name, DataType type, Object definition) {
+    boolean unboxed = isUnboxable(type) && !boxed.contains(definition);
+    Local local = new Local(type, nextSlot, unboxed, definition);
+    nextSlot += unboxed && is(type, "double") ? 2 : 1;
+    varTable.add(name);
+    int index = varTable.get(name);
+    while (locals.size() <= index)
+      locals.add(null);
+    locals.set(index, local);
+    return local;
+  }
+
+  /**
+   * Gives the local variable a name refers to.
+   */
+  private Local local(String name) {
+    return locals.get(varTable.get(name));
+  }
+
+  /**
+   * Helper to load a local variable.
+   */
+  private void load(Local local) {
+    if (!local.unboxed)
+      mv.visitVarInsn(ALOAD, local.slot);
+    else if (is(local.type, "double"))
+      mv.visitVarInsn(DLOAD, local.slot);
+    else
+      mv.visitVarInsn(ILOAD, local.slot);
+    currType = local.type;
+    currUnboxed = local.unboxed;
+  }
+
+  /**
+   * Helper to store the value of the last expression in a local
+   * variable. A boxed value can't be stored in an unboxed variable,
+   * so the analysis then marks the variable as boxed (and the
+   * function is analyzed again).
+   */
+  private void store(Local local) {
+    if (local.unboxed && !currUnboxed) {
+      boxed.add(local.definition);
+      boxedChanged = true;
+      local.unboxed = false;
+    }
+    if (!local.unboxed) {
+      if (currUnboxed)
+        box();
+      mv.visitVarInsn(ASTORE, local.slot);
+    } else if (is(local.type, "double")) {
+      mv.visitVarInsn(DSTORE, local.slot);
+    } else {
+      mv.visitVarInsn(ISTORE, local.slot);
+    }
+  }
+
+  /**
+   * Helper to get an element of an array (on the stack) at the index
+   * of a variable reference.
+   */
+  private void getElement(VarRef ref, DataType arrayType) {
+    unboxed(ref.arrayExpr.get(), ref.varName);
+    mv.visitLdcInsn(where(ref.varName));
+    runtime("load", "([Ljava/lang/Object;I" + STRING_DESC + ")" + OBJECT_DESC);
+    mv.visitTypeInsn(CHECKCAST, className(arrayType.type.lexeme));
+    currType = elementType(arrayType);
+    currUnboxed = false;
+  }
+
+  /**
+   * Helper to get a field of a struct (on the stack) for a variable
+   * reference.
+   */
+  private void getField(VarRef ref) {
+    DataType type = field(ref.structName, ref.varName.lexeme).dataType;
+    ensureNotNull(ref.varName);
+    mv.visitFieldInsn(GETFIELD, structClass(ref.structName), ref.varName.lexeme, descriptor(type));
+    currType = type;
+    currUnboxed = false;
+  }
+
+  /**
+   * Helper to compile the statements of a body, popping the values of
+   * single function call statements (whose returned values aren't
+   * used).
+   */
+  private void body(List<Stmt> stmts) {
+    varTable.pushEnvironment();
+    for (Stmt stmt : stmts) {
+      stmt.accept(this);
+      if (stmt instanceof CallRValue)
+        pop();
+    }
+    varTable.popEnvironment();
+  }
+
+  // ----------------------------------------------------------------------
+  // Visitors for programs, functions, and structs
+  // ----------------------------------------------------------------------
+
+  /**
+   * Compiles the program class and the struct classes.
+   */
+  public void visit(Program node) {
+    for (StructDef s : node.structs)
+      structs.put(s.structName.lexeme, s);
+    for (FunDef f : node.functions)
+      functions.put(f.funName.lexeme, f);
+    for (StructDef s : node.structs)
+      s.accept(this);
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+      @Override
+      protected String getCommonSuperClass(String type1, String type2) {
+        // (only a variable's slot in code where it's out of scope can
+        // merge different types)
+        return OBJECT_TYPE;
+      }
+    };
+    cw.visit(V21, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, PROGRAM_TYPE, null, OBJECT_TYPE, null);
+    MethodVisitor main = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V",
+                                        null, null);
+    main.visitCode();
+    main.visitLdcInsn(Type.getObjectType(PROGRAM_TYPE));
+    main.visitMethodInsn(INVOKESTATIC, RUNTIME_TYPE, "main", "(Ljava/lang/Class;)V", false);
+    main.visitInsn(RETURN);
+    main.visitMaxs(0, 0);
+    main.visitEnd();
+    for (FunDef f : node.functions) {
+      mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, f.funName.lexeme, descriptor(f), null, null);
+      f.accept(this);
+    }
+    cw.visitEnd();
+    classes.put(PROGRAM_TYPE, cw.toByteArray());
+  }
+
+  /**
+   * Compiles a function definition (into the current method). The
+   * function is first analyzed (compiled without emitting code) until
+   * the boxed variables are found.
+   */
+  public void visit(FunDef node) {
+    MethodVisitor code = mv;
+    boxed = Collections.newSetFromMap(new IdentityHashMap<>());
+    do {
+      boxedChanged = false;
+      mv = NO_CODE;
+      compile(node);
+    } while (boxedChanged);
+    mv = code;
+    mv.visitCode();
+    compile(node);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  /**
+   * Helper to compile a function's body.
+   */
+  private void compile(FunDef node) {
+    currFunction = node;
+    varTable = new VarTable();
+    locals = new ArrayList<>();
+    nextSlot = 0;
+    varTable.pushEnvironment();
+    for (VarDef param : node.params) {
+      // (arguments may be null)
+      boxed.add(param);
+      addLocal(param.varName.lexeme, param.dataType, param);
+    }
+    body(node.stmts);
+    boolean hasExplicitReturn = !node.stmts.isEmpty() &&
+        (node.stmts.get(node.stmts.size() - 1) instanceof ReturnStmt);
+    if (!hasExplicitReturn) {
+      if (is(node.returnType, "void")) {
+        mv.visitInsn(RETURN);
+      } else {
+        mv.visitInsn(ACONST_NULL);
+        mv.visitInsn(ARETURN);
+      }
+    }
+    varTable.popEnvironment();
+  }
+
+  /**
+   * Compiles a struct's class.
+   */
+  public void visit(StructDef node) {
+    String name = structClass(node.structName.lexeme);
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    cw.visit(V21, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, OBJECT_TYPE, null);
+    for (VarDef field : node.fields)
+      cw.visitField(ACC_PUBLIC, field.varName.lexeme, descriptor(field.dataType), null, null)
+        .visitEnd();
+    MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    init.visitCode();
+    init.visitVarInsn(ALOAD, 0);
+    init.visitMethodInsn(INVOKESPECIAL, OBJECT_TYPE, "<init>", "()V", false);
+    init.visitInsn(RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+    cw.visitEnd();
+    classes.put(name, cw.toByteArray());
+  }
+
+  /**
+   * The visitor function for a variable definition, but this visitor
+   * function is not used in compilation.
+   */
+  public void visit(VarDef node) {
+    // nothing to do here
+  }
+
+  /**
+   * The visitor function for data types, but not used in compilation.
+   */
+  public void visit(DataType node) {
+    // nothing to do here
+  }
+
+  // ----------------------------------------------------------------------
+  // Statements
+  // ----------------------------------------------------------------------
+
+  public void visit(ReturnStmt node) {
+    boolean isVoid = is(currFunction.returnType, "void");
+    if (node.expr != null && isVoid) {
+      node.expr.accept(this);
+      pop();
+    } else if (node.expr != null) {
+      boxed(node.expr);
+    } else if (!isVoid) {
+      mv.visitInsn(ACONST_NULL);
+    }
+    mv.visitInsn(isVoid ? RETURN : ARETURN);
+  }
+
+  public void visit(VarStmt node) {
+    if (node.expr.isPresent()) {
+      node.expr.get().accept(this);
+    } else {
+      mv.visitInsn(ACONST_NULL);
+      currType = null;
+      currUnboxed = false;
+    }
+    // (the variable is in scope after its initial value)
+    DataType type = node.dataType.isPresent() ? node.dataType.get() : currType;
+    store(addLocal(node.varName.lexeme, type, node));
+  }
+
+  public void visit(AssignStmt node) {
+    VarRef first = node.lvalue.get(0);
+    Local base = local(first.varName.lexeme);
+    if (node.lvalue.size() == 1 && !first.arrayExpr.isPresent()) {
+      node.expr.accept(this);
+      store(base);
+      return;
+    }
+    if (node.lvalue.size() == 1) {
+      load(base);
+      unboxed(first.arrayExpr.get(), first.varName);
+      boxed(node.expr);
+      mv.visitLdcInsn(where(first.varName));
+      runtime("store", "([Ljava/lang/Object;I" + OBJECT_DESC + STRING_DESC + ")V");
+      return;
+    }
+    // the value is computed before the path (the same as the VM code)
+    int value = nextSlot++;
+    boxed(node.expr);
+    mv.visitVarInsn(ASTORE, value);
+    load(base);
+    if (first.arrayExpr.isPresent())
+      getElement(first, base.type);
+    for (int i = 1; i < node.lvalue.size() - 1; i++) {
+      VarRef ref = node.lvalue.get(i);
+      DataType type = field(ref.structName, ref.varName.lexeme).dataType;
+      getField(ref);
+      if (ref.arrayExpr.isPresent())
+        getElement(ref, type);
+    }
+    VarRef last = node.lvalue.get(node.lvalue.size() - 1);
+    DataType type = field(last.structName, last.varName.lexeme).dataType;
+    if (last.arrayExpr.isPresent()) {
+      getField(last);
+      unboxed(last.arrayExpr.get(), last.varName);
+      mv.visitVarInsn(ALOAD, value);
+      mv.visitLdcInsn(where(last.varName));
+      runtime("store", "([Ljava/lang/Object;I" + OBJECT_DESC + STRING_DESC + ")V");
+    } else {
+      ensureNotNull(last.varName);
+      mv.visitVarInsn(ALOAD, value);
+      mv.visitFieldInsn(PUTFIELD, structClass(last.structName), last.varName.lexeme,
+                        descriptor(type));
+    }
+  }
+
+  public void visit(WhileStmt node) {
+    Label condition = new Label();
+    Label end = new Label();
+    mv.visitLabel(condition);
+    unboxed(node.condition, token(node.condition));
+    mv.visitJumpInsn(IFEQ, end);
+    body(node.stmts);
+    mv.visitJumpInsn(GOTO, condition);
+    mv.visitLabel(end);
+  }
+
+  public void visit(ForStmt node) {
+    varTable.pushEnvironment();
+    node.fromExpr.accept(this);
+    Local var = addLocal(node.varName.lexeme, INT_TYPE, node);
+    store(var);
+    Label condition = new Label();
+    Label end = new Label();
+    mv.visitLabel(condition);
+    load(var);
+    if (!currUnboxed)
+      unbox(node.varName);
+    unboxed(node.toExpr, node.varName);
+    mv.visitJumpInsn(IF_ICMPGT, end);
+    body(node.stmts);
+    load(var);
+    if (!currUnboxed)
+      unbox(node.varName);
+    mv.visitInsn(ICONST_1);
+    mv.visitInsn(IADD);
+    store(var);
+    mv.visitJumpInsn(GOTO, condition);
+    mv.visitLabel(end);
+    varTable.popEnvironment();
+  }
+
+  public void visit(IfStmt node) {
+    Label otherwise = new Label();
+    Label end = new Label();
+    unboxed(node.condition, token(node.condition));
+    mv.visitJumpInsn(IFEQ, otherwise);
+    body(node.ifStmts);
+    mv.visitJumpInsn(GOTO, end);
+    mv.visitLabel(otherwise);
+    if (node.elseIf.isPresent())
+      node.elseIf.get().accept(this);
+    else if (node.elseStmts.isPresent())
+      body(node.elseStmts.get());
+    mv.visitLabel(end);
+  }
+
+  // ----------------------------------------------------------------------
+  // Expressions
+  // ----------------------------------------------------------------------
+
+  public void visit(BasicExpr node) {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(UnaryExpr node) {
+    // (not is the only unary operator)
+    unboxed(node.expr, node.unaryOp);
+    mv.visitInsn(ICONST_1);
+    mv.visitInsn(IXOR);
+    currType = BOOL_TYPE;
+    currUnboxed = true;
+  }
+
+  /**
+   * Helper to compile a short-circuit and/or (see CodeGenerator). The
+   * value is unboxed if the right operand's is (otherwise it's boxed
+   * and may be null, the same as for the VM code).
+   */
+  private void shortCircuit(BinaryExpr node) {
+    boolean isAnd = node.binaryOp.lexeme.equals("and");
+    boolean unboxed = isUnboxed(node.rhs);
+    Label skip = new Label();
+    Label end = new Label();
+    unboxed(node.lhs, node.binaryOp);
+    mv.visitJumpInsn(IFEQ, skip);
+    if (isAnd)
+      node.rhs.accept(this);
+    else if (unboxed)
+      mv.visitInsn(ICONST_1);
+    else
+      mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;");
+    mv.visitJumpInsn(GOTO, end);
+    mv.visitLabel(skip);
+    if (!isAnd)
+      node.rhs.accept(this);
+    else if (unboxed)
+      mv.visitInsn(ICONST_0);
+    else
+      mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
+    mv.visitLabel(end);
+    currType = BOOL_TYPE;
+    currUnboxed = unboxed;
+  }
+
+  /**
+   * Helper to compile == and != (where values are equal the same as
+   * for the VM, i.e., by equals, and null is only equal to null).
+   */
+  private void equality(BinaryExpr node) {
+    boolean isEqual = node.binaryOp.lexeme.equals("==");
+    if (isUnboxed(node.lhs) && isUnboxed(node.rhs)) {
+      node.lhs.accept(this);
+      node.rhs.accept(this);
+      if (is(currType, "double")) {
+        // (Double.compare is 0 if and only if Double.equals is true)
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "compare", "(DD)I", false);
+        jumpToBool(isEqual ? IFEQ : IFNE);
+      } else {
+        jumpToBool(isEqual ? IF_ICMPEQ : IF_ICMPNE);
+      }
+      return;
+    }
+    boxed(node.lhs);
+    boxed(node.rhs);
+    mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "equals",
+                       "(" + OBJECT_DESC + OBJECT_DESC + ")Z", false);
+    if (!isEqual) {
+      mv.visitInsn(ICONST_1);
+      mv.visitInsn(IXOR);
+    }
+    currType = BOOL_TYPE;
+    currUnboxed = true;
+  }
+
+  public void visit(BinaryExpr node) {
+    String op = node.binaryOp.lexeme;
+    Token token = node.binaryOp;
+    if (op.equals("and") || op.equals("or")) {
+      if (shortCircuit) {
+        shortCircuit(node);
+        return;
+      }
+      unboxed(node.lhs, token);
+      unboxed(node.rhs, token);
+      mv.visitInsn(op.equals("and") ? IAND : IOR);
+      currType = BOOL_TYPE;
+      currUnboxed = true;
+      return;
+    }
+    if (op.equals("==") || op.equals("!=")) {
+      equality(node);
+      return;
+    }
+    DataType type = node.operandType;
+    // (> and >= are < and <= with the operands swapped, and evaluate
+    // the right operand first, the same as the VM code)
+    boolean swap = op.equals(">") || op.equals(">=");
+    Expr first = swap ? node.rhs : node.lhs;
+    Expr second = swap ? node.lhs : node.rhs;
+    boolean isLess = op.equals("<") || op.equals(">");
+    boolean isCompare = isLess || op.equals("<=") || op.equals(">=");
+    if (is(type, "string")) {
+      boxed(first);
+      ensureNotNull(token);
+      boxed(second);
+      ensureNotNull(token);
+      if (isCompare) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "compareTo", "(" + STRING_DESC + ")I",
+                           false);
+        jumpToBool(isLess ? IFLT : IFLE);
+      } else {
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "concat",
+                           "(" + STRING_DESC + ")" + STRING_DESC, false);
+        currType = STRING_TYPE;
+        currUnboxed = false;
+      }
+      return;
+    }
+    boolean isDouble = is(type, "double");
+    unboxed(first, token);
+    unboxed(second, token);
+    if (isCompare) {
+      if (isDouble) {
+        // (dcmpg is 1 if either is NaN, i.e., not less or equal)
+        mv.visitInsn(DCMPG);
+        jumpToBool(isLess ? IFLT : IFLE);
+      } else {
+        jumpToBool(isLess ? IF_ICMPLT : IF_ICMPLE);
+      }
+      return;
+    }
+    if (op.equals("/")) {
+      Label nonZero = new Label();
+      if (isDouble) {
+        mv.visitInsn(DUP2);
+        mv.visitInsn(DCONST_0);
+        mv.visitInsn(DCMPL);
+      } else {
+        mv.visitInsn(DUP);
+      }
+      mv.visitJumpInsn(IFNE, nonZero);
+      error("division by zero error", token);
+      mv.visitLabel(nonZero);
+    }
+    switch (op) {
+      case "+": mv.visitInsn(isDouble ? DADD : IADD); break;
+      case "-": mv.visitInsn(isDouble ? DSUB : ISUB); break;
+      case "*": mv.visitInsn(isDouble ? DMUL : IMUL); break;
+      default: mv.visitInsn(isDouble ? DDIV : IDIV); break;
+    }
+    currType = isDouble ? DOUBLE_TYPE : INT_TYPE;
+    currUnboxed = true;
+  }
+
+  /**
+   * Helper to compile a built-in function call.
+   *
+   * @return false if the function isn't a built-in function
+   */
+  private boolean builtInFunction(CallRValue node) {
+    String name = node.funName.lexeme;
+    Token token = node.funName;
+    if (name.equals("print") || name.equals("println")) {
+      node.args.get(0).accept(this);
+      String desc = OBJECT_DESC;
+      if (currUnboxed)
+        desc = is(currType, "int") ? "I" : is(currType, "double") ? "D" : "Z";
+      runtime("print", "(" + desc + ")V");
+      if (name.equals("println")) {
+        mv.visitLdcInsn("\n");
+        runtime("print", "(" + OBJECT_DESC + ")V");
+      }
+      mv.visitInsn(ACONST_NULL);
+      currType = null;
+      currUnboxed = false;
+    } else if (name.equals("readln")) {
+      mv.visitLdcInsn(where(token));
+      runtime("readln", "(" + STRING_DESC + ")" + STRING_DESC);
+      currType = STRING_TYPE;
+      currUnboxed = false;
+    } else if (name.equals("size")) {
+      boxed(node.args.get(0));
+      ensureNotNull(token);
+      if (currType.isArray)
+        mv.visitInsn(ARRAYLENGTH);
+      else
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+      currType = INT_TYPE;
+      currUnboxed = true;
+    } else if (name.equals("get")) {
+      // (the string or array is evaluated first, the same as the VM code)
+      boxed(node.args.get(1));
+      DataType container = currType;
+      unboxed(node.args.get(0), token);
+      mv.visitLdcInsn(where(token));
+      if (container.isArray) {
+        runtime("load", "([Ljava/lang/Object;I" + STRING_DESC + ")" + OBJECT_DESC);
+        mv.visitTypeInsn(CHECKCAST, className(container.type.lexeme));
+        currType = elementType(container);
+      } else {
+        runtime("charAt", "(" + STRING_DESC + "I" + STRING_DESC + ")" + STRING_DESC);
+        currType = STRING_TYPE;
+      }
+      currUnboxed = false;
+    } else if (name.equals("int_val")) {
+      Expr arg = node.args.get(0);
+      isUnboxed(arg); // (for the argument's type)
+      if (is(currType, "double")) {
+        unboxed(arg, token);
+        mv.visitInsn(D2I);
+      } else {
+        boxed(arg);
+        mv.visitLdcInsn(where(token));
+        runtime("toInt", "(" + STRING_DESC + STRING_DESC + ")I");
+      }
+      currType = INT_TYPE;
+      currUnboxed = true;
+    } else if (name.equals("dbl_val")) {
+      Expr arg = node.args.get(0);
+      isUnboxed(arg); // (for the argument's type)
+      if (is(currType, "int")) {
+        unboxed(arg, token);
+        mv.visitInsn(I2D);
+      } else {
+        boxed(arg);
+        mv.visitLdcInsn(where(token));
+        runtime("toDouble", "(" + STRING_DESC + STRING_DESC + ")D");
+      }
+      currType = DOUBLE_TYPE;
+      currUnboxed = true;
+    } else if (name.equals("str_val")) {
+      unboxed(node.args.get(0), token);
+      String desc = is(currType, "int") ? "I" : "D";
+      mv.visitMethodInsn(INVOKESTATIC, "java/lang/String", "valueOf", "(" + desc + ")" + STRING_DESC,
+                         false);
+      currType = STRING_TYPE;
+      currUnboxed = false;
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  public void visit(CallRValue node) {
+    if (builtInFunction(node))
+      return;
+    FunDef f = functions.get(node.funName.lexeme);
+    for (Expr arg : node.args)
+      boxed(arg);
+    mv.visitMethodInsn(INVOKESTATIC, PROGRAM_TYPE, f.funName.lexeme, descriptor(f), false);
+    if (is(f.returnType, "void")) {
+      mv.visitInsn(ACONST_NULL);
+      currType = null;
+    } else {
+      currType = f.returnType;
+    }
+    currUnboxed = false;
+  }
+
+  public void visit(SimpleRValue node) {
+    TokenType type = node.literal.tokenType;
+    String lexeme = node.literal.lexeme;
+    currUnboxed = true;
+    if (type == TokenType.INT_VAL) {
+      push(Integer.parseInt(lexeme));
+      currType = INT_TYPE;
+    } else if (type == TokenType.DOUBLE_VAL) {
+      mv.visitLdcInsn(Double.parseDouble(lexeme));
+      currType = DOUBLE_TYPE;
+    } else if (type == TokenType.BOOL_VAL) {
+      mv.visitInsn(Boolean.parseBoolean(lexeme) ? ICONST_1 : ICONST_0);
+      currType = BOOL_TYPE;
+    } else if (type == TokenType.STRING_VAL) {
+      lexeme = lexeme.replace("\\n", "\n");
+      lexeme = lexeme.replace("\\t", "\t");
+      lexeme = lexeme.replace("\\r", "\r");
+      mv.visitLdcInsn(lexeme);
+      currType = STRING_TYPE;
+      currUnboxed = false;
+    } else {
+      mv.visitInsn(ACONST_NULL);
+      currType = null;
+      currUnboxed = false;
+    }
+  }
+
+  public void visit(NewStructRValue node) {
+    String name = node.structName.lexeme;
+    String owner = structClass(name);
+    StructDef structDef = structs.get(name);
+    mv.visitTypeInsn(NEW, owner);
+    mv.visitInsn(DUP);
+    mv.visitMethodInsn(INVOKESPECIAL, owner, "<init>", "()V", false);
+    for (int i = 0; i < node.args.size(); i++) {
+      VarDef field = structDef.fields.get(i);
+      mv.visitInsn(DUP);
+      boxed(node.args.get(i));
+      mv.visitFieldInsn(PUTFIELD, owner, field.varName.lexeme, descriptor(field.dataType));
+    }
+    currType = new DataType();
+    currType.type = node.structName;
+    currUnboxed = false;
+  }
+
+  public void visit(NewArrayRValue node) {
+    unboxed(node.arrayExpr, node.type);
+    mv.visitLdcInsn(where(node.type));
+    runtime("arrayLength", "(I" + STRING_DESC + ")I");
+    mv.visitTypeInsn(ANEWARRAY, className(node.type.lexeme));
+    currType = new DataType();
+    currType.isArray = true;
+    currType.type = node.type;
+    currUnboxed = false;
+  }
+
+  public void visit(VarRValue node) {
+    VarRef first = node.path.get(0);
+    Local base = local(first.varName.lexeme);
+    load(base);
+    if (first.arrayExpr.isPresent())
+      getElement(first, base.type);
+    for (int i = 1; i < node.path.size(); i++) {
+      VarRef ref = node.path.get(i);
+      DataType type = field(ref.structName, ref.varName.lexeme).dataType;
+      getField(ref);
+      if (ref.arrayExpr.isPresent())
+        getElement(ref, type);
+    }
+  }
+
+}
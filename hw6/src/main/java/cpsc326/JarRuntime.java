@@ -0,0 +1,267 @@
+/**
+ * CPSC 326, Spring 2025
+ * Run-time support for MyPL programs compiled to JVM classes.
+ */
+
+package cpsc326;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+/**
+ * The helpers the classes of a compiled program (see JarCompiler)
+ * call at run time for what isn't a few JVM instructions: buffered
+ * output, input, conversions, array accesses, and errors. Errors are
+ * reported as VM errors (the same messages as the VM's), but with the
+ * function and source position instead of the instruction. A
+ * compiled program's jar holds this class and MyPLException, but none
+ * of the interpreter.
+ */
+public class JarRuntime {
+
+  /* the output buffer is flushed once it holds this many characters */
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+  /* the stack size (in bytes) of the thread running the program: the
+     compiled functions use the JVM's call stack, so this limits the
+     recursion depth (the VM's call stack is only limited by the heap) */
+  private static final long STACK_SIZE = 1L << 30;
+
+  /* program output not yet printed to standard output */
+  private static StringBuilder output = new StringBuilder();
+
+  /* program input (for readln) */
+  private static BufferedReader input;
+
+  /**
+   * Run a compiled program from its jar's main method, printing the
+   * error (and exiting with status 1) if it fails.
+   *
+   * @param program the compiled program's class
+   */
+  public static void main(Class<?> program) {
+    try {
+      run(program);
+    } catch (MyPLException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Run a compiled program, i.e., call its main function.
+   *
+   * @param program the compiled program's class
+   */
+  public static void run(Class<?> program) {
+    MethodHandle main;
+    try {
+      main = MethodHandles.publicLookup().findStatic(program, "main",
+                                                      MethodType.methodType(void.class));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException("not a compiled program: " + program, e);
+    }
+    output.setLength(0);
+    input = null;
+    Throwable[] failure = new Throwable[1];
+    Thread thread = new Thread(null, () -> {
+      try {
+        main.invokeExact();
+      } catch (Throwable t) {
+        failure[0] = t;
+      }
+    }, "main", STACK_SIZE);
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // print what the program wrote before it ended (or failed)
+    flush();
+    if (failure[0] instanceof StackOverflowError)
+      MyPLException.vmError("stack overflow error");
+    else if (failure[0] instanceof RuntimeException)
+      throw (RuntimeException) failure[0];
+    else if (failure[0] instanceof Error)
+      throw (Error) failure[0];
+    else if (failure[0] != null)
+      throw new RuntimeException(failure[0]);
+  }
+
+  // ----------------------------------------------------------------------
+  // Errors
+  // ----------------------------------------------------------------------
+
+  /**
+   * Create and throw an error. Returns the error (which is never
+   * reached) so compiled code can throw it and the JVM verifier knows
+   * the code after the call isn't reached.
+   *
+   * @param msg the error message
+   * @param where the function and source position of the error
+   */
+  public static RuntimeException error(String msg, String where) {
+    MyPLException.vmError(msg + " in " + where);
+    return null;
+  }
+
+  /**
+   * Create and throw a null value error.
+   */
+  public static RuntimeException nullError(String where) {
+    return error("null value error", where);
+  }
+
+  // ----------------------------------------------------------------------
+  // Output and input
+  // ----------------------------------------------------------------------
+
+  /**
+   * Helpers to write a value to the (buffered) output.
+   */
+  public static void print(int value) {
+    output.append(value);
+    flushIfFull();
+  }
+
+  public static void print(double value) {
+    output.append(value);
+    flushIfFull();
+  }
+
+  public static void print(boolean value) {
+    output.append(value);
+    flushIfFull();
+  }
+
+  public static void print(Object value) {
+    output.append(value);
+    flushIfFull();
+  }
+
+  /**
+   * Print the buffered output.
+   */
+  public static void flush() {
+    if (output.length() > 0) {
+      System.out.print(output);
+      output.setLength(0);
+    }
+    System.out.flush();
+  }
+
+  /**
+   * Helper to print the buffered output once the buffer is full.
+   */
+  private static void flushIfFull() {
+    if (output.length() >= OUTPUT_BUFFER_SIZE)
+      flush();
+  }
+
+  /**
+   * Read the next input line.
+   */
+  public static String readln(String where) {
+    flush(); // e.g., so a prompt shows before waiting for input
+    try {
+      if (input == null)
+        input = new BufferedReader(new InputStreamReader(System.in));
+      String line = input.readLine();
+      if (line == null)
+        throw error("read operation failed: end of input", where);
+      return line;
+    } catch (IOException e) {
+      throw error("read operation failed: " + e.getMessage(), where);
+    }
+  }
+
+  // ----------------------------------------------------------------------
+  // Strings and conversions
+  // ----------------------------------------------------------------------
+
+  /**
+   * Get the character of a string (as a string).
+   */
+  public static String charAt(String s, int i, String where) {
+    if (s == null)
+      throw nullError(where);
+    if (i < 0 || i >= s.length())
+      throw error("string index out of bounds: " + i, where);
+    return String.valueOf(s.charAt(i));
+  }
+
+  /**
+   * Convert a string to an int.
+   */
+  public static int toInt(String value, String where) {
+    if (value == null)
+      throw nullError(where);
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw error("cannot convert string to int: " + value, where);
+    }
+  }
+
+  /**
+   * Convert a string to a double.
+   */
+  public static double toDouble(String value, String where) {
+    if (value == null)
+      throw nullError(where);
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw error("cannot convert string to double: " + value, where);
+    }
+  }
+
+  // ----------------------------------------------------------------------
+  // Arrays
+  // ----------------------------------------------------------------------
+
+  /**
+   * Check the length of a new array.
+   *
+   * @return the length
+   */
+  public static int arrayLength(int length, String where) {
+    if (length < 0)
+      throw error("array length cannot be negative: " + length, where);
+    return length;
+  }
+
+  /**
+   * Get an array element.
+   */
+  public static Object load(Object[] array, int i, String where) {
+    checkIndex(array, i, where);
+    return array[i];
+  }
+
+  /**
+   * Set an array element.
+   */
+  public static void store(Object[] array, int i, Object value, String where) {
+    checkIndex(array, i, where);
+    array[i] = value;
+  }
+
+  /**
+   * Helper to ensure an array isn't null and an index is in its
+   * bounds.
+   */
+  private static void checkIndex(Object[] array, int i, String where) {
+    if (array == null)
+      throw nullError(where);
+    if (i < 0 || i >= array.length)
+      throw error("array index out of bounds: " + i, where);
+  }
+
+}
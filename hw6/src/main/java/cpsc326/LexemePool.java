@@ -0,0 +1,159 @@
+/**
+ * CPSC 326, Spring 2025
+ * Interning pool for token lexemes.
+ */
+
+package cpsc326;
+
+import java.util.Arrays;
+
+
+/**
+ * Gives each distinct identifier, keyword, and symbol lexeme one
+ * canonical String instance and an integer symbol id. Lexemes are
+ * looked up directly from the lexer's character array, so a repeated
+ * name does not allocate a new string. Equal lexemes from the same
+ * pool are the same instance, so equals() checks between them
+ * short-circuit on identity. (The later stages still look names up by
+ * string, since they also see names from other pools and generated
+ * names; the symbol ids are only used within the pool.)
+ */
+public class LexemePool {
+
+  /* the initial (power of two) size of the hash table */
+  private static final int INITIAL_CAPACITY = 256;
+
+  /* open addressing hash table of symbol ids (-1 for an empty slot) */
+  private int[] table = new int[INITIAL_CAPACITY];
+
+  /* the canonical lexeme of each symbol id */
+  private String[] names = new String[INITIAL_CAPACITY / 2];
+
+  /* the hash of each symbol id's lexeme */
+  private int[] hashes = new int[INITIAL_CAPACITY / 2];
+
+  /* the number of symbols in the pool */
+  private int size = 0;
+
+  /**
+   * Create an empty pool.
+   */
+  public LexemePool() {
+    Arrays.fill(table, -1);
+  }
+
+  /**
+   * Return the symbol id of the given characters, adding them to the
+   * pool if they are new.
+   *
+   * @param chars the character array holding the lexeme
+   * @param start the index of the first character of the lexeme
+   * @param length the number of characters in the lexeme
+   * @return the symbol id
+   */
+  public int symbol(char[] chars, int start, int length) {
+    int hash = 0;
+    for (int i = start; i < start + length; ++i)
+      hash = 31 * hash + chars[i];
+    int mask = table.length - 1;
+    int slot = hash & mask;
+    while (table[slot] != -1) {
+      int id = table[slot];
+      if (hashes[id] == hash && matches(names[id], chars, start, length))
+        return id;
+      slot = (slot + 1) & mask;
+    }
+    String name = new String(chars, start, length);
+    return add(name, hash, slot);
+  }
+
+  /**
+   * Return the symbol id of the given lexeme, adding it to the pool if
+   * it is new.
+   */
+  public int symbol(String lexeme) {
+    return symbol(lexeme.toCharArray(), 0, lexeme.length());
+  }
+
+  /**
+   * Return the canonical instance of the given characters.
+   */
+  public String intern(char[] chars, int start, int length) {
+    int id = symbol(chars, start, length); // (may grow names)
+    return names[id];
+  }
+
+  /**
+   * Return the canonical instance of the given lexeme.
+   */
+  public String intern(String lexeme) {
+    int id = symbol(lexeme); // (may grow names)
+    return names[id];
+  }
+
+  /**
+   * Return the canonical lexeme of a symbol id.
+   */
+  public String name(int symbol) {
+    return names[symbol];
+  }
+
+  /**
+   * Gives the number of symbols in the pool.
+   */
+  public int size() {
+    return size;
+  }
+
+  // ----------------------------------------------------------------------
+  // Helper functions
+  // ----------------------------------------------------------------------
+
+  /**
+   * Check if the name is equal to the given characters.
+   */
+  private static boolean matches(String name, char[] chars, int start, int length) {
+    if (name.length() != length)
+      return false;
+    for (int i = 0; i < length; ++i)
+      if (name.charAt(i) != chars[start + i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Add a new symbol in the given (empty) table slot, growing the
+   * table if it becomes half full.
+   *
+   * @return the new symbol id
+   */
+  private int add(String name, int hash, int slot) {
+    int id = size++;
+    if (id == names.length) {
+      names = Arrays.copyOf(names, names.length * 2);
+      hashes = Arrays.copyOf(hashes, hashes.length * 2);
+    }
+    names[id] = name;
+    hashes[id] = hash;
+    table[slot] = id;
+    if (size * 2 > table.length)
+      rehash();
+    return id;
+  }
+
+  /**
+   * Double the hash table and reinsert each symbol.
+   */
+  private void rehash() {
+    table = new int[table.length * 2];
+    Arrays.fill(table, -1);
+    int mask = table.length - 1;
+    for (int id = 0; id < size; ++id) {
+      int slot = hashes[id] & mask;
+      while (table[slot] != -1)
+        slot = (slot + 1) & mask;
+      table[slot] = id;
+    }
+  }
+
+}
@@ -7,10 +7,11 @@
 
 package cpsc326;
 
-import java.io.BufferedReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * The Lexer class takes an input stream containing mypl source code
@@ -18,41 +19,79 @@ import java.io.IOException;
  */
 public class Lexer {
 
-  private BufferedReader buffer; // handle to the input stream
+  private char[] chars; // the source code characters
+  private int pos; // index of the next character to read
+  private int end; // index one past the last character
+  private int tokenStart; // index of the current token's first character
+  private LexemePool pool = new LexemePool(); // canonical lexemes
   private int line = 1; // current line number
   private int column = 0; // current column number
   private boolean empty_input = false;
 
   /**
-   * Creates a new Lexer object out of an input stream.
+   * Creates a new Lexer object out of an input stream. The whole
+   * stream is read and decoded (as UTF-8, like source files) up front.
    */
   public Lexer(InputStream input) {
-    buffer = new BufferedReader(new InputStreamReader(input));
-    // Check if the input is empty when Lexer object is created
     try {
-      buffer.mark(1);
-      if (buffer.read() == -1) {
-        empty_input = true; // set flag
-      }
-      buffer.reset(); // reset to the marked position
+      ByteBuffer bytes = ByteBuffer.wrap(input.readAllBytes());
+      init(StandardCharsets.UTF_8.decode(bytes));
     } catch (IOException e) {
       throw new RuntimeException("Error reading input stream", e);
     }
   }
 
+  /**
+   * Creates a new Lexer object over the remaining characters of a
+   * buffer (e.g., a decoded memory-mapped file).
+   */
+  public Lexer(CharBuffer source) {
+    init(source);
+  }
+
+  /**
+   * Creates a new Lexer object over the remaining characters of a
+   * buffer that start at the given position of a larger source (so
+   * tokens get the same lines and columns as in the whole source).
+   * 
+   * @param source The characters to lex
+   * @param line The line of the first character
+   * @param column The column of the first character
+   */
+  public Lexer(CharBuffer source, int line, int column) {
+    init(source);
+    this.line = line;
+    this.column = column - 1;
+  }
+
+  /**
+   * Set up the character array to scan, reusing the buffer's backing
+   * array when it has one.
+   */
+  private void init(CharBuffer source) {
+    if (source.hasArray()) {
+      chars = source.array();
+      pos = source.arrayOffset() + source.position();
+      end = source.arrayOffset() + source.limit();
+    } else {
+      chars = new char[source.remaining()];
+      source.duplicate().get(chars);
+      pos = 0;
+      end = chars.length;
+    }
+    tokenStart = pos;
+    // Check if the input is empty when Lexer object is created
+    empty_input = pos == end;
+  }
+
   /**
    * Helper function to read a single character from the input stream.
    * 
    * @return A single character
    */
   private char read() {
-    try {
-      // I found it easier to track the column manually when calling read
-      return (char) buffer.read();
-    } catch (IOException e) {
-      error("read error", line, column + 1);
-    }
-    return (char) -1;
+    // I found it easier to track the column manually when calling read
+    return pos < end ? chars[pos++] : (char) -1;
   }
 
   /**
@@ -61,16 +100,50 @@ public class Lexer {
    * @return A single character
    */
   private char peek() {
-    int ch = -1;
-    try {
-      buffer.mark(1);
-      ch = (char) buffer.read();
-      buffer.reset();
-      return (char) ch;
-    } catch (IOException e) {
-      error("read error", line, column + 1);
-    }
-    return (char) -1;
+    return pos < end ? chars[pos] : (char) -1;
+  }
+
+  /**
+   * Helper function to create a lexeme from the characters read since
+   * the given index.
+   * 
+   * @return The lexeme
+   */
+  private String lexeme(int start) {
+    return new String(chars, start, pos - start);
+  }
+
+  /**
+   * Helper function to get the canonical (interned) lexeme of the
+   * characters read since the given index.
+   * 
+   * @return The lexeme
+   */
+  private String symbol(int start) {
+    return pool.intern(chars, start, pos - start);
+  }
+
+  /**
+   * Returns the pool holding the canonical identifier, keyword, and
+   * symbol lexemes.
+   */
+  public LexemePool pool() {
+    return pool;
+  }
+
+  /**
+   * Lexes the remaining input into a packed token array.
+   * 
+   * @return The tokens up to and including the end-of-stream token.
+   */
+  public PackedTokens tokenize() {
+    PackedTokens tokens = new PackedTokens(chars, pool);
+    Token t = null;
+    do {
+      t = nextToken();
+      tokens.add(t.tokenType, tokenStart, pos - tokenStart, t.line, t.column);
+    } while (t.tokenType != TokenType.EOS);
+    return tokens;
   }
 
   /**
@@ -180,6 +253,7 @@ public class Lexer {
     }
 
     // Check for comments
+    tokenStart = pos;
     if (isSymbol(peek(), '#')) {
       int startLine = line;
       int startColumn = column + 1;
@@ -187,13 +261,14 @@ public class Lexer {
       read();
       column++;
 
-      StringBuilder commentContent = new StringBuilder();
+      int start = pos;
 
       // Read the entire line as a comment until a newline or EOF is encountered
       while (!isSymbol(peek(), '\n') && !isEOF(peek())) {
-        commentContent.append(read());
+        read();
         column++;
       }
+      String commentContent = lexeme(start);
 
       // Move to the next line if newline is encountered
       if (isSymbol(peek(), '\n')) {
@@ -203,7 +278,7 @@ public class Lexer {
       }
       
 
-      String lexeme = " " + commentContent.toString().trim();
+      String lexeme = " " + commentContent.trim();
 
       // Return a COMMENT token with the trimmed content
       return new Token(TokenType.COMMENT, lexeme, startLine, startColumn);
@@ -222,6 +297,7 @@ public class Lexer {
     }
 
     // check for end of file
+    tokenStart = pos;
     if (isEOF(peek())) {
       read();
       return new Token(TokenType.EOS, "end-of-stream", line, column + 1);
@@ -231,31 +307,31 @@ public class Lexer {
 
       // check for single char symbols
       if (isSymbol(curr, ',')) {
-        return new Token(TokenType.COMMA, "" + curr, line, column);
+        return new Token(TokenType.COMMA, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, '.')) {
-        return new Token(TokenType.DOT, "" + curr, line, column);
+        return new Token(TokenType.DOT, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, '+')) {
-        return new Token(TokenType.PLUS, "" + curr, line, column);
+        return new Token(TokenType.PLUS, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, '-')) {
-        return new Token(TokenType.MINUS, "" + curr, line, column);
+        return new Token(TokenType.MINUS, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, ':')) {
-        return new Token(TokenType.COLON, "" + curr, line, column);
+        return new Token(TokenType.COLON, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, '*')) {
-        return new Token(TokenType.TIMES, "" + curr, line, column);
+        return new Token(TokenType.TIMES, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, '/')) {
-        return new Token(TokenType.DIVIDE, "" + curr, line, column);
+        return new Token(TokenType.DIVIDE, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, '{')) {
-        return new Token(TokenType.LBRACE, "" + curr, line, column);
+        return new Token(TokenType.LBRACE, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, '}')) {
-        return new Token(TokenType.RBRACE, "" + curr, line, column);
+        return new Token(TokenType.RBRACE, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, '(')) {
-        return new Token(TokenType.LPAREN, "" + curr, line, column);
+        return new Token(TokenType.LPAREN, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, ')')) {
-        return new Token(TokenType.RPAREN, "" + curr, line, column);
+        return new Token(TokenType.RPAREN, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, '[')) {
-        return new Token(TokenType.LBRACKET, "" + curr, line, column);
+        return new Token(TokenType.LBRACKET, symbol(pos - 1), line, column);
       } else if (isSymbol(curr, ']')) {
-        return new Token(TokenType.RBRACKET, "" + curr, line, column);
+        return new Token(TokenType.RBRACKET, symbol(pos - 1), line, column);
       }
 
       // check for comparator symbols
@@ -265,9 +341,9 @@ public class Lexer {
 
         // if symbol after ! is =, return NOT_EQUAL
         if (isSymbol(peek(), '=')) {
-          char next = read();
+          read();
           column += 1;
-          return new Token(TokenType.NOT_EQUAL, "" + curr + next, start_line, start_column);
+          return new Token(TokenType.NOT_EQUAL, symbol(pos - 2), start_line, start_column);
 
         } else {
           error("expecting !=", start_line, start_column);
@@ -277,45 +353,45 @@ public class Lexer {
         int start_column = column - 1;
 
         if (isSymbol(peek(), '=')) {
-          char next = read();
+          read();
           column += 1;
-          return new Token(TokenType.EQUAL, "" + curr + next, start_line, start_column + 1);
+          return new Token(TokenType.EQUAL, symbol(pos - 2), start_line, start_column + 1);
 
         } else {
-          return new Token(TokenType.ASSIGN, "" + curr, start_line, start_column + 1);
+          return new Token(TokenType.ASSIGN, symbol(pos - 1), start_line, start_column + 1);
         }
       } else if (isSymbol(curr, '>')) {
         int start_line = line;
         int start_column = column - 1;
 
         if (isSymbol(peek(), '=')) {
-          char next = read();
+          read();
           column += 1;
 
-          return new Token(TokenType.GREATER_EQ, "" + curr + next, start_line, start_column + 1);
+          return new Token(TokenType.GREATER_EQ, symbol(pos - 2), start_line, start_column + 1);
         } else {
-          return new Token(TokenType.GREATER, "" + curr, start_line, start_column + 1);
+          return new Token(TokenType.GREATER, symbol(pos - 1), start_line, start_column + 1);
         }
       } else if (isSymbol(curr, '<')) {
         int start_line = line;
         int start_column = column - 1;
 
         if (isSymbol(peek(), '=')) {
-          char next = read();
+          read();
           column += 1;
-          return new Token(TokenType.LESS_EQ, "" + curr + next, start_line, start_column + 1);
+          return new Token(TokenType.LESS_EQ, symbol(pos - 2), start_line, start_column + 1);
         } else {
-          return new Token(TokenType.LESS, "" + curr, start_line, start_column + 1);
+          return new Token(TokenType.LESS, symbol(pos - 1), start_line, start_column + 1);
         }
       } else if (isSymbol(curr, '&')) {
         int start_line = line;
         int start_column = column - 1;
 
         if (isSymbol(peek(), '&')) {
-          char next = read();
+          read();
           column += 1;
 
-          return new Token(TokenType.AND, "" + curr + next, start_line, start_column + 1);
+          return new Token(TokenType.AND, symbol(pos - 2), start_line, start_column + 1);
         } else {
           error("expected &", start_line, start_column + 1);
         }
@@ -325,22 +401,23 @@ public class Lexer {
         int start_line = line;
         int start_column = column - 1;
 
-        // create empty string to read into
-        String result = "";
+        // the string value starts after the opening quote
+        int start = pos;
         while (!isSymbol(peek(), '"')) {
           if (isSymbol(peek(), '\n')) {
             error("non-terminated string", line, column + 1);
           } else if (isEOF(peek())) {
             error("non-terminated string", line, column + 1);
           }
-          result += (char) read();
+          read();
           column += 1;
         }
-        char close = (char) read();
+        String result = lexeme(start);
+        char close = read();
         column += 1;
 
         if (isSymbol(close, '"')) {
-          return new Token(TokenType.STRING_VAL, result.toString(), start_line, start_column + 1);
+          return new Token(TokenType.STRING_VAL, result, start_line, start_column + 1);
         }
       }
 
@@ -348,7 +425,7 @@ public class Lexer {
       else if (isDigit(curr)) {
         int start_line = line;
         int start_column = column;
-        String result = "" + curr;
+        int start = pos - 1;
         boolean isDoubleVal = false;
 
         while (!isWhitespace(peek()) && !isEOF(peek())) {
@@ -366,10 +443,10 @@ public class Lexer {
           }
 
           // read next char, increment column
-          char next =  read();
-          result += next;
+          read();
           column += 1;
         }
+        String result = lexeme(start);
 
         if (hasLeadingZeroes(result)) {
           error("leading zero in number", start_line, start_column);
@@ -393,16 +470,17 @@ public class Lexer {
       else if (isLetter(curr)) {
         int start_line = line;
         int start_column = column;
-        String result = "" + curr;
+        int start = pos - 1;
 
         while (!isWhitespace(peek()) && !isEOF(peek())) {
           if (isLetter(peek()) || isSymbol(peek(), '_')  || isDigit(peek())) {
-            result += read();
+            read();
             column += 1;
           } else {
             break;
           }
         }
+        String result = symbol(start);
         // switch statement to return keyword/ids
         switch(result) {
           case "and": 
@@ -5,10 +5,23 @@
 
 package cpsc326;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.Reader;
+import java.io.CharArrayReader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -20,13 +33,137 @@ import net.sourceforge.argparse4j.inf.Namespace;
  */
 public class MyPL {
 
+  /* the parsed command line arguments (for configuring the vm) */
+  private static Namespace options;
+
+  /**
+   * Create a VM configured from the command line options.
+   * @return the new VM
+   */
+  private static VM newVM() {
+    VM vm = new VM();
+    vm.engineMode(VM.Engine.valueOf(options.getString("engine")));
+    Integer jitThreshold = options.getInt("jit_threshold");
+    if (jitThreshold != null)
+      vm.jitThreshold(jitThreshold);
+    vm.bufferedOutput(!options.getBoolean("unbuffered"));
+    Integer trace = options.getInt("trace");
+    if (trace != null)
+      vm.addListener(new VMTracer(trace));
+    String inputFile = options.getString("input");
+    if (inputFile != null) {
+      try {
+        vm.setInput(mappedReader(inputFile));
+      } catch (IOException e) {
+        System.err.println("mypl: error: unable to read input file '" + inputFile + "'");
+        System.exit(1);
+      }
+    }
+    return vm;
+  }
+
+  /**
+   * Create an AST parser configured from the command line options.
+   * @param lexer The lexer over the mypl program
+   * @return the new parser
+   */
+  private static ASTParser newParser(Lexer lexer) {
+    ASTParser parser = new ASTParser(lexer);
+    parser.exprMode(ASTParser.ExprMode.valueOf(options.getString("parser")));
+    return parser;
+  }
+
+  /**
+   * Create a semantic checker configured from the command line
+   * options.
+   * @return the new checker
+   */
+  private static SemanticChecker newChecker() {
+    SemanticChecker checker = new SemanticChecker();
+    checker.parallelMode(options.getBoolean("parallel_check"));
+    return checker;
+  }
+
+  /**
+   * Create a code generator configured from the command line options.
+   * @param vm The VM for the generated code
+   * @return the new code generator
+   */
+  private static CodeGenerator newGenerator(VM vm) {
+    CodeGenerator generator = new CodeGenerator(vm);
+    generator.parallelMode(options.getBoolean("parallel_codegen"));
+    generator.shortCircuitMode(options.getBoolean("short_circuit"));
+    return generator;
+  }
+
+  /**
+   * Read the contents of a file by memory-mapping it and decoding it
+   * in one pass.
+   * @param file The name of the file
+   * @return the decoded characters
+   */
+  private static CharBuffer mapFile(String file) throws IOException {
+    try (FileChannel channel = FileChannel.open(Path.of(file))) {
+      MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return StandardCharsets.UTF_8.decode(bytes);
+    }
+  }
+
+  /**
+   * Create a reader over the contents of a file (for bulk program
+   * input).
+   * @param file The name of the file
+   * @return the reader
+   */
+  private static Reader mappedReader(String file) throws IOException {
+    CharBuffer chars = mapFile(file);
+    return new CharArrayReader(chars.array(), chars.arrayOffset() + chars.position(),
+                               chars.remaining());
+  }
+
+  /**
+   * Fold the constant expressions of the checked program unless
+   * folding is turned off.
+   * @param p The checked program
+   * @return the folder or null if folding is turned off
+   */
+  private static ConstantFolder fold(Program p) {
+    if (options.getBoolean("no_fold"))
+      return null;
+    ConstantFolder folder = new ConstantFolder();
+    p.accept(folder);
+    return folder;
+  }
+
+  /**
+   * Run the peephole optimizer over the generated code unless it is
+   * turned off.
+   * @param vm The VM holding the generated code
+   * @return the optimizer or null if optimization is turned off
+   */
+  private static PeepholeOptimizer optimize(VM vm) {
+    if (options.getBoolean("no_peephole"))
+      return null;
+    PeepholeOptimizer optimizer = new PeepholeOptimizer();
+    optimizer.optimize(vm);
+    return optimizer;
+  }
+
+  /**
+   * Print the requested VM statistics after a run.
+   * @param vm The VM that ran the program
+   */
+  private static void printStats(VM vm) {
+    if (options.getBoolean("heap_stats"))
+      System.err.print(vm.heapStats());
+  }
+
   /**
    * Print token information for the given mypl program.
-   * @param input The mypl program as an input stream
+   * @param lexer The lexer over the mypl program
    */
-  private static void lexMode(InputStream input) {
+  private static void lexMode(Lexer lexer) {
     try {
-      Lexer lexer = new Lexer(input);
       Token t = null;
       do {
         t = lexer.nextToken();
@@ -41,11 +178,10 @@ public class MyPL {
   /**
    * Parse the given mypl program and output the first error found, if
    * any, otherwise nothing is printed.
-   * @param input The mypl program as an input stream
+   * @param lexer The lexer over the mypl program
    */
-  private static void parseMode(InputStream input) {
+  private static void parseMode(Lexer lexer) {
     try {
-      Lexer lexer = new Lexer(input);
       SimpleParser parser = new SimpleParser(lexer);
       parser.parse();
       System.out.println("No syntax issues found");
@@ -56,12 +192,11 @@ public class MyPL {
 
   /**
    * Pretty print the given mypl program.
-   * @param input The mypl program as an input stream
+   * @param lexer The lexer over the mypl program
    */
-  private static void printMode(InputStream input) {
+  private static void printMode(Lexer lexer) {
     try {
-      Lexer lexer = new Lexer(input);
-      ASTParser parser = new ASTParser(lexer);
+      ASTParser parser = newParser(lexer);
       Program p = parser.parse();
       p.accept(new PrintVisitor());
     } catch(MyPLException e) {
@@ -72,14 +207,13 @@ public class MyPL {
   /**
    * Perform a semantic analysis check of the given mypl program and
    * output first error found, if any, otherwise nothing is printed.
-   * @param input The mypl program as an input stream
+   * @param lexer The lexer over the mypl program
    */
-  private static void checkMode(InputStream input) {
+  private static void checkMode(Lexer lexer) {
     try {
-      Lexer lexer = new Lexer(input);
-      ASTParser parser = new ASTParser(lexer);
+      ASTParser parser = newParser(lexer);
       Program p = parser.parse();
-      p.accept(new SemanticChecker());
+      p.accept(newChecker());
       System.out.println("No semantic issues found");      
     } catch(MyPLException e) {
       System.err.println(e.getMessage());
@@ -89,53 +223,193 @@ public class MyPL {
   /**
    * Output the intermediate representation of the given mypl
    * program. 
-   * @param input The mypl program as an input stream
+   * @param lexer The lexer over the mypl program
    */
-  private static void irMode(InputStream input) {
+  private static void irMode(Lexer lexer) {
     try {
-      Lexer lexer = new Lexer(input);
-      ASTParser parser = new ASTParser(lexer);
+      ASTParser parser = newParser(lexer);
       Program p = parser.parse();
-      p.accept(new SemanticChecker());
+      p.accept(newChecker());
+      ConstantFolder folder = fold(p);
       VM vm = new VM();
-      p.accept(new CodeGenerator(vm));
+      p.accept(newGenerator(vm));
+      PeepholeOptimizer optimizer = optimize(vm);
       System.out.println(vm);
+      if (folder != null)
+        System.out.println(folder);
+      if (optimizer != null)
+        System.out.println(optimizer);
     } catch(MyPLException e) {
       System.err.println(e.getMessage());
     }
   }
 
   /**
-   * Run the given mypl program. 
-   * @param input The mypl program as an input stream
+   * Give the name of the compiled file for a mypl file.
+   * @param file The name of the mypl file
    */
-  private static void runMode(InputStream input) {
+  private static String compiledFile(String file) {
+    return file + "c";
+  }
+
+  /**
+   * Compute the hash a compiled file must have to be run instead of
+   * the given mypl file, i.e., the hash of the source and the options
+   * that change the generated code.
+   * @param file The name of the mypl file
+   */
+  private static byte[] sourceHash(String file) throws IOException {
+    String compileOptions = "parser=" + options.getString("parser")
+      + ";fold=" + !options.getBoolean("no_fold")
+      + ";short-circuit=" + options.getBoolean("short_circuit")
+      + ";peephole=" + !options.getBoolean("no_peephole");
+    return BytecodeFile.hash(Files.readAllBytes(Path.of(file)), compileOptions);
+  }
+
+  /**
+   * Compile the given mypl program and save its code in the compiled
+   * file (e.g., prog.myplc for prog.mypl).
+   * @param lexer The lexer over the mypl program
+   * @param file The name of the mypl file
+   */
+  private static void compileMode(Lexer lexer, String file) {
     try {
-      Lexer lexer = new Lexer(input);
-      ASTParser parser = new ASTParser(lexer);
+      ASTParser parser = newParser(lexer);
       Program p = parser.parse();
-      p.accept(new SemanticChecker());
+      p.accept(newChecker());
+      fold(p);
       VM vm = new VM();
-      p.accept(new CodeGenerator(vm));
+      p.accept(newGenerator(vm));
+      optimize(vm);
+      try (OutputStream out = new BufferedOutputStream(
+             new FileOutputStream(compiledFile(file)))) {
+        BytecodeFile.write(vm, sourceHash(file), out);
+      } catch (IOException e) {
+        System.err.println("mypl: error: unable to write '" + compiledFile(file) + "'");
+      }
+    } catch(MyPLException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Give the name of the jar file for a mypl file (e.g., prog.jar for
+   * prog.mypl).
+   * @param file The name of the mypl file
+   */
+  private static String jarFile(String file) {
+    if (file.endsWith(".mypl"))
+      file = file.substring(0, file.length() - ".mypl".length());
+    return file + ".jar";
+  }
+
+  /**
+   * Compile the given mypl program to JVM classes and save them as a
+   * runnable jar (e.g., prog.jar for prog.mypl, run with java -jar).
+   * @param lexer The lexer over the mypl program
+   * @param file The name of the mypl file
+   */
+  private static void compileJarMode(Lexer lexer, String file) {
+    try {
+      ASTParser parser = newParser(lexer);
+      Program p = parser.parse();
+      p.accept(newChecker());
+      fold(p);
+      JarCompiler compiler = new JarCompiler();
+      compiler.shortCircuitMode(options.getBoolean("short_circuit"));
+      p.accept(compiler);
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(jarFile(file)))) {
+        compiler.write(out);
+      } catch (IOException e) {
+        System.err.println("mypl: error: unable to write '" + jarFile(file) + "'");
+      }
+    } catch(MyPLException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Run the compiled code of the given mypl file if it is up to date.
+   * @param file The name of the mypl file
+   * @return true if the compiled code was run, false otherwise
+   */
+  private static boolean runCompiled(String file) {
+    VM vm = newVM();
+    try (InputStream in = new BufferedInputStream(
+           new FileInputStream(compiledFile(file)))) {
+      if (!BytecodeFile.load(in, sourceHash(file), vm))
+        return false;
+    } catch (IOException e) {
+      return false; // e.g., not compiled, malformed, or the source is missing
+    }
+    try {
       vm.run();
+      printStats(vm);
     } catch(MyPLException e) {
       System.err.println(e.getMessage());
     }
+    return true;
+  }
+
+  /**
+   * Run the given mypl program. 
+   * @param lexer The lexer over the mypl program
+   */
+  private static void runMode(Lexer lexer) {
+    try {
+      ASTParser parser = newParser(lexer);
+      Program p = parser.parse();
+      p.accept(newChecker());
+      fold(p);
+      VM vm = newVM();
+      p.accept(newGenerator(vm));
+      optimize(vm);
+      vm.run();
+      printStats(vm);
+    } catch(MyPLException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Run the given mypl program in profile mode, printing a summary of
+   * where it spent its time when it ends.
+   * @param lexer The lexer over the mypl program
+   */
+  private static void profileMode(Lexer lexer) {
+    VM vm = null;
+    try {
+      ASTParser parser = newParser(lexer);
+      Program p = parser.parse();
+      p.accept(newChecker());
+      fold(p);
+      vm = newVM();
+      vm.profileMode(true);
+      p.accept(newGenerator(vm));
+      optimize(vm);
+      vm.run();
+      printStats(vm);
+    } catch(MyPLException e) {
+      System.err.println(e.getMessage());
+    }
+    if (vm != null && vm.profiler() != null)
+      System.err.print(vm.profiler());
   }
 
   /**
    * Run the given mypl program in debug mode.
-   * @param input The mypl program as an input stream
+   * @param lexer The lexer over the mypl program
    */
-  private static void debugMode(InputStream input) {
+  private static void debugMode(Lexer lexer) {
     try {
-      Lexer lexer = new Lexer(input);
-      ASTParser parser = new ASTParser(lexer);
+      ASTParser parser = newParser(lexer);
       Program p = parser.parse();
-      p.accept(new SemanticChecker());
-      VM vm = new VM();
+      p.accept(newChecker());
+      fold(p);
+      VM vm = newVM();
       vm.debugMode(true);
-      p.accept(new CodeGenerator(vm));
+      p.accept(newGenerator(vm));
+      optimize(vm);
       vm.run();
     } catch(MyPLException e) {
       System.err.println(e.getMessage());
@@ -144,19 +418,64 @@ public class MyPL {
   
   /**
    * Parse the command line options and run the given mypl program in
-   * the corresponding mode (either lex, parse, print, check, ir, or
-   * run). 
+   * the corresponding mode (either lex, parse, print, check, ir,
+   * compile, compile jar, run, debug, or profile). A file is run from its compiled
+   * code when that is up to date.
    */
   public static void main(String[] args) {
-    InputStream input = System.in;
+    Lexer lexer = null;
     // set up the command line (cmd) argument parser
     ArgumentParser cmdParser = ArgumentParsers.newFor("mypl").build()
       .defaultHelp(true)
       .description("MyPL interpreter.");
     cmdParser.addArgument("-m", "--mode")
-      .choices("LEX", "PARSE", "PRINT", "CHECK", "IR", "RUN", "DEBUG")
+      .choices("LEX", "PARSE", "PRINT", "CHECK", "IR", "COMPILE", "COMPILE_JAR", "RUN", "DEBUG",
+               "PROFILE")
       .setDefault("RUN")
       .help("specify execution mode");
+    cmdParser.addArgument("-e", "--engine")
+      .choices("SWITCH", "CHAIN", "JIT")
+      .setDefault("SWITCH")
+      .help("specify the vm instruction dispatch loop (DEBUG and PROFILE modes and "
+            + "--trace only run SWITCH)");
+    cmdParser.addArgument("--jit-threshold")
+      .type(Integer.class)
+      .metavar("N")
+      .help("compile a function once it has run N calls plus loop iterations (JIT engine)");
+    cmdParser.addArgument("-p", "--parser")
+      .choices("RECURSIVE", "PRECEDENCE")
+      .setDefault("RECURSIVE")
+      .help("specify how expressions are parsed");
+    cmdParser.addArgument("--parallel-check")
+      .action(Arguments.storeTrue())
+      .help("check function bodies in parallel");
+    cmdParser.addArgument("--parallel-codegen")
+      .action(Arguments.storeTrue())
+      .help("generate vm code for functions in parallel");
+    cmdParser.addArgument("--short-circuit")
+      .action(Arguments.storeTrue())
+      .help("only evaluate the right operand of and/or when needed "
+            + "(its side effects and errors then only happen when it is evaluated)");
+    cmdParser.addArgument("--no-fold")
+      .action(Arguments.storeTrue())
+      .help("turn off constant folding");
+    cmdParser.addArgument("--no-peephole")
+      .action(Arguments.storeTrue())
+      .help("turn off the peephole optimizer");
+    cmdParser.addArgument("-i", "--input")
+      .help("read program input (readln) from the given file");
+    cmdParser.addArgument("--unbuffered")
+      .action(Arguments.storeTrue())
+      .help("print program output immediately instead of buffering it");
+    cmdParser.addArgument("--trace")
+      .type(Integer.class)
+      .choices(Arguments.range(1, Integer.MAX_VALUE))
+      .metavar("N")
+      .help("keep the last N executed instructions and print them on a vm error "
+            + "(SWITCH engine only)");
+    cmdParser.addArgument("--heap-stats")
+      .action(Arguments.storeTrue())
+      .help("print vm heap statistics after running");
     cmdParser.addArgument("file").nargs("?").help("mypl file to execute");
     // validate the command line arguments
     Namespace ns = null;
@@ -166,32 +485,57 @@ public class MyPL {
       cmdParser.handleError(e);
       System.exit(1);
     }
-    // get the file if it is given
-    if (ns.getString("file") != null) {
-      String file = ns.getString("file");
+    String file = ns.getString("file");
+    String mode = ns.getString("mode");
+    options = ns;
+    // listeners (debug, profile, and trace) only run in the switch
+    // engine, so another engine would silently be ignored
+    String engine = ns.getString("engine");
+    boolean listened = mode.equals("DEBUG") || mode.equals("PROFILE") || ns.getInt("trace") != null;
+    if (!engine.equals("SWITCH") && listened) {
+      System.err.println("mypl: error: the " + engine + " engine can't be used with DEBUG or "
+                         + "PROFILE mode or --trace (they run the SWITCH engine)");
+      System.exit(1);
+    }
+    // run the compiled program instead if it is up to date
+    if (file != null && mode.equals("RUN") && runCompiled(file))
+      return;
+    if (file == null && (mode.equals("COMPILE") || mode.equals("COMPILE_JAR"))) {
+      System.err.println("mypl: error: " + mode + " mode requires a file");
+      System.exit(1);
+    }
+    // lex the file if it is given (otherwise standard input)
+    if (file != null) {
       try {
-        input = new FileInputStream(file);
-      } catch (FileNotFoundException e) {
+        lexer = new Lexer(mapFile(file));
+      } catch (IOException e) {
         System.err.println("mypl: error: unable to open file '" + file + "'");
         System.exit(1);
       }
+    } else {
+      lexer = new Lexer(System.in);
     }
     // call corresponding execution mode
-    String mode = ns.getString("mode");
     if (mode == null || mode.equals("RUN"))
-      runMode(input);
+      runMode(lexer);
     else if (mode.equals("LEX"))
-      lexMode(input);
+      lexMode(lexer);
     else if (mode.equals("PARSE"))
-      parseMode(input);
+      parseMode(lexer);
     else if (mode.equals("PRINT"))
-      printMode(input);
+      printMode(lexer);
     else if (mode.equals("CHECK"))
-      checkMode(input);
+      checkMode(lexer);
     else if (mode.equals("IR"))
-      irMode(input);
+      irMode(lexer);
+    else if (mode.equals("COMPILE"))
+      compileMode(lexer, file);
+    else if (mode.equals("COMPILE_JAR"))
+      compileJarMode(lexer, file);
     else if (mode.equals("DEBUG"))
-      debugMode(input);
+      debugMode(lexer);
+    else if (mode.equals("PROFILE"))
+      profileMode(lexer);
   }
 
 }
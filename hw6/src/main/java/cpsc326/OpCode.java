@@ -27,6 +27,20 @@ public enum OpCode {
     OR,      // pop x, pop y, push (y or x)
     NOT,     // pop x, push (not x)
 
+    // type-specialized operators (operands known to be int or double)
+    IADD,    // pop int x, pop int y, push (y + x)
+    ISUB,    // pop int x, pop int y, push (y - x)
+    IMUL,    // pop int x, pop int y, push (y * x)
+    IDIV,    // pop int x, pop int y, push (y // x)
+    ICMPLT,  // pop int x, pop int y, push (y < x)
+    ICMPLE,  // pop int x, pop int y, push (y <= x)
+    DADD,    // pop double x, pop double y, push (y + x)
+    DSUB,    // pop double x, pop double y, push (y - x)
+    DMUL,    // pop double x, pop double y, push (y * x)
+    DDIV,    // pop double x, pop double y, push (y / x)
+    DCMPLT,  // pop double x, pop double y, push (y < x)
+    DCMPLE,  // pop double x, pop double y, push (y <= x)
+
     // jump and branch
     JMP,     // jump to given instruction offset A
     JMPF,    // pop x, if x is False jump to instruction offset A
@@ -45,12 +59,12 @@ public enum OpCode {
     TOSTR,   // pop x, push str(x)
 
     // heap
-    ALLOCS,  // allocate struct object, push oid x
-    SETF,    // pop value x, pop oid y, set obj(y)[A] = x
-    GETF,    // pop oid x, push obj(x)[A] onto stack
-    ALLOCA,  // pop int x, allocate array object with x None values, push oid
-    SETI,    // pop value x, pop index y, pop oid z, set array obj(z)[y] = x
-    GETI,    // pop index x, pop oid y, push obj(y)[x] onto stack
+    ALLOCS,  // allocate struct object with A (null) fields, push obj x
+    SETF,    // pop value x, pop obj y, set y field slot A = x
+    GETF,    // pop obj x, push x field slot A onto stack
+    ALLOCA,  // pop int x, allocate array object with x null values, push obj
+    SETI,    // pop value x, pop index y, pop array z, set z[y] = x
+    GETI,    // pop index x, pop array y, push y[x] onto stack
 
     // special
     DUP,     // pop x, push x, push x
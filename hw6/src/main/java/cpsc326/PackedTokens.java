@@ -0,0 +1,149 @@
+/**
+ * CPSC 326, Spring 2025
+ * Compact token stream representation.
+ */
+
+package cpsc326;
+
+import java.util.Arrays;
+
+
+/**
+ * A token stream packed into one int array. Each token takes FIELDS
+ * consecutive ints: its type (ordinal), the offset and length of its
+ * text in the source characters, and its line and column. Lexemes
+ * are only created when asked for, so the stream of a large source
+ * takes far less memory than a list of Token objects.
+ */
+public class PackedTokens {
+
+  /* the field offsets within a packed token */
+  public static final int TYPE = 0;
+  public static final int OFFSET = 1;
+  public static final int LENGTH = 2;
+  public static final int LINE = 3;
+  public static final int COLUMN = 4;
+
+  /* the number of ints per token */
+  public static final int FIELDS = 5;
+
+  /* the token types by ordinal */
+  private static final TokenType[] TYPES = TokenType.values();
+
+  /* the packed tokens */
+  private int[] data = new int[FIELDS * 256];
+
+  /* the number of tokens */
+  private int size = 0;
+
+  /* the source characters the offsets refer to */
+  private char[] source;
+
+  /* pool for the canonical id, keyword, and symbol lexemes */
+  private LexemePool pool;
+
+  /**
+   * Create an empty token stream over the given source.
+   *
+   * @param source the source characters
+   * @param pool the pool to intern lexemes with
+   */
+  public PackedTokens(char[] source, LexemePool pool) {
+    this.source = source;
+    this.pool = pool;
+  }
+
+  /**
+   * Add a token.
+   *
+   * @param type the token type
+   * @param offset the index of the token's first source character
+   * @param length the number of source characters of the token
+   * @param line the token's line
+   * @param column the token's column
+   */
+  public void add(TokenType type, int offset, int length, int line, int column) {
+    if (size * FIELDS == data.length)
+      data = Arrays.copyOf(data, data.length * 2);
+    int i = size++ * FIELDS;
+    data[i + TYPE] = type.ordinal();
+    data[i + OFFSET] = offset;
+    data[i + LENGTH] = length;
+    data[i + LINE] = line;
+    data[i + COLUMN] = column;
+  }
+
+  /**
+   * Gives the number of tokens.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Return the type of the i-th token.
+   */
+  public TokenType type(int i) {
+    return TYPES[data[i * FIELDS + TYPE]];
+  }
+
+  /**
+   * Return the source offset of the i-th token.
+   */
+  public int offset(int i) {
+    return data[i * FIELDS + OFFSET];
+  }
+
+  /**
+   * Return the number of source characters of the i-th token.
+   */
+  public int length(int i) {
+    return data[i * FIELDS + LENGTH];
+  }
+
+  /**
+   * Return the line of the i-th token.
+   */
+  public int line(int i) {
+    return data[i * FIELDS + LINE];
+  }
+
+  /**
+   * Return the column of the i-th token.
+   */
+  public int column(int i) {
+    return data[i * FIELDS + COLUMN];
+  }
+
+  /**
+   * Return the lexeme of the i-th token (the same lexeme the lexer
+   * gives the token).
+   */
+  public String lexeme(int i) {
+    int offset = data[i * FIELDS + OFFSET];
+    int length = data[i * FIELDS + LENGTH];
+    switch (type(i)) {
+      case EOS:
+        return "end-of-stream";
+      case COMMENT:
+        // drop the '#' (and newline)
+        return " " + new String(source, offset + 1, length - 1).trim();
+      case STRING_VAL:
+        // drop the quotes
+        return new String(source, offset + 1, length - 2);
+      case INT_VAL:
+      case DOUBLE_VAL:
+        return new String(source, offset, length);
+      default:
+        return pool.intern(source, offset, length);
+    }
+  }
+
+  /**
+   * Return the i-th token as a Token object.
+   */
+  public Token token(int i) {
+    return new Token(type(i), lexeme(i), line(i), column(i));
+  }
+
+}
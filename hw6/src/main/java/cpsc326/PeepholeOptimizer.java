@@ -0,0 +1,164 @@
+/**
+ * CPSC 326, Spring 2025
+ * Peephole optimization of generated VM code.
+ */
+
+package cpsc326;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+
+
+/**
+ * Removes and combines redundant instruction sequences in frame
+ * templates, then remaps jump targets to the rewritten code. The
+ * rewrites are:
+ *
+ *   PUSH a, POP (also LOAD or DUP)  =>  (removed)
+ *   JMP to the next instruction     =>  (removed)
+ *   STORE x, LOAD x                 =>  DUP, STORE x
+ *   PUSH a, WRITE, PUSH b, WRITE    =>  PUSH "ab", WRITE
+ *
+ * A sequence is only rewritten if no jump lands inside it (after its
+ * first instruction).
+ */
+public class PeepholeOptimizer {
+
+  /* number of instructions before and after optimization */
+  private int instructionsBefore = 0;
+  private int instructionsAfter = 0;
+
+  /**
+   * Optimize each frame template of the VM.
+   * 
+   * @param vm the VM holding the generated frame templates
+   */
+  public void optimize(VM vm) {
+    for (VMFrameTemplate template : vm.frameTemplates())
+      optimize(template);
+  }
+
+  /**
+   * Optimize the frame template's instructions (until no more
+   * rewrites apply).
+   * 
+   * @param template the template to optimize
+   */
+  public void optimize(VMFrameTemplate template) {
+    instructionsBefore += template.instructions.size();
+    while (rewrite(template))
+      ;
+    instructionsAfter += template.instructions.size();
+  }
+
+  /**
+   * Gives the number of instructions removed so far.
+   */
+  public int removedCount() {
+    return instructionsBefore - instructionsAfter;
+  }
+
+  /**
+   * Summarize what the optimizer did (e.g., for IR mode).
+   */
+  public String toString() {
+    String s = "peephole optimizer: %d of %d instructions removed";
+    return String.format(s, removedCount(), instructionsBefore);
+  }
+
+  // ----------------------------------------------------------------------
+  // Helper functions
+  // ----------------------------------------------------------------------
+
+  /**
+   * Check if the instruction is a jump (with a target operand).
+   */
+  private static boolean isJump(VMInstr instr) {
+    return instr.opcode == OpCode.JMP || instr.opcode == OpCode.JMPF;
+  }
+
+  /**
+   * Check if the instruction at the index has the given opcode.
+   */
+  private static boolean is(List<VMInstr> code, int index, OpCode opcode) {
+    return index < code.size() && code.get(index).opcode == opcode;
+  }
+
+  /**
+   * Check that no jump lands on an instruction in the range
+   * (start, end], i.e., that the instructions can be rewritten as a
+   * unit entered at start.
+   */
+  private static boolean noTargets(Set<Integer> targets, int start, int end) {
+    for (int i = start + 1; i <= end; ++i)
+      if (targets.contains(i))
+        return false;
+    return true;
+  }
+
+  /**
+   * Make one rewriting pass over the template's instructions.
+   * 
+   * @return true if anything was rewritten
+   */
+  private boolean rewrite(VMFrameTemplate template) {
+    List<VMInstr> code = template.instructions;
+    Set<Integer> targets = new HashSet<>();
+    for (VMInstr instr : code)
+      if (isJump(instr))
+        targets.add((int) instr.operand);
+    List<VMInstr> result = new ArrayList<>();
+    // the new index of each old instruction (or of the instruction
+    // following it if it was removed)
+    int[] newIndex = new int[code.size() + 1];
+    boolean changed = false;
+    int i = 0;
+    while (i < code.size()) {
+      VMInstr instr = code.get(i);
+      newIndex[i] = result.size();
+      int consumed = 1;
+      if ((instr.opcode == OpCode.PUSH || instr.opcode == OpCode.LOAD
+           || instr.opcode == OpCode.DUP)
+          && is(code, i + 1, OpCode.POP) && noTargets(targets, i, i + 1)) {
+        consumed = 2;
+      } else if (instr.opcode == OpCode.JMP && (int) instr.operand == i + 1) {
+        changed = true;
+      } else if (instr.opcode == OpCode.STORE && is(code, i + 1, OpCode.LOAD)
+                 && instr.operand.equals(code.get(i + 1).operand)
+                 && noTargets(targets, i, i + 1)) {
+        VMInstr dup = VMInstr.DUP();
+        dup.comment = "keep stored value";
+        result.add(dup);
+        result.add(instr);
+        consumed = 2;
+      } else if (instr.opcode == OpCode.PUSH && is(code, i + 1, OpCode.WRITE)
+                 && is(code, i + 2, OpCode.PUSH) && is(code, i + 3, OpCode.WRITE)
+                 && noTargets(targets, i, i + 3)) {
+        String value = String.valueOf(instr.operand) + code.get(i + 2).operand;
+        VMInstr push = VMInstr.PUSH(value);
+        push.comment = "combined output";
+        result.add(push);
+        result.add(code.get(i + 1));
+        consumed = 4;
+      } else {
+        result.add(instr);
+      }
+      if (consumed > 1)
+        changed = true;
+      for (int j = 1; j < consumed; ++j)
+        newIndex[i + j] = result.size();
+      i += consumed;
+    }
+    newIndex[code.size()] = result.size();
+    if (!changed)
+      return false;
+    for (VMInstr instr : result)
+      if (isJump(instr))
+        instr.operand = newIndex[(int) instr.operand];
+    template.instructions = result;
+    return true;
+  }
+
+}
@@ -12,16 +12,54 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 public class SemanticChecker implements Visitor {
 
   // for tracking function and struct definitions:
   private Map<String, FunDef> functions = new HashMap<>();
   private Map<String, StructDef> structs = new HashMap<>();
+  // the source position of each function (a function can only be
+  // called by itself and the functions after it):
+  private Map<String, Integer> functionIndex = new HashMap<>();
   // for tracking variable types:
   private SymbolTable symbolTable = new SymbolTable();
   // for holding the last inferred type:
   private DataType currType;
+  // the function being checked and its source position:
+  private FunDef currFunction;
+  private int currIndex = Integer.MAX_VALUE;
+  // for checking function bodies in parallel:
+  private boolean parallel = false;
+
+  /**
+   * Create a new semantic checker.
+   */
+  public SemanticChecker() {
+  }
+
+  /**
+   * Create a checker for function bodies that shares the (already
+   * collected) struct and function definitions of the given checker.
+   */
+  private SemanticChecker(SemanticChecker program) {
+    functions = program.functions;
+    structs = program.structs;
+    functionIndex = program.functionIndex;
+  }
+
+  /**
+   * Turn parallel checking of function bodies on or off. In parallel
+   * mode each function body is checked by its own checker (with its
+   * own symbol table) on a fork-join worker. The first error in source
+   * order is still the one reported.
+   * 
+   * @param on Set to true to check function bodies in parallel
+   */
+  public void parallelMode(boolean on) {
+    parallel = on;
+  }
 
   // ----------------------------------------------------------------------
   // Helper functions
@@ -95,6 +133,19 @@ public class SemanticChecker implements Visitor {
    * Checks the program
    */
   public void visit(Program node) {
+    visit(node, f -> true);
+  }
+
+  /**
+   * Checks the program, but only checks the bodies of the selected
+   * functions. The struct definitions and the function signatures are
+   * always checked (e.g., for incremental compilation where the other
+   * function bodies are known to check).
+   * 
+   * @param node the program
+   * @param checkBody selects the functions whose bodies to check
+   */
+  public void visit(Program node, Predicate<FunDef> checkBody) {
     // collect all struct definitions first
     for (StructDef s : node.structs) {
       if (structs.containsKey(s.structName.lexeme)) {
@@ -109,27 +160,53 @@ public class SemanticChecker implements Visitor {
       s.accept(this);
     }
 
-    // check each function
-    for (FunDef f : node.functions) {
-      if (functions.containsKey(f.funName.lexeme)) {
-        error("Duplicate function name: " + f.funName.lexeme, f.funName);
-      } else {
-        functions.put(f.funName.lexeme, f);
-      }
-
-      // Check if this is the main function
-      if (f.funName.lexeme.equals("main")) {
-        // Check if main has void return type
-        if (!f.returnType.type.lexeme.equals("void")) {
-          error("Main function must have void return type", f.funName);
+    // collect the function signatures, keeping the first error of each
+    // function (so errors are reported in source order)
+    List<FunDef> funs = node.functions;
+    MyPLException[] errors = new MyPLException[funs.size()];
+    boolean[] check = new boolean[funs.size()];
+    for (int i = 0; i < funs.size(); i++) {
+      FunDef f = funs.get(i);
+      try {
+        if (functions.containsKey(f.funName.lexeme)) {
+          error("Duplicate function name: " + f.funName.lexeme, f.funName);
+        } else {
+          functions.put(f.funName.lexeme, f);
+          functionIndex.put(f.funName.lexeme, i);
         }
 
-        // Check if main has no parameters
-        if (!f.params.isEmpty()) {
-          error("Main function cannot have parameters", f.funName);
+        // Check if this is the main function
+        if (f.funName.lexeme.equals("main")) {
+          // Check if main has void return type
+          if (!f.returnType.type.lexeme.equals("void")) {
+            error("Main function must have void return type", f.funName);
+          }
+
+          // Check if main has no parameters
+          if (!f.params.isEmpty()) {
+            error("Main function cannot have parameters", f.funName);
+          }
         }
+      } catch (MyPLException e) {
+        errors[i] = e;
+      }
+      check[i] = errors[i] == null && checkBody.test(f);
+    }
+
+    // check each function body
+    if (parallel) {
+      IntStream.range(0, funs.size()).parallel().forEach(i -> {
+        if (check[i])
+          errors[i] = new SemanticChecker(this).checkBody(funs.get(i), i);
+      });
+    }
+    for (int i = 0; i < funs.size(); i++) {
+      if (errors[i] != null)
+        throw errors[i];
+      if (check[i] && !parallel) {
+        currIndex = i;
+        funs.get(i).accept(this);
       }
-      f.accept(this);
     }
 
     // check for main
@@ -138,10 +215,26 @@ public class SemanticChecker implements Visitor {
     }
   }
 
+  /**
+   * Checks a function body at the given source position.
+   * 
+   * @return the error found or null if the function checks
+   */
+  private MyPLException checkBody(FunDef node, int index) {
+    try {
+      currIndex = index;
+      node.accept(this);
+      return null;
+    } catch (MyPLException e) {
+      return e;
+    }
+  }
+
   /**
    * Checks a function definition signature and body
    */
   public void visit(FunDef node) {
+    currFunction = node;
     String funName = node.funName.lexeme; // set current function name
     if (isBuiltInFunction(funName)) { // check if built-in function
       error(funName + " is a built-in function and cannot be redefined", node.funName);
@@ -281,6 +374,7 @@ public class SemanticChecker implements Visitor {
         error("Undefined field: " + fieldName, ref.varName);
         return;
       }
+      ref.structName = structDef.structName.lexeme;
       currentType = getStructFieldType(fieldName, structDef);
       if (i < node.lvalue.size() - 1 && currentType.isArray && !ref.arrayExpr.isPresent()) {
         error("Cannot access field of array without indexing", node.lvalue.get(i + 1).varName);
@@ -317,11 +411,7 @@ public class SemanticChecker implements Visitor {
       error("Return statement not inside a function");
       return;
     }
-    FunDef currentFunction = null;
-    for (Map.Entry<String, FunDef> entry : functions.entrySet()) {
-      currentFunction = entry.getValue();
-      break;
-    }
+    FunDef currentFunction = currFunction;
 
     if (currentFunction == null) {
       error("Return statement not inside a function");
@@ -589,7 +679,7 @@ public class SemanticChecker implements Visitor {
       handleBuiltInFunction(node);
     } else {
       FunDef funDef = functions.get(funName);
-      if (funDef == null) {
+      if (funDef == null || functionIndex.getOrDefault(funName, 0) > currIndex) {
         error("Function not defined", node.funName);
         return;
       }
@@ -765,6 +855,7 @@ public class SemanticChecker implements Visitor {
         error("Undefined field: " + fieldName, ref.varName);
         return;
       }
+      ref.structName = structDef.structName.lexeme;
       currentType = getStructFieldType(fieldName, structDef);
       if (i < node.path.size() - 1 && currentType.isArray && !ref.arrayExpr.isPresent()) {
         error("Cannot access field of array without indexing", node.path.get(i + 1).varName);
@@ -800,6 +891,8 @@ public class SemanticChecker implements Visitor {
     node.rhs.accept(this);
     DataType rhsType = currType;
     String op = node.binaryOp.lexeme;
+    // record the (checked) operand type for type-specialized code generation
+    node.operandType = lhsType;
     if (op.equals("+")) {
       if (lhsType != null && rhsType != null &&
           !lhsType.isArray && !rhsType.isArray) {
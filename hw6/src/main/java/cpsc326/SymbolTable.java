@@ -19,6 +19,10 @@ public class SymbolTable {
 
   // a stack (as a deque) of environments (name -> data type mappings)
   private Deque<Map<String,DataType>> environments = new ArrayDeque<>();
+  // name -> stack of the types it is bound to (innermost on top), so a
+  // name is found without searching each environment (the popped
+  // environment's names give the bindings to undo)
+  private Map<String,Deque<DataType>> bindings = new HashMap<>();
 
   /**
    * Add an environment to the symbol table. 
@@ -31,8 +35,14 @@ public class SymbolTable {
    * Remove last added environment from the symbol table. 
    */
   public void popEnvironment() {
-    if (environments.size() > 0)
-      environments.pop();
+    if (environments.size() > 0) {
+      for (String name : environments.pop().keySet()) {
+        Deque<DataType> types = bindings.get(name);
+        types.pop();
+        if (types.isEmpty())
+          bindings.remove(name);
+      }
+    }
   }
 
   /**
@@ -41,10 +51,7 @@ public class SymbolTable {
    * @return true if the name exists in the symbol table
    */ 
   public boolean exists(String name) {
-    for (var env : environments)
-      if (env.containsKey(name))
-        return true;
-    return false;
+    return bindings.containsKey(name);
   }
   
   /**
@@ -63,8 +70,13 @@ public class SymbolTable {
    * @param type the data type to bind to the variable name
    */
   public void add(String name, DataType type) {
-    if (environments.size() > 0)
+    if (environments.size() > 0) {
+      Deque<DataType> types = bindings.computeIfAbsent(name, k -> new ArrayDeque<>());
+      if (environments.peek().containsKey(name))
+        types.pop(); // rebinding in the same environment
       environments.peek().put(name, type);
+      types.push(type);
+    }
   }
 
   /**
@@ -73,11 +85,8 @@ public class SymbolTable {
    * @return the data type
    */
   public DataType get(String name) {
-    for (var env : environments) {
-      if (env.containsKey(name))
-        return env.get(name);
-    }
-    return null;
+    Deque<DataType> types = bindings.get(name);
+    return types == null ? null : types.peek();
   }
   
   /**
@@ -6,15 +6,22 @@
 
 package cpsc326;
 
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Deque;
 import java.util.ArrayDeque;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Arrays;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 
 /**
  * MyPL virtual machine for running MyPL programs (as VM
@@ -29,14 +36,8 @@ public class VM {
     }
   };
 
-  /* the array heap as an oid to list mapping */
-  private Map<Integer, List<Object>> arrayHeap = new HashMap<>();
-
-  /* the struct heap as an oid to object (field to value map) mapping */
-  private Map<Integer, Map<String, Object>> structHeap = new HashMap<>();
-
   /* the operand stack */
-  private Deque<Object> operandStack = new ArrayDeque<>();
+  private VMStack operandStack = new VMStack();
 
   /* the function (frame) call stack */
   private Deque<VMFrame> callStack = new ArrayDeque<>();
@@ -44,12 +45,63 @@ public class VM {
   /* the set of program function definitions (frame templates) */
   private Map<String, VMFrameTemplate> templates = new HashMap<>();
 
-  /* the next unused object id */
-  private int nextObjectId = 2025;
+  /* true if CALL instructions have been resolved to their templates */
+  private boolean linked = false;
+
+  /* the default output buffer size (in characters) */
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+  /* the input buffer size (in characters) */
+  private static final int INPUT_BUFFER_SIZE = 1 << 16;
+
+  /* program output (from WRITE) not yet printed to standard output */
+  private StringBuilder outputBuffer = new StringBuilder();
+
+  /* the output buffer is flushed once it holds this many characters */
+  private int outputBufferSize = OUTPUT_BUFFER_SIZE;
+
+  /* program input (for READ), standard input unless set otherwise */
+  private BufferedReader input;
+
+  /* heap statistics: number of struct and array objects allocated */
+  private long structsAllocated = 0;
+  private long arraysAllocated = 0;
+
+  /* the JVM's garbage collection count when the VM was created */
+  private long baseCollectionCount = jvmCollectionCount();
 
   /* debug flag for output debug info during vm execution (run) */
   private boolean debug = false;
 
+  /* the profiler collecting execution counters (null if not profiling) */
+  private VMProfiler profiler;
+
+  /* the added listeners (e.g., a tracer) */
+  private List<VMListener> listeners = new ArrayList<>();
+
+  /* the available instruction dispatch loops for run */
+  public enum Engine {
+    SWITCH, CHAIN, JIT
+  };
+
+  /* the dispatch loop used by run */
+  private Engine engine = Engine.SWITCH;
+
+  /* the default number of calls plus loop iterations after which the
+     JIT engine compiles a function */
+  private static final int JIT_THRESHOLD = 1000;
+
+  /* the stack size (in bytes) of the thread running the JIT engine:
+     compiled calls use the JVM's call stack, so this limits their
+     recursion depth (as for a compiled jar, see JarRuntime) */
+  private static final long JIT_STACK_SIZE = 1L << 30;
+
+  /* the JIT engine's compile threshold */
+  private int jitThreshold = JIT_THRESHOLD;
+
+  /* the JIT engine's compiler (created when the program runs) */
+  private VMCompiler compiler;
+
   // helper functions
 
   /**
@@ -68,11 +120,21 @@ public class VM {
    * @param frame The frame where the error occurred.
    */
   private void error(String msg, VMFrame frame) {
+    error(msg, frame.template, frame.pc - 1);
+  }
+
+  /**
+   * Create and throw an error (for a specific instruction, e.g., of
+   * a compiled function).
+   * 
+   * @param msg      The error message.
+   * @param template The function where the error occurred.
+   * @param pc       The index of the instruction.
+   */
+  static void error(String msg, VMFrameTemplate template, int pc) {
     String s = "%s in %s at %d: %s";
-    String name = frame.template.functionName;
-    int pc = frame.pc - 1;
-    VMInstr instr = frame.template.instructions.get(pc);
-    MyPLException.vmError(String.format(s, msg, name, pc, instr));
+    VMInstr instr = template.instructions.get(pc);
+    MyPLException.vmError(String.format(s, msg, template.functionName, pc, instr));
   }
 
   /**
@@ -82,6 +144,48 @@ public class VM {
    */
   public void add(VMFrameTemplate template) {
     templates.put(template.functionName, template);
+    linked = false;
+  }
+
+  /**
+   * Gives the frame templates (functions) of the program.
+   * 
+   * @return the templates
+   */
+  public Collection<VMFrameTemplate> frameTemplates() {
+    return Collections.unmodifiableCollection(templates.values());
+  }
+
+  /**
+   * Link the program by resolving the function name operand of each
+   * CALL instruction to the called function's frame template. This
+   * is done once before the program runs so that calls don't need a
+   * name lookup, and so that calls to undefined functions are
+   * reported before any instruction executes.
+   */
+  public void link() {
+    for (VMFrameTemplate template : templates.values()) {
+      for (int i = 0; i < template.instructions.size(); ++i) {
+        VMInstr instr = template.instructions.get(i);
+        if (instr.opcode != OpCode.CALL)
+          continue;
+        // a template operand is from an earlier link (relink by name)
+        String funcName = instr.operand instanceof VMFrameTemplate
+            ? ((VMFrameTemplate) instr.operand).functionName
+            : (String) instr.operand;
+        if (!templates.containsKey(funcName)) {
+          String s = "undefined function: %s in %s at %d: %s";
+          error(String.format(s, funcName, template.functionName, i, instr));
+        }
+        instr.operand = templates.get(funcName);
+      }
+      // compiled code calls the templates it was linked to
+      template.hotness = 0;
+      template.compiled = null;
+      template.uncompilable = false;
+    }
+    compiler = null;
+    linked = true;
   }
 
   /**
@@ -93,6 +197,181 @@ public class VM {
     debug = on;
   }
 
+  /**
+   * For turning on profile mode, i.e., collecting execution counters
+   * while the program runs (see VMProfiler).
+   * 
+   * @param on Set to true to turn on profiling, false to turn it off.
+   */
+  public void profileMode(boolean on) {
+    profiler = on ? new VMProfiler() : null;
+  }
+
+  /**
+   * Gives the profiler of the last run (null if not profiling).
+   */
+  public VMProfiler profiler() {
+    return profiler;
+  }
+
+  /**
+   * Add a listener to observe the program as it runs.
+   * 
+   * @param listener The listener to add
+   */
+  public void addListener(VMListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * For turning off output buffering, e.g., for interactive programs
+   * that print partial lines. Buffered output is flushed when the
+   * buffer is full, before reading input, and when the program ends.
+   * 
+   * @param on Set to true to buffer output (the default), false to
+   *           print each value as it is written.
+   */
+  public void bufferedOutput(boolean on) {
+    outputBufferSize = on ? OUTPUT_BUFFER_SIZE : 0;
+  }
+
+  /**
+   * Print and clear the buffered program output.
+   */
+  public void flushOutput() {
+    if (outputBuffer.length() > 0) {
+      System.out.print(outputBuffer);
+      outputBuffer.setLength(0);
+    }
+    System.out.flush();
+  }
+
+  /**
+   * Set where READ instructions get their input lines from. The same
+   * reader is used for every READ, so no buffered input is lost
+   * between reads.
+   * 
+   * @param reader The input source (e.g., a file)
+   */
+  public void setInput(Reader reader) {
+    input = reader instanceof BufferedReader
+        ? (BufferedReader) reader
+        : new BufferedReader(reader, INPUT_BUFFER_SIZE);
+  }
+
+  /**
+   * Select the instruction dispatch loop used when running the
+   * program.
+   * 
+   * @param engine SWITCH (the default), CHAIN (the original
+   *               if/else-if dispatch), or JIT (SWITCH that compiles
+   *               hot functions to JVM code, see VMCompiler); ignored
+   *               if the VM has listeners (see run)
+   */
+  public void engineMode(Engine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Set the number of calls plus loop iterations (backward jumps)
+   * after which the JIT engine compiles a function.
+   * 
+   * @param threshold The threshold (0 compiles each function when it
+   *                  is first called)
+   */
+  public void jitThreshold(int threshold) {
+    jitThreshold = threshold;
+  }
+
+  /**
+   * Gives the JIT engine's compiler of the last run (null if the JIT
+   * engine wasn't used).
+   */
+  public VMCompiler compiler() {
+    return compiler;
+  }
+
+  // Heap statistics. Struct and array objects are plain JVM objects
+  // referenced directly from the operand stack, frame memory, and
+  // other objects, so the JVM's collector reclaims them as soon as the
+  // program can no longer reach them.
+
+  /**
+   * Gives the total number of garbage collections run by the JVM.
+   */
+  private static long jvmCollectionCount() {
+    long count = 0;
+    for (var gc : ManagementFactory.getGarbageCollectorMXBeans())
+      count += Math.max(0, gc.getCollectionCount());
+    return count;
+  }
+
+  /**
+   * Gives the number of struct objects allocated so far.
+   */
+  public long structsAllocated() {
+    return structsAllocated;
+  }
+
+  /**
+   * Gives the number of array objects allocated so far.
+   */
+  public long arraysAllocated() {
+    return arraysAllocated;
+  }
+
+  /**
+   * Gives the number of garbage collections the JVM has run since the
+   * VM was created. These are JVM-wide counts (e.g., they include
+   * collections of the compiler's own allocations), not collections of
+   * the VM heap alone.
+   */
+  public long collectionCount() {
+    return jvmCollectionCount() - baseCollectionCount;
+  }
+
+  /**
+   * Mark the struct and array objects reachable from the VM roots
+   * (the operand stack and the memory of every frame on the call
+   * stack), i.e., the objects that make up the live heap.
+   * 
+   * @return the number of reachable objects and their total number of
+   *         slots (fields or elements)
+   */
+  public long[] liveHeap() {
+    Set<Object> marked = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Object[]> work = new ArrayDeque<>();
+    List<Object> roots = new ArrayList<>();
+    for (int i = 0; i < operandStack.size(); ++i)
+      roots.add(operandStack.get(i));
+    for (VMFrame frame : callStack)
+      roots.addAll(Arrays.asList(frame.memory));
+    long slots = 0;
+    for (Object root : roots) {
+      if (root instanceof Object[] && marked.add(root))
+        work.push((Object[]) root);
+    }
+    while (!work.isEmpty()) {
+      Object[] obj = work.pop();
+      slots += obj.length;
+      for (Object x : obj)
+        if (x instanceof Object[] && marked.add(x))
+          work.push((Object[]) x);
+    }
+    return new long[] {marked.size(), slots};
+  }
+
+  /**
+   * Summarize the heap statistics.
+   */
+  public String heapStats() {
+    long[] live = liveHeap();
+    String s = "structs allocated: %d\narrays allocated: %d\n"
+        + "live objects: %d (%d slots)\njvm gc count: %d (whole jvm)\n";
+    return String.format(s, structsAllocated, arraysAllocated, live[0], live[1],
+        collectionCount());
+  }
+
   /**
    * Pretty-print the VM frames.
    */
@@ -107,7 +386,10 @@ public class VM {
     return s;
   }
 
-  // Additional helpers for implementing the VM instructions
+  // Additional helpers for implementing the VM instructions. The
+  // static (and package-private) helpers work on values instead of
+  // the operand stack, so compiled code (see VMCompiler) can share
+  // them, and report errors for the given instruction.
 
   /**
    * Helper to ensure the given value isn't NULL
@@ -116,14 +398,25 @@ public class VM {
    * @param frame the current stack frame
    */
   private void ensureNotNull(Object x, VMFrame frame) {
+    ensureNotNull(x, frame.template, frame.pc - 1);
+  }
+
+  /**
+   * Helper to ensure the given value isn't NULL
+   * 
+   * @param x        the value to check
+   * @param template the current function
+   * @param pc       the index of the current instruction
+   */
+  static void ensureNotNull(Object x, VMFrameTemplate template, int pc) {
     if (x == NULL)
-      error("null value error", frame);
+      error("null value error", template, pc);
   }
 
   /**
    * Helper to add two objects
    */
-  private Object addHelper(Object x, Object y) {
+  static Object addHelper(Object x, Object y) {
     if (x instanceof Integer)
       return (int) x + (int) y;
     else if (x instanceof Double)
@@ -135,7 +428,7 @@ public class VM {
   /**
    * Helper to subtract two objects
    */
-  private Object subHelper(Object x, Object y) {
+  static Object subHelper(Object x, Object y) {
     if (x instanceof Integer)
       return (int) x - (int) y;
     else
@@ -145,7 +438,7 @@ public class VM {
   /**
    * Helper to multiply two objects
    */
-  private Object mulHelper(Object x, Object y) {
+  static Object mulHelper(Object x, Object y) {
     if (x instanceof Integer)
       return (int) x * (int) y;
     else
@@ -155,20 +448,20 @@ public class VM {
   /**
    * Helper to divide two objects
    */
-  private Object divHelper(Object x, Object y, VMFrame f) {
+  static Object divHelper(Object x, Object y, VMFrameTemplate template, int pc) {
     if (x instanceof Integer && (int) y != 0)
       return (int) ((int) x / (int) y);
     else if (x instanceof Double && (double) y != 0.0)
       return (double) x / (double) y;
     else
-      error("division by zero error", f);
+      error("division by zero error", template, pc);
     return null;
   }
 
   /**
    * Helper to compare if first object less than second
    */
-  private Object cmpltHelper(Object x, Object y) {
+  static Object cmpltHelper(Object x, Object y) {
     if (x instanceof Integer)
       return (int) x < (int) y;
     else if (x instanceof Double)
@@ -180,7 +473,7 @@ public class VM {
   /**
    * Helper to compare if first object less than or equal second
    */
-  private Object cmpleHelper(Object x, Object y) {
+  static Object cmpleHelper(Object x, Object y) {
     if (x instanceof Integer)
       return (int) x <= (int) y;
     else if (x instanceof Double)
@@ -188,355 +481,877 @@ public class VM {
     else
       return ((String) x).compareTo((String) y) <= 0;
   }
-  // the main run method
 
   /**
-   * Execute the program
+   * Helper to compare two objects for equality (the only comparison
+   * defined on null).
    */
-  public void run() {
-    // grab the main frame and "instantiate" it
-    if (!templates.containsKey("main"))
-      error("No 'main' function");
-    VMFrame frame = new VMFrame(templates.get("main"));
-    callStack.push(frame);
+  static boolean isEqual(Object x, Object y) {
+    return (x == NULL && y == NULL) || (x != NULL && y != NULL && x.equals(y));
+  }
 
-    // run loop until out of call frames or instructions in the frame
-    while (!callStack.isEmpty() && frame.pc < frame.template.instructions.size()) {
-      // get the next instruction
-      VMInstr instr = frame.template.instructions.get(frame.pc);
+  /**
+   * Helper to pop an int operand for a type-specialized instruction.
+   * The only non-int value the code generator allows here is NULL.
+   */
+  private int popInt(VMFrame frame) {
+    if (operandStack.peekTag() != VMStack.INT)
+      error("null value error", frame);
+    return operandStack.popInt();
+  }
 
-      // for debugging:
-      if (debug) {
-        System.out.println();
-        System.out.println("\t FRAME.........: " + frame.template.functionName);
-        System.out.println("\t PC............: " + frame.pc);
-        System.out.println("\t INSTRUCTION...: " + instr);
-        Object val = operandStack.isEmpty() ? null : operandStack.peek();
-        System.out.println("\t NEXT OPERAND..: " + val);
-      }
+  /**
+   * Helper to pop a double operand for a type-specialized
+   * instruction. The only non-double value allowed here is NULL.
+   */
+  private double popDouble(VMFrame frame) {
+    if (operandStack.peekTag() != VMStack.DBL)
+      error("null value error", frame);
+    return operandStack.popDouble();
+  }
 
-      // increment the pc
-      ++frame.pc;
+  // Instruction implementations shared by the execution engines
 
-      // ----------------------------------------------------------------------
-      // Literals and Variables
-      // ----------------------------------------------------------------------
+  /**
+   * Helper to pop two operands, apply a binary operation, and push
+   * the result. Both operands must be non-null.
+   */
+  private void binaryOp(OpCode opcode, VMFrame frame) {
+    Object y = operandStack.pop();
+    Object x = operandStack.pop();
+    ensureNotNull(x, frame);
+    ensureNotNull(y, frame);
+    if (opcode == OpCode.ADD)
+      operandStack.push(addHelper(x, y));
+    else if (opcode == OpCode.SUB)
+      operandStack.push(subHelper(x, y));
+    else if (opcode == OpCode.MUL)
+      operandStack.push(mulHelper(x, y));
+    else if (opcode == OpCode.DIV)
+      operandStack.push(divHelper(x, y, frame.template, frame.pc - 1));
+    else if (opcode == OpCode.CMPLT)
+      operandStack.push(cmpltHelper(x, y));
+    else if (opcode == OpCode.CMPLE)
+      operandStack.push(cmpleHelper(x, y));
+    else if (opcode == OpCode.AND)
+      operandStack.push((boolean) x && (boolean) y);
+    else
+      operandStack.push((boolean) x || (boolean) y);
+  }
 
-      if (instr.opcode == OpCode.PUSH) {
-        operandStack.push(instr.operand);
+  /**
+   * Helper for the int-specialized binary operations. Operands and
+   * results stay unboxed on the operand stack.
+   */
+  private void intOp(OpCode opcode, VMFrame frame) {
+    int y = popInt(frame);
+    int x = popInt(frame);
+    switch (opcode) {
+      case IADD -> operandStack.pushInt(x + y);
+      case ISUB -> operandStack.pushInt(x - y);
+      case IMUL -> operandStack.pushInt(x * y);
+      case IDIV -> {
+        if (y == 0)
+          error("division by zero error", frame);
+        operandStack.pushInt(x / y);
       }
+      case ICMPLT -> operandStack.push(x < y);
+      default -> operandStack.push(x <= y);
+    }
+  }
 
-      else if (instr.opcode == OpCode.POP) {
-        operandStack.pop();
+  /**
+   * Helper for the double-specialized binary operations. Operands
+   * and results stay unboxed on the operand stack.
+   */
+  private void doubleOp(OpCode opcode, VMFrame frame) {
+    double y = popDouble(frame);
+    double x = popDouble(frame);
+    switch (opcode) {
+      case DADD -> operandStack.pushDouble(x + y);
+      case DSUB -> operandStack.pushDouble(x - y);
+      case DMUL -> operandStack.pushDouble(x * y);
+      case DDIV -> {
+        if (y == 0.0)
+          error("division by zero error", frame);
+        operandStack.pushDouble(x / y);
       }
+      case DCMPLT -> operandStack.push(x < y);
+      default -> operandStack.push(x <= y);
+    }
+  }
 
-      else if (instr.opcode == OpCode.LOAD) {
-        operandStack.push(frame.memory.get((int) instr.operand));
-      }
+  /**
+   * Helper for CMPEQ and CMPNE.
+   */
+  private void equality(OpCode opcode) {
+    Object y = operandStack.pop();
+    Object x = operandStack.pop();
+    boolean isEqual = isEqual(x, y);
+    operandStack.push(opcode == OpCode.CMPEQ ? isEqual : !isEqual);
+  }
 
-      else if (instr.opcode == OpCode.STORE) {
-        int index = (int) instr.operand;
-        Object value = operandStack.pop();
-        // Check if the index is valid
-        if (index < 0 || index > frame.memory.size()) {
-          error("invalid memory address: " + index, frame);
-        }
+  /**
+   * Helper for NOT.
+   */
+  private void not(VMFrame frame) {
+    Object x = operandStack.pop();
+    ensureNotNull(x, frame);
+    operandStack.push(!(boolean) x);
+  }
 
-        // Ensure memory list has enough space
-        while (frame.memory.size() <= index) {
-          frame.memory.add(null);
-        }
+  /**
+   * Helper for JMPF: pop the condition and jump if it is false.
+   */
+  private void jumpIfFalse(VMInstr instr, VMFrame frame) {
+    int offset = (int) instr.operand;
+    Object x = operandStack.pop();
+    ensureNotNull(x, frame);
+    if (!(boolean) x) {
+      frame.pc = offset;
+    }
+  }
 
-        // Now set the value
-        frame.memory.set(index, value);
-      }
+  /**
+   * Helper for CALL: instantiate and push the callee's frame (the
+   * operand is the callee's template after linking).
+   * 
+   * @return the new current frame
+   */
+  private VMFrame call(VMInstr instr) {
+    VMFrame newFrame = new VMFrame((VMFrameTemplate) instr.operand);
+    callStack.push(newFrame);
+    return newFrame;
+  }
 
-      // ----------------------------------------------------------------------
-      // Arithmetic Operations
-      // ----------------------------------------------------------------------
+  /**
+   * Helper for RET: pop the current frame. The return value (if any)
+   * stays on the operand stack for the caller to use.
+   * 
+   * @return the caller's frame or null if the program is finished
+   */
+  private VMFrame ret() {
+    callStack.pop();
+    return callStack.peek();
+  }
 
-      else if (instr.opcode == OpCode.ADD)
+  /**
+   * Helper for WRITE.
+   */
+  private void write() {
+    byte tag = operandStack.peekTag();
+    if (tag == VMStack.INT)
+      write(operandStack.popInt());
+    else if (tag == VMStack.DBL)
+      write(operandStack.popDouble());
+    else
+      write(operandStack.pop()); // NULL prints as "null"
+  }
 
-      {
-        Object y = operandStack.pop();
-        Object x = operandStack.pop();
-        ensureNotNull(x, frame);
-        ensureNotNull(y, frame);
-        operandStack.push(addHelper(x, y));
-      }
+  /**
+   * Helpers to write a value to the (buffered) output.
+   */
+  void write(int value) {
+    outputBuffer.append(value);
+    flushIfFull();
+  }
 
-      else if (instr.opcode == OpCode.SUB) {
-        Object y = operandStack.pop();
-        Object x = operandStack.pop();
-        ensureNotNull(x, frame);
-        ensureNotNull(y, frame);
-        operandStack.push(subHelper(x, y));
-      }
+  void write(double value) {
+    outputBuffer.append(value);
+    flushIfFull();
+  }
 
-      else if (instr.opcode == OpCode.MUL) {
-        Object y = operandStack.pop();
-        Object x = operandStack.pop();
-        ensureNotNull(x, frame);
-        ensureNotNull(y, frame);
-        operandStack.push(mulHelper(x, y));
-      }
+  void write(Object value) {
+    outputBuffer.append(value);
+    flushIfFull();
+  }
 
-      else if (instr.opcode == OpCode.DIV) {
-        Object y = operandStack.pop();
-        Object x = operandStack.pop();
-        ensureNotNull(x, frame);
-        ensureNotNull(y, frame);
-        operandStack.push(divHelper(x, y, frame));
-      }
+  /**
+   * Helper to print the buffered output once the buffer is full.
+   */
+  private void flushIfFull() {
+    if (outputBuffer.length() >= outputBufferSize)
+      flushOutput();
+  }
 
-      // ----------------------------------------------------------------------
-      // Comparison Operations
-      // ----------------------------------------------------------------------
+  /**
+   * Helper for READ.
+   */
+  private void read(VMFrame frame) {
+    operandStack.push(readLine(frame.template, frame.pc - 1));
+  }
 
-      else if (instr.opcode == OpCode.CMPLT) {
-        Object y = operandStack.pop();
-        Object x = operandStack.pop();
-        ensureNotNull(x, frame);
-        ensureNotNull(y, frame);
-        operandStack.push(cmpltHelper(x, y));
-      }
+  /**
+   * Helper to read the next input line.
+   */
+  String readLine(VMFrameTemplate template, int pc) {
+    flushOutput(); // e.g., so a prompt shows before waiting for input
+    try {
+      if (input == null)
+        setInput(new InputStreamReader(System.in));
+      String line = input.readLine();
+      if (line == null)
+        error("read operation failed: end of input", template, pc);
+      return line;
+    } catch (IOException e) {
+      error("read operation failed: " + e.getMessage(), template, pc);
+    }
+    return null;
+  }
 
-      else if (instr.opcode == OpCode.CMPLE) {
-        Object y = operandStack.pop();
-        Object x = operandStack.pop();
-        ensureNotNull(x, frame);
-        ensureNotNull(y, frame);
-        operandStack.push(cmpleHelper(x, y));
-      }
+  /**
+   * Helper for LEN (of a string or an array).
+   */
+  private void len(VMFrame frame) {
+    operandStack.pushInt(length(operandStack.pop(), frame.template, frame.pc - 1));
+  }
 
-      else if (instr.opcode == OpCode.CMPEQ || instr.opcode == OpCode.CMPNE) {
-        Object y = operandStack.pop();
-        Object x = operandStack.pop();
-        boolean isEqual = (x == NULL && y == NULL) || (x != NULL && y != NULL && x.equals(y));
-        operandStack.push(instr.opcode == OpCode.CMPEQ ? isEqual : !isEqual);
-      }
+  /**
+   * Helper to get the length of a string or an array.
+   */
+  static int length(Object value, VMFrameTemplate template, int pc) {
+    ensureNotNull(value, template, pc);
+    if (value instanceof String) {
+      return ((String) value).length();
+    } else if (value instanceof Object[]) {
+      return ((Object[]) value).length;
+    } else {
+      error("len operation applied to invalid type", template, pc);
+    }
+    return 0;
+  }
 
-      // ----------------------------------------------------------------------
-      // Logical Operations
-      // ----------------------------------------------------------------------
+  /**
+   * Helper for GETC.
+   */
+  private void getc(VMFrame frame) {
+    Object index = operandStack.pop();
+    Object str = operandStack.pop();
+    operandStack.push(charAt(str, index, frame.template, frame.pc - 1));
+  }
 
-      else if (instr.opcode == OpCode.AND || instr.opcode == OpCode.OR) {
-        Object y = operandStack.pop();
-        Object x = operandStack.pop();
-        ensureNotNull(x, frame);
-        ensureNotNull(y, frame);
-        operandStack.push(instr.opcode == OpCode.AND ? (boolean) x && (boolean) y : (boolean) x || (boolean) y);
-      }
+  /**
+   * Helper to get the character of a string (as a string).
+   */
+  static String charAt(Object str, Object index, VMFrameTemplate template, int pc) {
+    ensureNotNull(index, template, pc);
+    ensureNotNull(str, template, pc);
+    int i = (int) index;
+    String s = (String) str;
+    if (i < 0 || i >= s.length()) {
+      error("string index out of bounds: " + i, template, pc);
+    }
+    return String.valueOf(s.charAt(i));
+  }
 
-      else if (instr.opcode == OpCode.NOT) {
-        Object x = operandStack.pop();
-        ensureNotNull(x, frame);
-        operandStack.push(!(boolean) x);
-      }
+  /**
+   * Helper for TOINT and TODBL.
+   */
+  private void toNumber(OpCode opcode, VMFrame frame) {
+    Object value = operandStack.pop();
+    if (opcode == OpCode.TOINT)
+      operandStack.pushInt(toInt(value, frame.template, frame.pc - 1));
+    else
+      operandStack.pushDouble(toDouble(value, frame.template, frame.pc - 1));
+  }
 
-      // ----------------------------------------------------------------------
-      // Jump Instructions
-      // ----------------------------------------------------------------------
+  /**
+   * Helper to convert a double or a string to an int.
+   */
+  static int toInt(Object value, VMFrameTemplate template, int pc) {
+    ensureNotNull(value, template, pc);
+    try {
+      if (value instanceof Double)
+        return ((Double) value).intValue();
+      else if (value instanceof String)
+        return Integer.parseInt((String) value);
+      else
+        error("cannot convert to int: " + value, template, pc);
+    } catch (NumberFormatException e) {
+      error("cannot convert string to int: " + value, template, pc);
+    }
+    return 0;
+  }
 
-      else if (instr.opcode == OpCode.JMP) {
-        int offset = (int) instr.operand;
-        frame.pc = offset;
-      }
+  /**
+   * Helper to convert an int or a string to a double.
+   */
+  static double toDouble(Object value, VMFrameTemplate template, int pc) {
+    ensureNotNull(value, template, pc);
+    try {
+      if (value instanceof Integer)
+        return ((Integer) value).doubleValue();
+      else if (value instanceof String)
+        return Double.parseDouble((String) value);
+      else
+        error("cannot convert to double: " + value, template, pc);
+    } catch (NumberFormatException e) {
+      error("cannot convert string to double: " + value, template, pc);
+    }
+    return 0.0;
+  }
 
-      else if (instr.opcode == OpCode.JMPF) {
-        int offset = (int) instr.operand;
-        Object x = operandStack.pop();
-        ensureNotNull(x, frame);
-        if (!(boolean) x) {
-          frame.pc = offset;
-        }
-      }
+  /**
+   * Helper for TOSTR.
+   */
+  private void toStr(VMFrame frame) {
+    operandStack.push(toStr(operandStack.pop(), frame.template, frame.pc - 1));
+  }
 
-      // ----------------------------------------------------------------------
-      // Function Operations
-      // ----------------------------------------------------------------------
+  /**
+   * Helper to convert a (non-null) value to a string.
+   */
+  static String toStr(Object value, VMFrameTemplate template, int pc) {
+    ensureNotNull(value, template, pc);
+    return String.valueOf(value);
+  }
 
-      else if (instr.opcode == OpCode.CALL) {
-        String funcName = (String) instr.operand;
-        if (!templates.containsKey(funcName)) {
-          error("undefined function: " + funcName, frame);
-        }
-        VMFrame newFrame = new VMFrame(templates.get(funcName));
-        callStack.push(newFrame);
-        frame = newFrame;
-      }
+  /**
+   * Helper for ALLOCS: the operand is the number of fields. The
+   * struct object itself is pushed (as a reference).
+   */
+  private void allocStruct(VMInstr instr) {
+    operandStack.push(newStruct((int) instr.operand));
+  }
 
-      else if (instr.opcode == OpCode.RET) {
-        // The return value (if any) should already be on the operand stack
-        // Pop the current frame
-        callStack.pop();
-        if (callStack.isEmpty()) {
-          return;
-        }
-        frame = callStack.peek();
-        // Return value remains on operand stack for caller to use
-      }
+  /**
+   * Helper to allocate a struct object with the given number of
+   * (null) fields.
+   */
+  Object[] newStruct(int fields) {
+    Object[] struct = new Object[fields];
+    Arrays.fill(struct, NULL);
+    ++structsAllocated;
+    return struct;
+  }
 
-      // ----------------------------------------------------------------------
-      // I/O Operations
-      // ----------------------------------------------------------------------
+  /**
+   * Helper for SETF and GETF: the operand is the field's slot.
+   */
+  private void field(VMInstr instr, VMFrame frame) {
+    Object value = instr.opcode == OpCode.SETF ? operandStack.pop() : null;
+    Object[] struct = struct(operandStack.pop(), frame.template, frame.pc - 1);
+    int slot = (int) instr.operand;
+    if (instr.opcode == OpCode.SETF)
+      struct[slot] = value;
+    else
+      operandStack.push(struct[slot]);
+  }
 
-      else if (instr.opcode == OpCode.WRITE) {
-        Object x = operandStack.pop();
-        if (x == NULL) {
-          System.out.print("null");
-        } else {
-          System.out.print(x);
-        }
-      }
+  /**
+   * Helper to ensure a value is a struct object.
+   */
+  static Object[] struct(Object obj, VMFrameTemplate template, int pc) {
+    ensureNotNull(obj, template, pc);
+    if (!(obj instanceof Object[]))
+      error("invalid struct object: " + obj, template, pc);
+    return (Object[]) obj;
+  }
+
+  /**
+   * Helper for ALLOCA. The array object itself is pushed (as a
+   * reference).
+   */
+  private void allocArray(VMFrame frame) {
+    operandStack.push(newArray(operandStack.pop(), frame.template, frame.pc - 1));
+  }
+
+  /**
+   * Helper to allocate an array object of the given length (of null
+   * values).
+   */
+  Object[] newArray(Object length, VMFrameTemplate template, int pc) {
+    ensureNotNull(length, template, pc);
+    if (!(length instanceof Integer)) {
+      error("array length must be an integer", template, pc);
+    }
+    int len = (int) length;
+    if (len < 0) {
+      error("array length cannot be negative: " + len, template, pc);
+    }
+    Object[] array = new Object[len];
+    Arrays.fill(array, NULL);
+    ++arraysAllocated;
+    return array;
+  }
+
+  /**
+   * Helper for SETI and GETI.
+   */
+  private void index(VMInstr instr, VMFrame frame) {
+    Object value = instr.opcode == OpCode.SETI ? operandStack.pop() : null;
+    int i = popInt(frame);
+    Object[] array = array(operandStack.pop(), frame.template, frame.pc - 1);
+    checkIndex(array, i, frame.template, frame.pc - 1);
+    if (instr.opcode == OpCode.SETI)
+      array[i] = value;
+    else
+      operandStack.push(array[i]);
+  }
+
+  /**
+   * Helper to ensure a value is an array object.
+   */
+  static Object[] array(Object obj, VMFrameTemplate template, int pc) {
+    ensureNotNull(obj, template, pc);
+    if (!(obj instanceof Object[]))
+      error("invalid array object: " + obj, template, pc);
+    return (Object[]) obj;
+  }
+
+  /**
+   * Helper to ensure an index is in an array's bounds.
+   */
+  static void checkIndex(Object[] array, int i, VMFrameTemplate template, int pc) {
+    if (i < 0 || i >= array.length)
+      error("array index out of bounds: " + i, template, pc);
+  }
+
+  /**
+   * Helper to print the state of the VM before an instruction
+   * executes (the debug mode listener).
+   */
+  private void debugInfo(VMFrame frame, VMInstr instr, VMStack operandStack) {
+    flushOutput(); // keep program output in order with debug output
+    System.out.println();
+    System.out.println("\t FRAME.........: " + frame.template.functionName);
+    System.out.println("\t PC............: " + frame.pc);
+    System.out.println("\t INSTRUCTION...: " + instr);
+    Object val = operandStack.isEmpty() ? null : operandStack.peek();
+    System.out.println("\t NEXT OPERAND..: " + val);
+  }
+
+  // the main run method
+
+  /**
+   * Execute the program. The engine is selected once: without
+   * listeners (debug mode, profile mode, or added listeners) the
+   * dispatch loop has no per-instruction checks. With listeners, the
+   * program always runs in the switch interpreter's listened loop,
+   * whatever the engine mode (so e.g. a profile describes SWITCH).
+   */
+  public void run() {
+    // grab the main frame and "instantiate" it
+    if (!templates.containsKey("main"))
+      error("No 'main' function");
+    if (!linked)
+      link();
+    List<VMListener> active = new ArrayList<>();
+    if (debug)
+      active.add(this::debugInfo);
+    if (profiler != null)
+      active.add(profiler);
+    active.addAll(listeners);
+    VMFrame frame = new VMFrame(templates.get("main"));
+    callStack.push(frame);
+    for (VMListener listener : active)
+      listener.start(frame);
+    try {
+      if (!active.isEmpty())
+        runListened(frame, active.toArray(new VMListener[0]));
+      else if (engine == Engine.CHAIN)
+        runChain(frame);
+      else if (engine == Engine.JIT)
+        runJit(frame);
+      else
+        runSwitch(frame);
+    } catch (MyPLException e) {
+      for (VMListener listener : active)
+        listener.error(e);
+      throw e;
+    } finally {
+      // print what the program wrote before it ended (or failed)
+      flushOutput();
+      for (VMListener listener : active)
+        listener.finish();
+    }
+  }
 
-      else if (instr.opcode == OpCode.READ) {
-        try {
-          operandStack.push(new BufferedReader(new InputStreamReader(System.in)).readLine());
-        } catch (Exception e) {
-          error("read operation failed: " + e.getMessage(), frame);
+  /**
+   * The switch-dispatched execution engine. Each opcode is selected
+   * by a single (ordinal-indexed) table jump.
+   * 
+   * @param frame the frame to start executing in
+   */
+  private void runSwitch(VMFrame frame) {
+    // run loop until out of call frames or instructions in the frame
+    // (the switch is the same as step's, inlined into the loop)
+    while (frame.pc < frame.template.instructions.size()) {
+      // get the next instruction and increment the pc
+      VMInstr instr = frame.template.instructions.get(frame.pc++);
+
+      switch (instr.opcode) {
+        // literals and variables
+        case PUSH -> operandStack.push(instr.operand);
+        case POP -> operandStack.pop();
+        case LOAD -> operandStack.load(frame, (int) instr.operand);
+        case STORE -> operandStack.store(frame, (int) instr.operand);
+        // arithmetic, relational, and logical operators
+        case ADD, SUB, MUL, DIV, CMPLT, CMPLE, AND, OR -> binaryOp(instr.opcode, frame);
+        case CMPEQ, CMPNE -> equality(instr.opcode);
+        case NOT -> not(frame);
+        case IADD, ISUB, IMUL, IDIV, ICMPLT, ICMPLE -> intOp(instr.opcode, frame);
+        case DADD, DSUB, DMUL, DDIV, DCMPLT, DCMPLE -> doubleOp(instr.opcode, frame);
+        // jump and branch
+        case JMP -> frame.pc = (int) instr.operand;
+        case JMPF -> jumpIfFalse(instr, frame);
+        // functions
+        case CALL -> frame = call(instr);
+        case RET -> {
+          frame = ret();
+          if (frame == null)
+            return;
         }
+        // built ins
+        case WRITE -> write();
+        case READ -> read(frame);
+        case LEN -> len(frame);
+        case GETC -> getc(frame);
+        case TOINT, TODBL -> toNumber(instr.opcode, frame);
+        case TOSTR -> toStr(frame);
+        // heap
+        case ALLOCS -> allocStruct(instr);
+        case SETF, GETF -> field(instr, frame);
+        case ALLOCA -> allocArray(frame);
+        case SETI, GETI -> index(instr, frame);
+        // special
+        case DUP -> operandStack.dup();
+        case NOP -> {
+          // do nothing
+        }
+        default -> error("Unsupported operation: " + instr);
       }
+    }
+  }
 
-      // ----------------------------------------------------------------------
-      // String/Array Operations
-      // ----------------------------------------------------------------------
+  /**
+   * The tiered (JIT) execution engine: the switch engine, except that
+   * it counts each function's calls and loop iterations (backward
+   * jumps), and compiles a function to JVM code once the count
+   * reaches the threshold. Calls of a compiled function run its
+   * compiled code, and an interpreted call of a function that becomes
+   * compiled in a loop continues in the compiled code at the loop's
+   * start. Functions the compiler doesn't support stay interpreted.
+   * 
+   * @param frame the frame to start executing in
+   */
+  private void runJit(VMFrame frame) {
+    if (compiler == null)
+      compiler = new VMCompiler();
+    // compiled calls (and the interpreted calls they make) use the
+    // JVM's call stack instead of the VM's, so run on a large one
+    Throwable[] failure = new Throwable[1];
+    Thread thread = new Thread(null, () -> {
+      try {
+        interpret(frame);
+      } catch (Throwable t) {
+        failure[0] = t;
+      }
+    }, Thread.currentThread().getName(), JIT_STACK_SIZE);
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // the frames of compiled calls aren't on the VM's call stack, so
+    // (as for a compiled jar) the function isn't known
+    if (failure[0] instanceof StackOverflowError)
+      error("stack overflow error");
+    else if (failure[0] instanceof RuntimeException)
+      throw (RuntimeException) failure[0];
+    else if (failure[0] instanceof Error)
+      throw (Error) failure[0];
+  }
 
-      else if (instr.opcode == OpCode.LEN) {
-        Object value = operandStack.pop();
-        ensureNotNull(value, frame);
-        if (value instanceof String) {
-          operandStack.push(((String) value).length());
-        } else if (arrayHeap.containsKey((int) value)) {
-          operandStack.push(arrayHeap.get((int) value).size());
-        } else {
-          error("len operation applied to invalid type", frame);
+  /**
+   * Interpret a call of a function for the JIT engine, until the call
+   * returns.
+   * 
+   * @param frame the (new) frame of the call
+   */
+  private void interpret(VMFrame frame) {
+    VMFrame base = frame;
+    while (frame.pc < frame.template.instructions.size()) {
+      // get the next instruction and increment the pc
+      VMInstr instr = frame.template.instructions.get(frame.pc++);
+
+      switch (instr.opcode) {
+        // literals and variables
+        case PUSH -> operandStack.push(instr.operand);
+        case POP -> operandStack.pop();
+        case LOAD -> operandStack.load(frame, (int) instr.operand);
+        case STORE -> operandStack.store(frame, (int) instr.operand);
+        // arithmetic, relational, and logical operators
+        case ADD, SUB, MUL, DIV, CMPLT, CMPLE, AND, OR -> binaryOp(instr.opcode, frame);
+        case CMPEQ, CMPNE -> equality(instr.opcode);
+        case NOT -> not(frame);
+        case IADD, ISUB, IMUL, IDIV, ICMPLT, ICMPLE -> intOp(instr.opcode, frame);
+        case DADD, DSUB, DMUL, DDIV, DCMPLT, DCMPLE -> doubleOp(instr.opcode, frame);
+        // jump and branch
+        case JMP -> {
+          int target = (int) instr.operand;
+          if (target < frame.pc && isCompiled(frame.template)
+              && frame.template.compiled.run(this, operandStack, frame, target)) {
+            // the compiled code finished the call
+            boolean done = frame == base;
+            frame = ret();
+            if (done)
+              return;
+          } else
+            frame.pc = target;
+        }
+        case JMPF -> jumpIfFalse(instr, frame);
+        // functions
+        case CALL -> {
+          VMFrameTemplate callee = (VMFrameTemplate) instr.operand;
+          if (isCompiled(callee))
+            callee.compiled.run(this, operandStack, null, 0);
+          else
+            frame = call(instr);
+        }
+        case RET -> {
+          boolean done = frame == base;
+          frame = ret();
+          if (done)
+            return;
         }
+        // built ins
+        case WRITE -> write();
+        case READ -> read(frame);
+        case LEN -> len(frame);
+        case GETC -> getc(frame);
+        case TOINT, TODBL -> toNumber(instr.opcode, frame);
+        case TOSTR -> toStr(frame);
+        // heap
+        case ALLOCS -> allocStruct(instr);
+        case SETF, GETF -> field(instr, frame);
+        case ALLOCA -> allocArray(frame);
+        case SETI, GETI -> index(instr, frame);
+        // special
+        case DUP -> operandStack.dup();
+        case NOP -> {
+          // do nothing
+        }
+        default -> error("Unsupported operation: " + instr);
       }
+    }
+  }
 
-      else if (instr.opcode == OpCode.GETC) {
-        Object index = operandStack.pop();
-        Object str = operandStack.pop();
-        ensureNotNull(index, frame);
-        ensureNotNull(str, frame);
-        int i = (int) index;
-        String s = (String) str;
-        if (i < 0 || i >= s.length()) {
-          error("string index out of bounds: " + i, frame);
-        }
-        operandStack.push(String.valueOf(s.charAt(i)));
+  /**
+   * Count a call or loop iteration of a function for the JIT engine,
+   * and compile the function if it is now hot.
+   * 
+   * @param template the function
+   * @return true if the function is compiled
+   */
+  private boolean isCompiled(VMFrameTemplate template) {
+    if (template.compiled != null)
+      return true;
+    if (template.uncompilable || ++template.hotness < jitThreshold)
+      return false;
+    template.compiled = compiler.compile(template);
+    template.uncompilable = template.compiled == null;
+    return !template.uncompilable;
+  }
+
+  /**
+   * Call a function from compiled code: the arguments are on the
+   * operand stack, and the return value is left there (as for CALL).
+   * 
+   * @param template the called function
+   */
+  void invoke(VMFrameTemplate template) {
+    if (isCompiled(template))
+      template.compiled.run(this, operandStack, null, 0);
+    else {
+      VMFrame frame = new VMFrame(template);
+      callStack.push(frame);
+      interpret(frame);
+    }
+  }
+
+  /**
+   * The switch-dispatched execution engine that tells the listeners
+   * about each instruction before it executes.
+   * 
+   * @param frame the frame to start executing in
+   * @param listeners the listeners
+   */
+  private void runListened(VMFrame frame, VMListener[] listeners) {
+    while (frame.pc < frame.template.instructions.size()) {
+      VMInstr instr = frame.template.instructions.get(frame.pc);
+      for (VMListener listener : listeners)
+        listener.execute(frame, instr, operandStack);
+      ++frame.pc;
+      frame = step(instr, frame);
+      if (frame == null)
+        return;
+    }
+  }
+
+  /**
+   * Execute one instruction (the pc is already incremented). Used by
+   * the listened engine, so the switch is kept the same as
+   * runSwitch's.
+   * 
+   * @param instr the instruction
+   * @param frame the current frame
+   * @return the current frame after the instruction, or null if the
+   *         program is finished
+   */
+  private VMFrame step(VMInstr instr, VMFrame frame) {
+    switch (instr.opcode) {
+      // literals and variables
+      case PUSH -> operandStack.push(instr.operand);
+      case POP -> operandStack.pop();
+      case LOAD -> operandStack.load(frame, (int) instr.operand);
+      case STORE -> operandStack.store(frame, (int) instr.operand);
+      // arithmetic, relational, and logical operators
+      case ADD, SUB, MUL, DIV, CMPLT, CMPLE, AND, OR -> binaryOp(instr.opcode, frame);
+      case CMPEQ, CMPNE -> equality(instr.opcode);
+      case NOT -> not(frame);
+      case IADD, ISUB, IMUL, IDIV, ICMPLT, ICMPLE -> intOp(instr.opcode, frame);
+      case DADD, DSUB, DMUL, DDIV, DCMPLT, DCMPLE -> doubleOp(instr.opcode, frame);
+      // jump and branch
+      case JMP -> frame.pc = (int) instr.operand;
+      case JMPF -> jumpIfFalse(instr, frame);
+      // functions
+      case CALL -> frame = call(instr);
+      case RET -> frame = ret();
+      // built ins
+      case WRITE -> write();
+      case READ -> read(frame);
+      case LEN -> len(frame);
+      case GETC -> getc(frame);
+      case TOINT, TODBL -> toNumber(instr.opcode, frame);
+      case TOSTR -> toStr(frame);
+      // heap
+      case ALLOCS -> allocStruct(instr);
+      case SETF, GETF -> field(instr, frame);
+      case ALLOCA -> allocArray(frame);
+      case SETI, GETI -> index(instr, frame);
+      // special
+      case DUP -> operandStack.dup();
+      case NOP -> {
+        // do nothing
       }
+      default -> error("Unsupported operation: " + instr);
+    }
+    return frame;
+  }
+
+  /**
+   * The original execution engine that selects each opcode through an
+   * if/else-if chain. Kept for comparison with the switch engine.
+   * 
+   * @param frame the frame to start executing in
+   */
+  private void runChain(VMFrame frame) {
+    // run loop until out of call frames or instructions in the frame
+    while (!callStack.isEmpty() && frame.pc < frame.template.instructions.size()) {
+      // get the next instruction
+      VMInstr instr = frame.template.instructions.get(frame.pc);
+
+      // increment the pc
+      ++frame.pc;
 
       // ----------------------------------------------------------------------
-      // Type Conversion
+      // Literals and Variables
       // ----------------------------------------------------------------------
 
-      else if (instr.opcode == OpCode.TOINT || instr.opcode == OpCode.TODBL) {
-        Object value = operandStack.pop();
-        ensureNotNull(value, frame);
-        try {
-          if (instr.opcode == OpCode.TOINT) {
-            if (value instanceof Double)
-              operandStack.push(((Double) value).intValue());
-            else if (value instanceof String)
-              operandStack.push(Integer.parseInt((String) value));
-            else
-              error("cannot convert to int: " + value, frame);
-          } else { // TODBL
-            if (value instanceof Integer)
-              operandStack.push(((Integer) value).doubleValue());
-            else if (value instanceof String)
-              operandStack.push(Double.parseDouble((String) value));
-            else
-              error("cannot convert to double: " + value, frame);
-          }
-        } catch (NumberFormatException e) {
-          error("cannot convert string to " + (instr.opcode == OpCode.TOINT ? "int" : "double") + ": " + value, frame);
-        }
-      }
+      if (instr.opcode == OpCode.PUSH)
+        operandStack.push(instr.operand);
+      else if (instr.opcode == OpCode.POP)
+        operandStack.pop();
+      else if (instr.opcode == OpCode.LOAD)
+        operandStack.load(frame, (int) instr.operand);
+      else if (instr.opcode == OpCode.STORE)
+        operandStack.store(frame, (int) instr.operand);
 
-      else if (instr.opcode == OpCode.TOSTR) {
-        Object value = operandStack.pop();
-        ensureNotNull(value, frame); // This will throw an exception if value is NULL
-        operandStack.push(String.valueOf(value));
-      }
+      // ----------------------------------------------------------------------
+      // Arithmetic, Comparison, and Logical Operations
+      // ----------------------------------------------------------------------
+
+      else if (instr.opcode == OpCode.ADD || instr.opcode == OpCode.SUB
+          || instr.opcode == OpCode.MUL || instr.opcode == OpCode.DIV
+          || instr.opcode == OpCode.CMPLT || instr.opcode == OpCode.CMPLE)
+        binaryOp(instr.opcode, frame);
+      else if (instr.opcode == OpCode.CMPEQ || instr.opcode == OpCode.CMPNE)
+        equality(instr.opcode);
+      else if (instr.opcode == OpCode.AND || instr.opcode == OpCode.OR)
+        binaryOp(instr.opcode, frame);
+      else if (instr.opcode == OpCode.NOT)
+        not(frame);
+      else if (instr.opcode == OpCode.IADD || instr.opcode == OpCode.ISUB
+          || instr.opcode == OpCode.IMUL || instr.opcode == OpCode.IDIV
+          || instr.opcode == OpCode.ICMPLT || instr.opcode == OpCode.ICMPLE)
+        intOp(instr.opcode, frame);
+      else if (instr.opcode == OpCode.DADD || instr.opcode == OpCode.DSUB
+          || instr.opcode == OpCode.DMUL || instr.opcode == OpCode.DDIV
+          || instr.opcode == OpCode.DCMPLT || instr.opcode == OpCode.DCMPLE)
+        doubleOp(instr.opcode, frame);
 
       // ----------------------------------------------------------------------
-      // Struct Operations
+      // Jump Instructions
       // ----------------------------------------------------------------------
 
-      else if (instr.opcode == OpCode.ALLOCS) {
-        Map<String, Object> struct = new HashMap<>();
-        int oid = nextObjectId++;
-        structHeap.put(oid, struct);
-        operandStack.push(oid);
-      }
+      else if (instr.opcode == OpCode.JMP)
+        frame.pc = (int) instr.operand;
+      else if (instr.opcode == OpCode.JMPF)
+        jumpIfFalse(instr, frame);
 
-      else if (instr.opcode == OpCode.SETF || instr.opcode == OpCode.GETF) {
-        Object value = instr.opcode == OpCode.SETF ? operandStack.pop() : null;
-        Object oid = operandStack.pop();
-        String field = (String) instr.operand;
-        ensureNotNull(oid, frame);
-        if (!structHeap.containsKey((int) oid))
-          error("invalid struct object id: " + oid, frame);
-
-        if (instr.opcode == OpCode.SETF)
-          structHeap.get((int) oid).put(field, value);
-        else
-          operandStack.push(structHeap.get((int) oid).get(field));
+      // ----------------------------------------------------------------------
+      // Function Operations
+      // ----------------------------------------------------------------------
+
+      else if (instr.opcode == OpCode.CALL)
+        frame = call(instr);
+      else if (instr.opcode == OpCode.RET) {
+        frame = ret();
+        if (frame == null)
+          return;
       }
 
       // ----------------------------------------------------------------------
-      // Array Operations
+      // I/O, String, and Conversion Operations
       // ----------------------------------------------------------------------
 
-      else if (instr.opcode == OpCode.ALLOCA) {
-        Object length = operandStack.pop();
-        ensureNotNull(length, frame);
-        if (!(length instanceof Integer)) {
-          error("array length must be an integer", frame);
-        }
-        int len = (int) length;
-        if (len < 0) {
-          error("array length cannot be negative: " + len, frame);
-        }
-        List<Object> array = new ArrayList<>(Collections.nCopies(len, NULL));
-        int oid = nextObjectId++;
-        arrayHeap.put(oid, array);
-        operandStack.push(oid);
-      }
+      else if (instr.opcode == OpCode.WRITE)
+        write();
+      else if (instr.opcode == OpCode.READ)
+        read(frame);
+      else if (instr.opcode == OpCode.LEN)
+        len(frame);
+      else if (instr.opcode == OpCode.GETC)
+        getc(frame);
+      else if (instr.opcode == OpCode.TOINT || instr.opcode == OpCode.TODBL)
+        toNumber(instr.opcode, frame);
+      else if (instr.opcode == OpCode.TOSTR)
+        toStr(frame);
 
-      else if (instr.opcode == OpCode.SETI || instr.opcode == OpCode.GETI) {
-        Object value = instr.opcode == OpCode.SETI ? operandStack.pop() : null;
-        Object index = operandStack.pop();
-        Object oid = operandStack.pop();
-        ensureNotNull(oid, frame);
-        ensureNotNull(index, frame);
-        if (!arrayHeap.containsKey((int) oid))
-          error("invalid array object id: " + oid, frame);
-
-        int i = (int) index;
-        List<Object> array = arrayHeap.get((int) oid);
-        if (i < 0 || i >= array.size())
-          error("array index out of bounds: " + i, frame);
-
-        if (instr.opcode == OpCode.SETI)
-          array.set(i, value);
-        else
-          operandStack.push(array.get(i));
-      }
+      // ----------------------------------------------------------------------
+      // Struct and Array Operations
+      // ----------------------------------------------------------------------
+
+      else if (instr.opcode == OpCode.ALLOCS)
+        allocStruct(instr);
+      else if (instr.opcode == OpCode.SETF || instr.opcode == OpCode.GETF)
+        field(instr, frame);
+      else if (instr.opcode == OpCode.ALLOCA)
+        allocArray(frame);
+      else if (instr.opcode == OpCode.SETI || instr.opcode == OpCode.GETI)
+        index(instr, frame);
 
       // ----------------------------------------------------------------------
       // Special Instructions
       // ----------------------------------------------------------------------
 
-      else if (instr.opcode == OpCode.DUP) {
-        Object val = operandStack.peek();
-        operandStack.push(val);
-      } else if (instr.opcode == OpCode.NOP) {
+      else if (instr.opcode == OpCode.DUP)
+        operandStack.dup();
+      else if (instr.opcode == OpCode.NOP) {
         // do nothing
       } else
-
         error("Unsupported operation: " + instr);
     }
   }
@@ -0,0 +1,1322 @@
+/**
+ * CPSC 326, Spring 2025
+ * Just-in-time compiler from VM code to JVM classes.
+ */
+
+package cpsc326;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.Collections;
+import java.util.Arrays;
+import java.lang.invoke.MethodHandles;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import static org.objectweb.asm.Opcodes.*;
+
+
+/**
+ * Compiles the frame template of a (hot) function to a JVM class,
+ * defined as a hidden class, so the function runs as JVM code that
+ * the JVM can optimize like Java code.
+ *
+ * The operand stack slots and variables of the function become JVM
+ * local variables. A type analysis of the function's code finds where
+ * a slot or variable always holds a (non-null) int, double, or bool,
+ * which is then kept unboxed. All other values (including ones that
+ * may be null) are boxed, and the instructions on them call the same
+ * helpers as the interpreter, so compiled code reports the same
+ * errors (for the same instruction).
+ *
+ * Arguments and return values are passed on the VM's operand stack,
+ * so compiled and interpreted functions can call each other. Compiled
+ * code can also be entered at the start of a loop with the variables
+ * of an interpreted call (so a long running loop, e.g., in main,
+ * doesn't have to wait for the next call to run compiled).
+ *
+ * Code the analysis doesn't handle (e.g., a jump target reached with
+ * different numbers of operands on the stack) isn't compiled, and the
+ * function stays interpreted.
+ */
+public class VMCompiler {
+
+  /**
+   * The code of a compiled function.
+   */
+  public interface CompiledFunction {
+
+    /**
+     * Run (the rest of) a call of the function. The arguments are
+     * popped from, and the return value is pushed onto, the operand
+     * stack (the same as for an interpreted call).
+     *
+     * @param vm the vm running the program
+     * @param operandStack the vm's operand stack
+     * @param frame null for a new call, or the frame of an interpreted
+     *              call to continue at a loop's start
+     * @param pc the index of the loop's first instruction (for frame)
+     * @return false if the call can't continue at the pc (in which
+     *         case nothing was run)
+     */
+    boolean run(VM vm, VMStack operandStack, VMFrame frame, int pc);
+  }
+
+  /* the types of values in the analysis (of a variable or an operand
+     stack slot) and how the compiled code holds them */
+  private static final byte UNDEF = 0; // not set (yet)
+  private static final byte INT = 1;   // an int, as a JVM int
+  private static final byte DBL = 2;   // a double, as a JVM double
+  private static final byte BOOL = 3;  // a bool, as a JVM int (0 or 1)
+  private static final byte OBJ = 4;   // any value (or null), boxed
+
+  /* the JVM local variables of the compiled method's parameters, and
+     the first one for the function's variables and stack slots (each
+     has an int, a double, and an object local, but only the ones the
+     code uses are allocated) */
+  private static final int VM_LOCAL = 0;
+  private static final int STACK_LOCAL = 1;
+  private static final int FRAME_LOCAL = 2;
+  private static final int PC_LOCAL = 3;
+  private static final int FIRST_LOCAL = 4;
+
+  /* JVM names and descriptors used by the compiled code */
+  private static final String VM_TYPE = "cpsc326/VM";
+  private static final String STACK_TYPE = "cpsc326/VMStack";
+  private static final String FRAME_TYPE = "cpsc326/VMFrame";
+  private static final String COMPILER_TYPE = "cpsc326/VMCompiler";
+  private static final String OBJECT_TYPE = "java/lang/Object";
+  private static final String TEMPLATE_DESC = "Lcpsc326/VMFrameTemplate;";
+  private static final String AT_DESC = TEMPLATE_DESC + "I"; // an instruction
+  private static final String RUN_DESC = "(Lcpsc326/VM;Lcpsc326/VMStack;Lcpsc326/VMFrame;I)Z";
+
+  /* loads the compiled class's constants (the functions it uses) */
+  private static final Handle CLASS_DATA_AT = new Handle(H_INVOKESTATIC,
+      "java/lang/invoke/MethodHandles", "classDataAt",
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;I)Ljava/lang/Object;",
+      false);
+
+  /* for defining the compiled classes (in this package) */
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  /* the return types of the analyzed functions */
+  private Map<VMFrameTemplate, Byte> returnTypes = new IdentityHashMap<>();
+
+  /* the functions whose return types are being analyzed */
+  private Set<VMFrameTemplate> analyzing = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  /* the names of the compiled functions */
+  private List<String> compiled = new ArrayList<>();
+
+  /* the names of the functions that weren't compiled and why */
+  private Map<String, String> rejected = new LinkedHashMap<>();
+
+  /**
+   * Thrown for code the compiler doesn't handle. Only its message is
+   * kept (as the reason the function is rejected), so it doesn't
+   * fill in a stack trace.
+   */
+  private static class Unsupported extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported(String message) {
+      super(message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  /**
+   * Compile a function.
+   *
+   * @param template the function (after linking)
+   * @return the compiled code, or null if the function can't be
+   *         compiled
+   */
+  public CompiledFunction compile(VMFrameTemplate template) {
+    String name = template.functionName;
+    try {
+      Translation translation = new Translation(template, returnType(template));
+      translation.analyze();
+      byte[] bytes = translation.emit();
+      MethodHandles.Lookup lookup = LOOKUP.defineHiddenClassWithClassData(bytes,
+          List.copyOf(translation.constants), true);
+      CompiledFunction code = (CompiledFunction) lookup.lookupClass()
+          .getDeclaredConstructor().newInstance();
+      compiled.add(name);
+      return code;
+    } catch (Unsupported e) {
+      rejected.put(name, e.getMessage());
+    } catch (RuntimeException | ReflectiveOperationException | LinkageError e) {
+      // e.g., a method too large for the JVM
+      rejected.put(name, e.toString());
+    }
+    return null;
+  }
+
+  /**
+   * Gives the names of the compiled functions (in compile order).
+   */
+  public List<String> compiled() {
+    return Collections.unmodifiableList(compiled);
+  }
+
+  /**
+   * Gives the names of the functions that couldn't be compiled, each
+   * with the reason.
+   */
+  public Map<String, String> rejected() {
+    return Collections.unmodifiableMap(rejected);
+  }
+
+  /**
+   * Summarize the compiled and rejected functions.
+   */
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    s.append(String.format("jit: %d functions compiled, %d rejected%n", compiled.size(),
+                           rejected.size()));
+    for (String name : compiled)
+      s.append(String.format("  compiled %s%n", name));
+    for (String name : rejected.keySet())
+      s.append(String.format("  rejected %s: %s%n", name, rejected.get(name)));
+    return s.toString();
+  }
+
+  // ----------------------------------------------------------------------
+  // Helper functions
+  // ----------------------------------------------------------------------
+
+  /**
+   * Return the number of arguments a function pops from the operand
+   * stack (the parameters it stores before its first branch or call).
+   */
+  private static int arity(VMFrameTemplate template) {
+    int depth = 0;
+    int min = 0;
+    for (VMInstr instr : template.instructions) {
+      switch (instr.opcode) {
+        case PUSH, LOAD -> ++depth;
+        case POP, STORE -> min = Math.min(min, --depth);
+        case DUP -> min = Math.min(min, depth++ - 1);
+        case NOP -> {
+        }
+        default -> {
+          return -min;
+        }
+      }
+    }
+    return -min;
+  }
+
+  /**
+   * Return the type of a function's return value. A recursive call is
+   * first assumed to return any value (OBJ), and the analysis is
+   * repeated with the return type found that way, which is kept if
+   * the function then still returns it.
+   */
+  private byte returnType(VMFrameTemplate template) {
+    Byte type = returnTypes.get(template);
+    if (type != null)
+      return type;
+    if (analyzing.contains(template))
+      return OBJ; // (mutually) recursive
+    analyzing.add(template);
+    try {
+      Translation translation = new Translation(template, OBJ);
+      translation.analyze();
+      byte result = translation.returnType;
+      if (result != OBJ && result != UNDEF) {
+        translation = new Translation(template, result);
+        translation.analyze();
+        if (translation.returnType != result)
+          result = OBJ;
+      }
+      if (result == UNDEF)
+        result = OBJ; // never returns
+      returnTypes.put(template, result);
+      return result;
+    } finally {
+      analyzing.remove(template);
+    }
+  }
+
+  /**
+   * Return the type of a value joining two control flow paths.
+   */
+  private static byte join(byte x, byte y) {
+    if (x == y || y == UNDEF)
+      return x;
+    if (x == UNDEF)
+      return y;
+    return OBJ;
+  }
+
+  /**
+   * The types of the variables and operand stack slots before an
+   * instruction.
+   */
+  private static class State {
+    byte[] locals;
+    byte[] stack;
+
+    State(byte[] locals, byte[] stack) {
+      this.locals = locals;
+      this.stack = stack;
+    }
+
+    State copy() {
+      return new State(locals.clone(), stack.clone());
+    }
+  }
+
+  /**
+   * A conditional jump whose target needs values converted (boxed)
+   * before jumping.
+   */
+  private static class Stub {
+    Label label;
+    State state;
+    int target;
+
+    Stub(Label label, State state, int target) {
+      this.label = label;
+      this.state = state;
+      this.target = target;
+    }
+  }
+
+  /**
+   * The analysis and translation of one function. The same translate
+   * step is run for both: the analysis runs it to a fixed point (with
+   * a method visitor that ignores the code), then the translation runs
+   * it once per reachable instruction.
+   */
+  private class Translation {
+
+    /* the function */
+    VMFrameTemplate template;
+    List<VMInstr> code;
+
+    /* the assumed return type of the function's recursive calls */
+    byte selfReturn;
+
+    /* the type of the returned values found by the analysis */
+    byte returnType = UNDEF;
+
+    /* the state before each instruction (null if unreachable) */
+    State[] in;
+
+    /* the number of arguments, variables, and the max stack size */
+    int arity;
+    int locals;
+    int maxStack;
+
+    /* the compiled class's name and constants (the function, then
+       the functions it calls) */
+    String className;
+    List<Object> constants = new ArrayList<>();
+
+    /* where the code goes (ignored during the analysis) */
+    MethodVisitor mv = new MethodVisitor(ASM9) {};
+    boolean emitting = false;
+    Label[] labels;
+    List<Stub> stubs = new ArrayList<>();
+
+    /* the JVM locals of the variables and stack slots, by type (-1
+       if not used), and the next free JVM local */
+    int[] intLocals;
+    int[] doubleLocals;
+    int[] objectLocals;
+    int nextLocal = FIRST_LOCAL;
+
+    /* the analysis worklist (of instruction indexes) */
+    Deque<Integer> work = new ArrayDeque<>();
+
+    /* the instruction being translated and its state */
+    int pc;
+    State s;
+
+    Translation(VMFrameTemplate template, byte selfReturn) {
+      this.template = template;
+      this.code = template.instructions;
+      this.selfReturn = selfReturn;
+      this.arity = arity(template);
+      this.locals = template.localsSize;
+      this.maxStack = arity;
+      this.className = "cpsc326/Compiled$" + template.functionName;
+      constants.add(template);
+    }
+
+    /**
+     * Compute the state before each instruction.
+     */
+    void analyze() {
+      if (code.isEmpty())
+        throw new Unsupported("no instructions");
+      in = new State[code.size()];
+      merge(0, entry());
+      while (!work.isEmpty()) {
+        int next = work.pop();
+        State out = translate(next);
+        if (out == null)
+          continue;
+        if (next + 1 == code.size())
+          throw new Unsupported("runs past its last instruction");
+        merge(next + 1, out);
+      }
+    }
+
+    /**
+     * The state when a call starts (with the arguments on the stack).
+     */
+    State entry() {
+      byte[] args = new byte[arity];
+      Arrays.fill(args, OBJ);
+      return new State(new byte[locals], args);
+    }
+
+    /**
+     * Join a state into the state before an instruction.
+     */
+    void merge(int target, State state) {
+      State old = in[target];
+      if (old == null) {
+        in[target] = state.copy();
+        work.push(target);
+        return;
+      }
+      if (old.stack.length != state.stack.length)
+        throw new Unsupported("different stack sizes at " + target);
+      boolean changed = false;
+      for (int i = 0; i < locals; ++i) {
+        byte type = join(old.locals[i], state.locals[i]);
+        changed |= type != old.locals[i];
+        old.locals[i] = type;
+      }
+      for (int i = 0; i < old.stack.length; ++i) {
+        byte type = join(old.stack[i], state.stack[i]);
+        changed |= type != old.stack[i];
+        old.stack[i] = type;
+      }
+      if (changed)
+        work.push(target);
+    }
+
+    /**
+     * Generate the compiled class.
+     */
+    byte[] emit() {
+      ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+          return OBJECT_TYPE; // values are only used through helpers
+        }
+      };
+      cw.visit(V21, ACC_FINAL | ACC_SUPER, className, null, OBJECT_TYPE,
+               new String[] {COMPILER_TYPE + "$CompiledFunction"});
+      MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+      init.visitCode();
+      init.visitVarInsn(ALOAD, 0);
+      init.visitMethodInsn(INVOKESPECIAL, OBJECT_TYPE, "<init>", "()V", false);
+      init.visitInsn(RETURN);
+      init.visitMaxs(0, 0);
+      init.visitEnd();
+      MethodVisitor run = cw.visitMethod(ACC_PUBLIC, "run", RUN_DESC, null, null);
+      run.visitCode();
+      for (int i = 0; i < 4; ++i)
+        run.visitVarInsn(i == PC_LOCAL ? ILOAD : ALOAD, i + 1);
+      run.visitMethodInsn(INVOKESTATIC, className, "code", RUN_DESC, false);
+      run.visitInsn(IRETURN);
+      run.visitMaxs(0, 0);
+      run.visitEnd();
+
+      // the code (static, for direct recursive calls)
+      mv = cw.visitMethod(ACC_STATIC, "code", RUN_DESC, null, null);
+      emitting = true;
+      mv.visitCode();
+      labels = new Label[code.size()];
+      for (int i = 0; i < labels.length; ++i)
+        labels[i] = new Label();
+      intLocals = unused(locals + maxStack);
+      doubleLocals = unused(locals + maxStack);
+      objectLocals = unused(locals + maxStack);
+      // the used locals are only known once the code is generated, so
+      // they are set at the end (see emitInit)
+      Label setLocals = new Label();
+      Label start = new Label();
+      mv.visitJumpInsn(GOTO, setLocals);
+      mv.visitLabel(start);
+      Label resume = new Label();
+      mv.visitVarInsn(ALOAD, FRAME_LOCAL);
+      mv.visitJumpInsn(IFNONNULL, resume);
+      // a new call: pop the arguments (the last one is on top)
+      for (int i = arity - 1; i >= 0; --i) {
+        mv.visitVarInsn(ALOAD, STACK_LOCAL);
+        mv.visitMethodInsn(INVOKEVIRTUAL, STACK_TYPE, "pop", "()Ljava/lang/Object;", false);
+        mv.visitVarInsn(ASTORE, objectLocal(locals + i));
+      }
+      State out = entry();
+      for (int i = 0; i < code.size(); ++i) {
+        if (in[i] == null) {
+          out = null;
+          continue;
+        }
+        if (out != null)
+          convert(out, in[i]);
+        mv.visitLabel(labels[i]);
+        out = translate(i);
+      }
+      for (Stub stub : stubs) {
+        mv.visitLabel(stub.label);
+        convert(stub.state, in[stub.target]);
+        mv.visitJumpInsn(GOTO, labels[stub.target]);
+      }
+      emitResume(resume);
+      emitInit(setLocals, start);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+      cw.visitEnd();
+      return cw.toByteArray();
+    }
+
+    /**
+     * Generate the code that sets every used local (so each one is
+     * set on every path) and then jumps to the start of the code.
+     */
+    void emitInit(Label init, Label start) {
+      mv.visitLabel(init);
+      for (int var = 0; var < intLocals.length; ++var) {
+        if (intLocals[var] >= 0) {
+          mv.visitInsn(ICONST_0);
+          mv.visitVarInsn(ISTORE, intLocals[var]);
+        }
+        if (doubleLocals[var] >= 0) {
+          mv.visitInsn(DCONST_0);
+          mv.visitVarInsn(DSTORE, doubleLocals[var]);
+        }
+        if (objectLocals[var] >= 0) {
+          mv.visitInsn(ACONST_NULL);
+          mv.visitVarInsn(ASTORE, objectLocals[var]);
+        }
+      }
+      mv.visitJumpInsn(GOTO, start);
+    }
+
+    /**
+     * Generate the code that continues an interpreted call at the
+     * start of a loop: load the frame's variables and jump to the
+     * loop. Only the loops entered with an empty stack can be
+     * continued at.
+     */
+    void emitResume(Label resume) {
+      List<Integer> starts = new ArrayList<>();
+      for (int i = 0; i < code.size(); ++i) {
+        VMInstr instr = code.get(i);
+        if (in[i] == null || instr.opcode != OpCode.JMP)
+          continue;
+        int target = (int) instr.operand;
+        if (target <= i && in[target].stack.length == 0 && !starts.contains(target))
+          starts.add(target);
+      }
+      Collections.sort(starts);
+      mv.visitLabel(resume);
+      Label[] entries = new Label[starts.size()];
+      int[] keys = new int[starts.size()];
+      for (int i = 0; i < entries.length; ++i) {
+        entries[i] = new Label();
+        keys[i] = starts.get(i);
+      }
+      Label cannot = new Label();
+      mv.visitVarInsn(ILOAD, PC_LOCAL);
+      mv.visitLookupSwitchInsn(cannot, keys, entries);
+      for (int i = 0; i < entries.length; ++i) {
+        mv.visitLabel(entries[i]);
+        State state = in[keys[i]];
+        for (int var = 0; var < locals; ++var) {
+          byte type = state.locals[var];
+          if (type == UNDEF)
+            continue;
+          mv.visitVarInsn(ALOAD, FRAME_LOCAL);
+          pushInt(var);
+          if (type == INT) {
+            mv.visitMethodInsn(INVOKESTATIC, COMPILER_TYPE, "intLocal", "(L" + FRAME_TYPE + ";I)I", false);
+          } else if (type == DBL) {
+            mv.visitMethodInsn(INVOKESTATIC, COMPILER_TYPE, "doubleLocal", "(L" + FRAME_TYPE + ";I)D", false);
+          } else if (type == BOOL) {
+            mv.visitMethodInsn(INVOKESTATIC, COMPILER_TYPE, "boolLocal", "(L" + FRAME_TYPE + ";I)Z", false);
+          } else {
+            mv.visitMethodInsn(INVOKESTATIC, COMPILER_TYPE, "local", "(L" + FRAME_TYPE + ";I)Ljava/lang/Object;",
+                               false);
+          }
+          store(var, type);
+        }
+        mv.visitJumpInsn(GOTO, labels[keys[i]]);
+      }
+      mv.visitLabel(cannot);
+      mv.visitInsn(ICONST_0);
+      mv.visitInsn(IRETURN);
+    }
+
+    // the translation of each instruction
+
+    /**
+     * Translate the instruction at the given index (from the state
+     * before it).
+     *
+     * @return the state after the instruction, or null if the next
+     *         instruction doesn't follow it (after a JMP or RET)
+     */
+    State translate(int at) {
+      pc = at;
+      s = in[at].copy();
+      VMInstr instr = code.get(at);
+      switch (instr.opcode) {
+        // literals and variables
+        case PUSH -> pushConstant(instr.operand);
+        case POP -> {
+          slot(0);
+          drop(1);
+        }
+        case LOAD -> {
+          int var = (int) instr.operand;
+          byte type = s.locals[var];
+          load(var, type);
+          push(type);
+        }
+        case STORE -> {
+          int var = (int) instr.operand;
+          int x = slot(0);
+          byte type = typeOf(x);
+          load(x, type);
+          drop(1);
+          store(var, type);
+          s.locals[var] = type;
+        }
+        // arithmetic, relational, and logical operators
+        case ADD, SUB, MUL, DIV, CMPLT, CMPLE -> generic(instr.opcode);
+        case IADD, ISUB, IMUL, IDIV, ICMPLT, ICMPLE -> arithmetic(instr.opcode, INT);
+        case DADD, DSUB, DMUL, DDIV, DCMPLT, DCMPLE -> arithmetic(instr.opcode, DBL);
+        case AND, OR -> {
+          int y = slot(0);
+          int x = slot(1);
+          loadAs(x, BOOL);
+          loadAs(y, BOOL);
+          mv.visitInsn(instr.opcode == OpCode.AND ? IAND : IOR);
+          drop(2);
+          push(BOOL);
+        }
+        case CMPEQ, CMPNE -> equality(instr.opcode);
+        case NOT -> {
+          loadAs(slot(0), BOOL);
+          mv.visitInsn(ICONST_1);
+          mv.visitInsn(IXOR);
+          drop(1);
+          push(BOOL);
+        }
+        // jump and branch
+        case JMP -> {
+          jump((int) instr.operand);
+          return null;
+        }
+        case JMPF -> {
+          loadAs(slot(0), BOOL);
+          drop(1);
+          branch((int) instr.operand);
+        }
+        // functions
+        case CALL -> call(instr);
+        case RET -> {
+          ret();
+          return null;
+        }
+        // built ins
+        case WRITE -> {
+          int x = slot(0);
+          byte type = typeOf(x);
+          mv.visitVarInsn(ALOAD, VM_LOCAL);
+          if (type == INT || type == DBL) {
+            load(x, type);
+            mv.visitMethodInsn(INVOKEVIRTUAL, VM_TYPE, "write", type == INT ? "(I)V" : "(D)V", false);
+          } else {
+            loadAs(x, OBJ);
+            mv.visitMethodInsn(INVOKEVIRTUAL, VM_TYPE, "write", "(Ljava/lang/Object;)V", false);
+          }
+          drop(1);
+        }
+        case READ -> {
+          mv.visitVarInsn(ALOAD, VM_LOCAL);
+          pushAt();
+          mv.visitMethodInsn(INVOKEVIRTUAL, VM_TYPE, "readLine", "(" + AT_DESC + ")Ljava/lang/String;",
+                             false);
+          push(OBJ);
+        }
+        case LEN -> unary("length", "I", INT);
+        case GETC -> {
+          int index = slot(0);
+          int str = slot(1);
+          loadAs(str, OBJ);
+          loadAs(index, OBJ);
+          pushAt();
+          mv.visitMethodInsn(INVOKESTATIC, VM_TYPE, "charAt",
+                             "(Ljava/lang/Object;Ljava/lang/Object;" + AT_DESC + ")Ljava/lang/String;",
+                             false);
+          drop(2);
+          push(OBJ);
+        }
+        case TOINT -> unary("toInt", "I", INT);
+        case TODBL -> unary("toDouble", "D", DBL);
+        case TOSTR -> unary("toStr", "Ljava/lang/String;", OBJ);
+        // heap
+        case ALLOCS -> {
+          mv.visitVarInsn(ALOAD, VM_LOCAL);
+          pushInt((int) instr.operand);
+          mv.visitMethodInsn(INVOKEVIRTUAL, VM_TYPE, "newStruct", "(I)[Ljava/lang/Object;", false);
+          push(OBJ);
+        }
+        case SETF -> {
+          int value = slot(0);
+          int obj = slot(1);
+          struct(obj);
+          pushInt((int) instr.operand);
+          loadAs(value, OBJ);
+          mv.visitInsn(AASTORE);
+          drop(2);
+        }
+        case GETF -> {
+          struct(slot(0));
+          pushInt((int) instr.operand);
+          mv.visitInsn(AALOAD);
+          drop(1);
+          push(OBJ);
+        }
+        case ALLOCA -> {
+          int length = slot(0);
+          mv.visitVarInsn(ALOAD, VM_LOCAL);
+          loadAs(length, OBJ);
+          pushAt();
+          mv.visitMethodInsn(INVOKEVIRTUAL, VM_TYPE, "newArray",
+                             "(Ljava/lang/Object;" + AT_DESC + ")[Ljava/lang/Object;", false);
+          drop(1);
+          push(OBJ);
+        }
+        case SETI -> {
+          int value = slot(0);
+          element(slot(2), slot(1));
+          loadAs(value, OBJ);
+          mv.visitInsn(AASTORE);
+          drop(3);
+        }
+        case GETI -> {
+          element(slot(1), slot(0));
+          mv.visitInsn(AALOAD);
+          drop(2);
+          push(OBJ);
+        }
+        // special
+        case DUP -> {
+          int x = slot(0);
+          byte type = typeOf(x);
+          load(x, type);
+          push(type);
+        }
+        case NOP -> {
+          // do nothing
+        }
+        default -> throw new Unsupported("unsupported instruction: " + instr);
+      }
+      return s;
+    }
+
+    /**
+     * Translate a PUSH.
+     */
+    void pushConstant(Object value) {
+      if (value instanceof Integer) {
+        pushInt((int) value);
+        push(INT);
+      } else if (value instanceof Double) {
+        mv.visitLdcInsn(value);
+        push(DBL);
+      } else if (value instanceof Boolean) {
+        mv.visitInsn((boolean) value ? ICONST_1 : ICONST_0);
+        push(BOOL);
+      } else if (value instanceof String) {
+        mv.visitLdcInsn(value);
+        push(OBJ);
+      } else if (value == VM.NULL) {
+        mv.visitFieldInsn(GETSTATIC, VM_TYPE, "NULL", "Ljava/lang/Object;");
+        push(OBJ);
+      } else
+        throw new Unsupported("unsupported constant: " + value);
+    }
+
+    /**
+     * Translate the operators ADD to CMPLE, which are specialized as
+     * int or double operators if one operand is known to be an int or
+     * a double (the other one then is too, or is null).
+     */
+    void generic(OpCode opcode) {
+      byte x = typeOf(slot(1));
+      byte y = typeOf(slot(0));
+      if ((x == INT || y == INT) && (x == OBJ || y == OBJ || x == y)) {
+        arithmetic(opcode, INT);
+        return;
+      }
+      if ((x == DBL || y == DBL) && (x == OBJ || y == OBJ || x == y)) {
+        arithmetic(opcode, DBL);
+        return;
+      }
+      int rhs = slot(0);
+      int lhs = slot(1);
+      loadAs(lhs, OBJ);
+      loadAs(rhs, OBJ);
+      pushAt();
+      String name = opcode.toString().toLowerCase();
+      mv.visitMethodInsn(INVOKESTATIC, COMPILER_TYPE, name,
+                         "(Ljava/lang/Object;Ljava/lang/Object;" + AT_DESC + ")Ljava/lang/Object;",
+                         false);
+      drop(2);
+      push(OBJ);
+    }
+
+    /**
+     * Translate an int or double operator.
+     */
+    void arithmetic(OpCode opcode, byte type) {
+      int y = slot(0);
+      int x = slot(1);
+      loadAs(x, type);
+      loadAs(y, type);
+      boolean isInt = type == INT;
+      byte result = type;
+      switch (opcode) {
+        case ADD, IADD, DADD -> mv.visitInsn(isInt ? IADD : DADD);
+        case SUB, ISUB, DSUB -> mv.visitInsn(isInt ? ISUB : DSUB);
+        case MUL, IMUL, DMUL -> mv.visitInsn(isInt ? IMUL : DMUL);
+        case DIV, IDIV, DDIV -> {
+          Label nonZero = new Label();
+          if (isInt) {
+            mv.visitInsn(DUP);
+          } else {
+            mv.visitInsn(DUP2);
+            mv.visitInsn(DCONST_0);
+            mv.visitInsn(DCMPL);
+          }
+          mv.visitJumpInsn(IFNE, nonZero);
+          error("division by zero error");
+          mv.visitLabel(nonZero);
+          mv.visitInsn(isInt ? IDIV : DDIV);
+        }
+        case CMPLT, ICMPLT, DCMPLT -> {
+          if (!isInt)
+            mv.visitInsn(DCMPG);
+          bool(isInt ? IF_ICMPLT : IFLT);
+          result = BOOL;
+        }
+        default -> {
+          if (!isInt)
+            mv.visitInsn(DCMPG);
+          bool(isInt ? IF_ICMPLE : IFLE);
+          result = BOOL;
+        }
+      }
+      drop(2);
+      push(result);
+    }
+
+    /**
+     * Translate CMPEQ and CMPNE.
+     */
+    void equality(OpCode opcode) {
+      int y = slot(0);
+      int x = slot(1);
+      byte type = typeOf(x);
+      boolean isEq = opcode == OpCode.CMPEQ;
+      if (type == typeOf(y) && (type == INT || type == BOOL)) {
+        load(x, type);
+        load(y, type);
+        bool(isEq ? IF_ICMPEQ : IF_ICMPNE);
+      } else if (type == typeOf(y) && type == DBL) {
+        // (the same as comparing Doubles with equals)
+        load(x, type);
+        load(y, type);
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "compare", "(DD)I", false);
+        bool(isEq ? IFEQ : IFNE);
+      } else {
+        loadAs(x, OBJ);
+        loadAs(y, OBJ);
+        mv.visitMethodInsn(INVOKESTATIC, VM_TYPE, "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z",
+                           false);
+        if (!isEq) {
+          mv.visitInsn(ICONST_1);
+          mv.visitInsn(IXOR);
+        }
+      }
+      drop(2);
+      push(BOOL);
+    }
+
+    /**
+     * Translate an instruction that calls a VM helper on its (boxed)
+     * operand.
+     */
+    void unary(String helper, String resultDesc, byte result) {
+      loadAs(slot(0), OBJ);
+      pushAt();
+      mv.visitMethodInsn(INVOKESTATIC, VM_TYPE, helper, "(Ljava/lang/Object;" + AT_DESC + ")" + resultDesc,
+                         false);
+      drop(1);
+      push(result);
+    }
+
+    /**
+     * Load a struct object (checked) for SETF and GETF.
+     */
+    void struct(int obj) {
+      loadAs(obj, OBJ);
+      pushAt();
+      mv.visitMethodInsn(INVOKESTATIC, VM_TYPE, "struct", "(Ljava/lang/Object;" + AT_DESC + ")[Ljava/lang/Object;",
+                         false);
+    }
+
+    /**
+     * Load an array object and an index into it (both checked) for
+     * SETI and GETI.
+     */
+    void element(int array, int index) {
+      loadAs(array, OBJ);
+      pushAt();
+      mv.visitMethodInsn(INVOKESTATIC, VM_TYPE, "array", "(Ljava/lang/Object;" + AT_DESC + ")[Ljava/lang/Object;",
+                         false);
+      loadAs(index, INT);
+      mv.visitInsn(DUP2);
+      pushAt();
+      mv.visitMethodInsn(INVOKESTATIC, VM_TYPE, "checkIndex", "([Ljava/lang/Object;I" + AT_DESC + ")V", false);
+    }
+
+    /**
+     * Translate a JMP.
+     */
+    void jump(int target) {
+      if (!emitting) {
+        merge(target, s);
+        return;
+      }
+      convert(s, in[target]);
+      mv.visitJumpInsn(GOTO, labels[target]);
+    }
+
+    /**
+     * Translate the jump of a JMPF (the condition is loaded).
+     */
+    void branch(int target) {
+      if (!emitting) {
+        merge(target, s);
+        return;
+      }
+      if (Arrays.equals(s.locals, in[target].locals) && Arrays.equals(s.stack, in[target].stack)) {
+        mv.visitJumpInsn(IFEQ, labels[target]);
+      } else {
+        Stub stub = new Stub(new Label(), s.copy(), target);
+        stubs.add(stub);
+        mv.visitJumpInsn(IFEQ, stub.label);
+      }
+    }
+
+    /**
+     * Translate a CALL: the arguments are pushed onto the operand
+     * stack, the callee is called (directly if it is this function),
+     * and the return value is popped.
+     */
+    void call(VMInstr instr) {
+      if (!(instr.operand instanceof VMFrameTemplate))
+        throw new Unsupported("unlinked call: " + instr);
+      VMFrameTemplate callee = (VMFrameTemplate) instr.operand;
+      int args = arity(callee);
+      byte result = callee == template ? selfReturn : returnType(callee);
+      if (args > s.stack.length)
+        throw new Unsupported("missing arguments: " + instr);
+      for (int i = s.stack.length - args; i < s.stack.length; ++i)
+        pushToStack(locals + i);
+      drop(args);
+      mv.visitVarInsn(ALOAD, VM_LOCAL);
+      if (callee == template) {
+        mv.visitVarInsn(ALOAD, STACK_LOCAL);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitInsn(ICONST_0);
+        mv.visitMethodInsn(INVOKESTATIC, className, "code", RUN_DESC, false);
+        mv.visitInsn(POP);
+      } else {
+        pushFunction(callee);
+        mv.visitMethodInsn(INVOKEVIRTUAL, VM_TYPE, "invoke", "(" + TEMPLATE_DESC + ")V", false);
+      }
+      mv.visitVarInsn(ALOAD, STACK_LOCAL);
+      if (result == INT) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, STACK_TYPE, "popInt", "()I", false);
+      } else if (result == DBL) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, STACK_TYPE, "popDouble", "()D", false);
+      } else {
+        mv.visitMethodInsn(INVOKEVIRTUAL, STACK_TYPE, "pop", "()Ljava/lang/Object;", false);
+        if (result == BOOL) {
+          mv.visitTypeInsn(CHECKCAST, "java/lang/Boolean");
+          mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
+        }
+      }
+      push(result);
+    }
+
+    /**
+     * Translate a RET: the return value is pushed onto the operand
+     * stack.
+     */
+    void ret() {
+      if (s.stack.length != 1)
+        throw new Unsupported("returns with " + s.stack.length + " values on the stack");
+      returnType = join(returnType, s.stack[0]);
+      pushToStack(locals);
+      mv.visitInsn(ICONST_1);
+      mv.visitInsn(IRETURN);
+    }
+
+    // the code for values
+
+    /**
+     * Return the variable of an operand stack slot (0 is the top).
+     */
+    int slot(int fromTop) {
+      if (fromTop >= s.stack.length)
+        throw new Unsupported("operand stack underflow at " + pc);
+      return locals + s.stack.length - 1 - fromTop;
+    }
+
+    /**
+     * Return the type of a variable or stack slot.
+     */
+    byte typeOf(int var) {
+      return var < locals ? s.locals[var] : s.stack[var - locals];
+    }
+
+    /**
+     * Pop slots off the stack (their values are already loaded).
+     */
+    void drop(int count) {
+      s.stack = Arrays.copyOf(s.stack, s.stack.length - count);
+    }
+
+    /**
+     * Push a slot of the given type, storing the loaded value in it.
+     */
+    void push(byte type) {
+      s.stack = Arrays.copyOf(s.stack, s.stack.length + 1);
+      s.stack[s.stack.length - 1] = type;
+      maxStack = Math.max(maxStack, s.stack.length);
+      store(locals + s.stack.length - 1, type);
+    }
+
+    /**
+     * Return the JVM locals of a variable or stack slot, allocating
+     * them on first use (the analysis ignores them).
+     */
+    int intLocal(int var) {
+      return local(intLocals, var, 1);
+    }
+
+    int doubleLocal(int var) {
+      return local(doubleLocals, var, 2);
+    }
+
+    int objectLocal(int var) {
+      return local(objectLocals, var, 1);
+    }
+
+    /**
+     * Helper to allocate a JVM local of the given size (in JVM local
+     * slots) for a variable or stack slot.
+     */
+    int local(int[] slots, int var, int size) {
+      if (!emitting)
+        return FIRST_LOCAL;
+      if (slots[var] < 0) {
+        slots[var] = nextLocal;
+        nextLocal += size;
+      }
+      return slots[var];
+    }
+
+    /**
+     * Helper to create the (unused) JVM locals of each variable and
+     * stack slot.
+     */
+    int[] unused(int count) {
+      int[] slots = new int[count];
+      Arrays.fill(slots, -1);
+      return slots;
+    }
+
+    /**
+     * Load a variable or stack slot's value (as its type).
+     */
+    void load(int var, byte type) {
+      switch (type) {
+        case INT, BOOL -> mv.visitVarInsn(ILOAD, intLocal(var));
+        case DBL -> mv.visitVarInsn(DLOAD, doubleLocal(var));
+        case OBJ -> mv.visitVarInsn(ALOAD, objectLocal(var));
+        default -> throw new Unsupported("use of an unset variable at " + pc);
+      }
+    }
+
+    /**
+     * Store the loaded value in a variable or stack slot.
+     */
+    void store(int var, byte type) {
+      switch (type) {
+        case INT, BOOL -> mv.visitVarInsn(ISTORE, intLocal(var));
+        case DBL -> mv.visitVarInsn(DSTORE, doubleLocal(var));
+        default -> mv.visitVarInsn(ASTORE, objectLocal(var));
+      }
+    }
+
+    /**
+     * Load a value as the given type: a boxed value is unboxed (with
+     * an error if it is null), and an unboxed value is boxed for OBJ.
+     */
+    void loadAs(int var, byte want) {
+      byte type = typeOf(var);
+      load(var, type);
+      if (type == want)
+        return;
+      if (want == OBJ) {
+        box(type);
+        return;
+      }
+      if (type != OBJ)
+        throw new Unsupported("operand type mismatch at " + pc);
+      pushAt();
+      switch (want) {
+        case INT -> mv.visitMethodInsn(INVOKESTATIC, COMPILER_TYPE, "intValue",
+                                       "(Ljava/lang/Object;" + AT_DESC + ")I", false);
+        case DBL -> mv.visitMethodInsn(INVOKESTATIC, COMPILER_TYPE, "doubleValue",
+                                       "(Ljava/lang/Object;" + AT_DESC + ")D", false);
+        default -> mv.visitMethodInsn(INVOKESTATIC, COMPILER_TYPE, "boolValue",
+                                      "(Ljava/lang/Object;" + AT_DESC + ")Z", false);
+      }
+    }
+
+    /**
+     * Box the loaded value.
+     */
+    void box(byte type) {
+      switch (type) {
+        case INT -> mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf",
+                                       "(I)Ljava/lang/Integer;", false);
+        case DBL -> mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "valueOf",
+                                       "(D)Ljava/lang/Double;", false);
+        case BOOL -> mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf",
+                                        "(Z)Ljava/lang/Boolean;", false);
+        default -> {
+        }
+      }
+    }
+
+    /**
+     * Push a variable or stack slot's value onto the VM's operand
+     * stack (ints and doubles unboxed).
+     */
+    void pushToStack(int var) {
+      byte type = typeOf(var);
+      mv.visitVarInsn(ALOAD, STACK_LOCAL);
+      load(var, type);
+      if (type == INT) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, STACK_TYPE, "pushInt", "(I)V", false);
+      } else if (type == DBL) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, STACK_TYPE, "pushDouble", "(D)V", false);
+      } else {
+        box(type);
+        mv.visitMethodInsn(INVOKEVIRTUAL, STACK_TYPE, "push", "(Ljava/lang/Object;)V", false);
+      }
+    }
+
+    /**
+     * Box the values that are unboxed before a jump but boxed at its
+     * target.
+     */
+    void convert(State from, State to) {
+      for (int var = 0; var < locals + from.stack.length; ++var) {
+        byte type = var < locals ? from.locals[var] : from.stack[var - locals];
+        byte target = var < locals ? to.locals[var] : to.stack[var - locals];
+        if (type == target || type == UNDEF)
+          continue;
+        load(var, type);
+        box(type);
+        store(var, OBJ);
+      }
+    }
+
+    /**
+     * Turn the jump condition's result (with the given JVM jump
+     * opcode) into a bool (0 or 1).
+     */
+    void bool(int opcode) {
+      Label isTrue = new Label();
+      Label end = new Label();
+      mv.visitJumpInsn(opcode, isTrue);
+      mv.visitInsn(ICONST_0);
+      mv.visitJumpInsn(GOTO, end);
+      mv.visitLabel(isTrue);
+      mv.visitInsn(ICONST_1);
+      mv.visitLabel(end);
+    }
+
+    /**
+     * Throw a VM error for the current instruction.
+     */
+    void error(String message) {
+      mv.visitLdcInsn(message);
+      pushAt();
+      mv.visitMethodInsn(INVOKESTATIC, VM_TYPE, "error", "(Ljava/lang/String;" + AT_DESC + ")V", false);
+    }
+
+    /**
+     * Push the function and the current instruction's index (for
+     * errors).
+     */
+    void pushAt() {
+      pushFunction(template);
+      pushInt(pc);
+    }
+
+    /**
+     * Push a function (a constant of the compiled class).
+     */
+    void pushFunction(VMFrameTemplate function) {
+      int index = constants.indexOf(function);
+      if (index < 0) {
+        index = constants.size();
+        constants.add(function);
+      }
+      mv.visitLdcInsn(new ConstantDynamic("_", TEMPLATE_DESC, CLASS_DATA_AT, index));
+    }
+
+    /**
+     * Push an int constant.
+     */
+    void pushInt(int value) {
+      if (value >= -1 && value <= 5)
+        mv.visitInsn(ICONST_0 + value);
+      else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+        mv.visitIntInsn(BIPUSH, value);
+      else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+        mv.visitIntInsn(SIPUSH, value);
+      else
+        mv.visitLdcInsn(value);
+    }
+  }
+
+  // ----------------------------------------------------------------------
+  // Helpers called by the compiled code
+  // ----------------------------------------------------------------------
+
+  /**
+   * Unbox an int operand (the only other value allowed is null).
+   */
+  static int intValue(Object x, VMFrameTemplate template, int pc) {
+    if (!(x instanceof Integer))
+      VM.error("null value error", template, pc);
+    return (int) x;
+  }
+
+  /**
+   * Unbox a double operand (the only other value allowed is null).
+   */
+  static double doubleValue(Object x, VMFrameTemplate template, int pc) {
+    if (!(x instanceof Double))
+      VM.error("null value error", template, pc);
+    return (double) x;
+  }
+
+  /**
+   * Unbox a bool operand (the only other value allowed is null).
+   */
+  static boolean boolValue(Object x, VMFrameTemplate template, int pc) {
+    if (!(x instanceof Boolean))
+      VM.error("null value error", template, pc);
+    return (boolean) x;
+  }
+
+  /**
+   * Get an interpreted frame's variable (for continuing its call).
+   */
+  static Object local(VMFrame frame, int index) {
+    if (frame.tags[index] == VMStack.INT)
+      return (int) frame.longs[index];
+    else if (frame.tags[index] == VMStack.DBL)
+      return frame.doubles[index];
+    return frame.memory[index];
+  }
+
+  static int intLocal(VMFrame frame, int index) {
+    return (int) frame.longs[index];
+  }
+
+  static double doubleLocal(VMFrame frame, int index) {
+    return frame.doubles[index];
+  }
+
+  static boolean boolLocal(VMFrame frame, int index) {
+    // (a variable that is only set on some paths may not be yet)
+    return frame.memory[index] instanceof Boolean && (boolean) frame.memory[index];
+  }
+
+  /**
+   * The operators on boxed operands (which must not be null).
+   */
+  static Object add(Object x, Object y, VMFrameTemplate template, int pc) {
+    VM.ensureNotNull(x, template, pc);
+    VM.ensureNotNull(y, template, pc);
+    return VM.addHelper(x, y);
+  }
+
+  static Object sub(Object x, Object y, VMFrameTemplate template, int pc) {
+    VM.ensureNotNull(x, template, pc);
+    VM.ensureNotNull(y, template, pc);
+    return VM.subHelper(x, y);
+  }
+
+  static Object mul(Object x, Object y, VMFrameTemplate template, int pc) {
+    VM.ensureNotNull(x, template, pc);
+    VM.ensureNotNull(y, template, pc);
+    return VM.mulHelper(x, y);
+  }
+
+  static Object div(Object x, Object y, VMFrameTemplate template, int pc) {
+    VM.ensureNotNull(x, template, pc);
+    VM.ensureNotNull(y, template, pc);
+    return VM.divHelper(x, y, template, pc);
+  }
+
+  static Object cmplt(Object x, Object y, VMFrameTemplate template, int pc) {
+    VM.ensureNotNull(x, template, pc);
+    VM.ensureNotNull(y, template, pc);
+    return VM.cmpltHelper(x, y);
+  }
+
+  static Object cmple(Object x, Object y, VMFrameTemplate template, int pc) {
+    VM.ensureNotNull(x, template, pc);
+    VM.ensureNotNull(y, template, pc);
+    return VM.cmpleHelper(x, y);
+  }
+
+}
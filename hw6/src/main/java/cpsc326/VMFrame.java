@@ -5,9 +5,6 @@
 
 package cpsc326;
 
-import java.util.List;
-import java.util.ArrayList;
-
 
 /**
  * Class for representing function call information.
@@ -17,8 +14,13 @@ public class VMFrame {
   /* the template this frame is an instance of */
   public VMFrameTemplate template;
 
-  /* the memory associated with variables of the frame */
-  public List<Object> memory = new ArrayList<>();
+  /* the memory associated with variables of the frame, one slot per
+     variable laid out like the operand stack (a type tag plus an
+     unboxed int, unboxed double, or object value) */
+  public byte[] tags;
+  public long[] longs;
+  public double[] doubles;
+  public Object[] memory;
 
   /* the current instruction index (program counter) */
   public int pc = 0;
@@ -29,7 +31,11 @@ public class VMFrame {
    */
   public VMFrame(VMFrameTemplate template) {
     this.template = template;
+    int size = template.localsSize;
+    tags = new byte[size];
+    longs = new long[size];
+    doubles = new double[size];
+    memory = new Object[size];
   }
   
 }
-
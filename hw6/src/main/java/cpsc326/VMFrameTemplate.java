@@ -20,6 +20,17 @@ public class VMFrameTemplate {
   /* list of instructions defining the function */
   public List<VMInstr> instructions = new ArrayList<>();
 
+  /* number of memory (variable) slots a frame needs, computed from
+     the LOAD and STORE addresses as instructions are added */
+  public int localsSize = 0;
+
+  /* the JIT engine's state: the number of calls and loop iterations
+     counted so far, the compiled code (once the function is hot), and
+     whether the function can't be compiled (so it stays interpreted) */
+  int hotness = 0;
+  VMCompiler.CompiledFunction compiled;
+  boolean uncompilable = false;
+
   /**
    * Create a new template
    */
@@ -33,6 +44,8 @@ public class VMFrameTemplate {
    */
   public void add(VMInstr instr) {
     instructions.add(instr);
+    if (instr.opcode == OpCode.LOAD || instr.opcode == OpCode.STORE)
+      localsSize = Math.max(localsSize, (int) instr.operand + 1);
   }
 
   /**
@@ -46,4 +59,12 @@ public class VMFrameTemplate {
     return instructions.get(instrIndex);
   }
 
+  /**
+   * The template's function name (e.g., for printing a linked CALL
+   * instruction).
+   */
+  public String toString() {
+    return functionName;
+  }
+
 }
@@ -110,6 +110,54 @@ public class VMInstr {
     return new VMInstr(OpCode.NOT);
   }
   
+  public static VMInstr IADD() {
+    return new VMInstr(OpCode.IADD);
+  }
+
+  public static VMInstr ISUB() {
+    return new VMInstr(OpCode.ISUB);
+  }
+
+  public static VMInstr IMUL() {
+    return new VMInstr(OpCode.IMUL);
+  }
+
+  public static VMInstr IDIV() {
+    return new VMInstr(OpCode.IDIV);
+  }
+
+  public static VMInstr ICMPLT() {
+    return new VMInstr(OpCode.ICMPLT);
+  }
+
+  public static VMInstr ICMPLE() {
+    return new VMInstr(OpCode.ICMPLE);
+  }
+
+  public static VMInstr DADD() {
+    return new VMInstr(OpCode.DADD);
+  }
+
+  public static VMInstr DSUB() {
+    return new VMInstr(OpCode.DSUB);
+  }
+
+  public static VMInstr DMUL() {
+    return new VMInstr(OpCode.DMUL);
+  }
+
+  public static VMInstr DDIV() {
+    return new VMInstr(OpCode.DDIV);
+  }
+
+  public static VMInstr DCMPLT() {
+    return new VMInstr(OpCode.DCMPLT);
+  }
+
+  public static VMInstr DCMPLE() {
+    return new VMInstr(OpCode.DCMPLE);
+  }
+
   public static VMInstr JMP(int offset) {
     return new VMInstr(OpCode.JMP, offset);
   }
@@ -154,16 +202,16 @@ public class VMInstr {
     return new VMInstr(OpCode.TOSTR);
   }
 
-  public static VMInstr ALLOCS() {
-    return new VMInstr(OpCode.ALLOCS);
+  public static VMInstr ALLOCS(int fieldCount) {
+    return new VMInstr(OpCode.ALLOCS, fieldCount);
   }
 
-  public static VMInstr SETF(String field) {
-    return new VMInstr(OpCode.SETF, field);
+  public static VMInstr SETF(int fieldSlot) {
+    return new VMInstr(OpCode.SETF, fieldSlot);
   }
 
-  public static VMInstr GETF(String field) {
-    return new VMInstr(OpCode.GETF, field);
+  public static VMInstr GETF(int fieldSlot) {
+    return new VMInstr(OpCode.GETF, fieldSlot);
   }
 
   public static VMInstr ALLOCA() {
@@ -0,0 +1,50 @@
+/**
+ * CPSC 326, Spring 2025
+ * Listener interface for observing the VM as it runs.
+ */
+
+package cpsc326;
+
+
+/**
+ * Observes a running program one instruction at a time (e.g., for
+ * debugging, profiling, or tracing). The VM selects its engine once
+ * when the program starts, so listeners only cost anything when at
+ * least one is added.
+ */
+public interface VMListener {
+
+  /**
+   * Called when the program starts.
+   *
+   * @param frame the main function's frame
+   */
+  default void start(VMFrame frame) {
+  }
+
+  /**
+   * Called before each instruction executes.
+   *
+   * @param frame the frame executing the instruction (its pc is the
+   *              instruction's index)
+   * @param instr the instruction
+   * @param operandStack the operand stack (not to be changed)
+   */
+  void execute(VMFrame frame, VMInstr instr, VMStack operandStack);
+
+  /**
+   * Called when the program fails with a VM error (before the error
+   * is passed on to the caller of run).
+   *
+   * @param error the error
+   */
+  default void error(MyPLException error) {
+  }
+
+  /**
+   * Called when the program ends (normally or with an error).
+   */
+  default void finish() {
+  }
+
+}
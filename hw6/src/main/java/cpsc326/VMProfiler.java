@@ -0,0 +1,223 @@
+/**
+ * CPSC 326, Spring 2025
+ * Execution profiler for the VM.
+ */
+
+package cpsc326;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.IdentityHashMap;
+
+
+/**
+ * Collects counters while the VM runs a program: the number of times
+ * each opcode executes, the calls of each function with their
+ * inclusive time (including the functions they call) and exclusive
+ * time (their own instructions only), and the number of times each
+ * instruction executes (for the hottest instructions). The VM tells
+ * the profiler (as a listener) about each instruction before
+ * executing it.
+ */
+public class VMProfiler implements VMListener {
+
+  /* the number of hottest instructions to report */
+  private static final int HOTTEST = 10;
+
+  /**
+   * The counters of one function.
+   */
+  private static class FunctionStats {
+    VMFrameTemplate template;
+    long calls;
+    int active; // the number of its calls that haven't returned
+    long inclusiveNanos;
+    long exclusiveNanos;
+    long[] pcCounts;
+
+    FunctionStats(VMFrameTemplate template) {
+      this.template = template;
+      this.pcCounts = new long[template.instructions.size()];
+    }
+  }
+
+  /**
+   * An active call of a function.
+   */
+  private static class Activation {
+    FunctionStats stats;
+    long start;
+    long childNanos;
+
+    Activation(FunctionStats stats, long start) {
+      this.stats = stats;
+      this.start = start;
+    }
+  }
+
+  /* execution counts by opcode ordinal */
+  private long[] opcodeCounts = new long[OpCode.values().length];
+
+  /* the counters of each function that was called */
+  private Map<VMFrameTemplate, FunctionStats> functions = new IdentityHashMap<>();
+
+  /* the active calls (the innermost on top) */
+  private Deque<Activation> activations = new ArrayDeque<>();
+
+  /* the function of the last executed instruction (to skip the map
+     lookup while execution stays in the same function) */
+  private FunctionStats current;
+
+  /**
+   * Record the start of the program (the call of its main function).
+   */
+  @Override
+  public void start(VMFrame frame) {
+    enter(frame.template);
+  }
+
+  /**
+   * Record the start of a function call.
+   *
+   * @param template the called function
+   */
+  public void enter(VMFrameTemplate template) {
+    FunctionStats stats = stats(template);
+    ++stats.calls;
+    ++stats.active;
+    activations.push(new Activation(stats, System.nanoTime()));
+  }
+
+  /**
+   * Record the return from the innermost active call.
+   */
+  public void exit() {
+    long now = System.nanoTime();
+    Activation a = activations.pop();
+    long inclusive = now - a.start;
+    // (a recursive call's time is already in its caller's inclusive
+    // time, so only the outermost activation adds it)
+    if (--a.stats.active == 0)
+      a.stats.inclusiveNanos += inclusive;
+    a.stats.exclusiveNanos += inclusive - a.childNanos;
+    if (!activations.isEmpty())
+      activations.peek().childNanos += inclusive;
+  }
+
+  /**
+   * Record the end of the program, i.e., the return from all active
+   * calls (e.g., after an error).
+   */
+  @Override
+  public void finish() {
+    while (!activations.isEmpty())
+      exit();
+  }
+
+  /**
+   * Record an instruction that is about to execute.
+   *
+   * @param frame the frame executing the instruction
+   * @param instr the instruction
+   * @param operandStack the operand stack
+   */
+  @Override
+  public void execute(VMFrame frame, VMInstr instr, VMStack operandStack) {
+    ++opcodeCounts[instr.opcode.ordinal()];
+    if (current == null || current.template != frame.template)
+      current = stats(frame.template);
+    ++current.pcCounts[frame.pc];
+    if (instr.opcode == OpCode.CALL)
+      enter((VMFrameTemplate) instr.operand);
+    else if (instr.opcode == OpCode.RET)
+      exit();
+  }
+
+  /**
+   * Gives the number of times the opcode was executed.
+   */
+  public long count(OpCode opcode) {
+    return opcodeCounts[opcode.ordinal()];
+  }
+
+  /**
+   * Gives the number of times the function was called.
+   */
+  public long calls(String functionName) {
+    for (FunctionStats stats : functions.values())
+      if (stats.template.functionName.equals(functionName))
+        return stats.calls;
+    return 0;
+  }
+
+  /**
+   * Summarize the counters as tables of the executed opcodes, the
+   * called functions, and the hottest instructions (each sorted from
+   * the most to the least).
+   */
+  public String toString() {
+    long total = 0;
+    for (long count : opcodeCounts)
+      total += count;
+    StringBuilder s = new StringBuilder();
+    s.append(String.format("%nopcode       executed      %%  (%d instructions)%n", total));
+    List<OpCode> opcodes = new ArrayList<>(List.of(OpCode.values()));
+    opcodes.sort((a, b) -> Long.compare(count(b), count(a)));
+    for (OpCode opcode : opcodes)
+      if (count(opcode) > 0)
+        s.append(String.format("%-8s %12d %6.2f%n", opcode, count(opcode),
+                               percent(count(opcode), total)));
+
+    s.append(String.format("%nfunction                 calls  inclusive ms  exclusive ms%n"));
+    List<FunctionStats> stats = new ArrayList<>(functions.values());
+    stats.sort((a, b) -> Long.compare(b.exclusiveNanos, a.exclusiveNanos));
+    for (FunctionStats f : stats)
+      s.append(String.format("%-20s %9d %13.3f %13.3f%n", f.template.functionName, f.calls,
+                             f.inclusiveNanos / 1e6, f.exclusiveNanos / 1e6));
+
+    s.append(String.format("%nhottest instructions     executed      %%%n"));
+    List<long[]> pcs = new ArrayList<>(); // {function index, pc, count}
+    for (int i = 0; i < stats.size(); ++i) {
+      long[] counts = stats.get(i).pcCounts;
+      for (int pc = 0; pc < counts.length; ++pc)
+        if (counts[pc] > 0)
+          pcs.add(new long[] {i, pc, counts[pc]});
+    }
+    pcs.sort((a, b) -> Long.compare(b[2], a[2]));
+    for (long[] pc : pcs.subList(0, Math.min(HOTTEST, pcs.size()))) {
+      VMFrameTemplate template = stats.get((int) pc[0]).template;
+      String location = template.functionName + ":" + pc[1];
+      VMInstr instr = template.instructions.get((int) pc[1]);
+      s.append(String.format("%-20s %12d %6.2f  %s%n", location, pc[2], percent(pc[2], total),
+                             instr));
+    }
+    return s.toString();
+  }
+
+  // ----------------------------------------------------------------------
+  // Helper functions
+  // ----------------------------------------------------------------------
+
+  /**
+   * Return the counters of a function (adding them if it is new).
+   */
+  private FunctionStats stats(VMFrameTemplate template) {
+    FunctionStats stats = functions.get(template);
+    if (stats == null) {
+      stats = new FunctionStats(template);
+      functions.put(template, stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Return count as a percentage of total.
+   */
+  private static double percent(long count, long total) {
+    return total == 0 ? 0.0 : 100.0 * count / total;
+  }
+
+}
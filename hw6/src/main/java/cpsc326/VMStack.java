@@ -0,0 +1,196 @@
+/**
+ * CPSC 326, Spring 2025
+ * The VM operand stack.
+ */
+
+package cpsc326;
+
+import java.util.Arrays;
+
+
+/**
+ * Operand stack that keeps int and double values unboxed. Each slot
+ * has a type tag and the value is held in the parallel long, double,
+ * or object array that matches the tag. The typed push and pop
+ * operations let the VM run arithmetic without allocating, while
+ * push(Object) and pop() still accept and return boxed values for
+ * all other instructions.
+ */
+public class VMStack {
+
+  /* slot type tags */
+  public static final byte REF = 0;
+  public static final byte INT = 1;
+  public static final byte DBL = 2;
+
+  /* the initial number of slots */
+  private static final int INITIAL_CAPACITY = 64;
+
+  /* the slot type tags */
+  private byte[] tags = new byte[INITIAL_CAPACITY];
+
+  /* the int values (for INT slots) */
+  private long[] longs = new long[INITIAL_CAPACITY];
+
+  /* the double values (for DBL slots) */
+  private double[] doubles = new double[INITIAL_CAPACITY];
+
+  /* all other values (for REF slots) */
+  private Object[] refs = new Object[INITIAL_CAPACITY];
+
+  /* the number of values on the stack */
+  private int size = 0;
+
+  /**
+   * Double the capacity of the stack if it is full.
+   */
+  private void ensureCapacity() {
+    if (size == tags.length) {
+      int capacity = tags.length * 2;
+      tags = Arrays.copyOf(tags, capacity);
+      longs = Arrays.copyOf(longs, capacity);
+      doubles = Arrays.copyOf(doubles, capacity);
+      refs = Arrays.copyOf(refs, capacity);
+    }
+  }
+
+  /**
+   * Push an int value (without boxing).
+   */
+  public void pushInt(int value) {
+    ensureCapacity();
+    tags[size] = INT;
+    longs[size++] = value;
+  }
+
+  /**
+   * Push a double value (without boxing).
+   */
+  public void pushDouble(double value) {
+    ensureCapacity();
+    tags[size] = DBL;
+    doubles[size++] = value;
+  }
+
+  /**
+   * Push a value, storing Integer and Double values unboxed.
+   */
+  public void push(Object value) {
+    if (value instanceof Integer)
+      pushInt((Integer) value);
+    else if (value instanceof Double)
+      pushDouble((Double) value);
+    else {
+      ensureCapacity();
+      tags[size] = REF;
+      refs[size++] = value;
+    }
+  }
+
+  /**
+   * Pop the top value as an int. The top slot must be an INT slot.
+   */
+  public int popInt() {
+    return (int) longs[--size];
+  }
+
+  /**
+   * Pop the top value as a double. The top slot must be a DBL slot.
+   */
+  public double popDouble() {
+    return doubles[--size];
+  }
+
+  /**
+   * Pop the top value, boxing it if it is an int or double.
+   * @return the value or null if the stack is empty
+   */
+  public Object pop() {
+    if (size == 0)
+      return null;
+    Object value = peek();
+    --size;
+    refs[size] = null;
+    return value;
+  }
+
+  /**
+   * Return the top value (boxed) without removing it.
+   * @return the value or null if the stack is empty
+   */
+  public Object peek() {
+    if (size == 0)
+      return null;
+    return get(size - 1);
+  }
+
+  /**
+   * Return the value (boxed) at the given position from the bottom of
+   * the stack.
+   */
+  public Object get(int index) {
+    if (tags[index] == INT)
+      return (int) longs[index];
+    else if (tags[index] == DBL)
+      return doubles[index];
+    return refs[index];
+  }
+
+  /**
+   * Return the type tag of the top slot (the stack must not be empty).
+   */
+  public byte peekTag() {
+    return tags[size - 1];
+  }
+
+  /**
+   * Push a copy of the top slot (without boxing).
+   */
+  public void dup() {
+    ensureCapacity();
+    int top = size - 1;
+    tags[size] = tags[top];
+    longs[size] = longs[top];
+    doubles[size] = doubles[top];
+    refs[size++] = refs[top];
+  }
+
+  /**
+   * Push a copy of the given frame memory slot (without boxing).
+   */
+  public void load(VMFrame frame, int index) {
+    ensureCapacity();
+    tags[size] = frame.tags[index];
+    longs[size] = frame.longs[index];
+    doubles[size] = frame.doubles[index];
+    refs[size++] = frame.memory[index];
+  }
+
+  /**
+   * Pop the top slot into the given frame memory slot (without
+   * boxing).
+   */
+  public void store(VMFrame frame, int index) {
+    --size;
+    frame.tags[index] = tags[size];
+    frame.longs[index] = longs[size];
+    frame.doubles[index] = doubles[size];
+    frame.memory[index] = refs[size];
+    refs[size] = null;
+  }
+
+  /**
+   * Check if the stack has no values.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Gives the number of values on the stack.
+   */
+  public int size() {
+    return size;
+  }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * CPSC 326, Spring 2025
+ * Post-mortem instruction tracer for the VM.
+ */
+
+package cpsc326;
+
+import java.io.PrintStream;
+
+
+/**
+ * Keeps the last N executed instructions in a ring buffer, each with
+ * its function, pc, and the operand stack (size and top value, shown
+ * as [size: top]) before it executed. Nothing is printed unless the
+ * program fails with a VM error, in which case the trace is printed
+ * (oldest instruction first, so the failing one is last).
+ */
+public class VMTracer implements VMListener {
+
+  /* the ring buffer (the next entry to overwrite is at next) */
+  private VMFrameTemplate[] functions;
+  private int[] pcs;
+  private VMInstr[] instructions;
+  private int[] stackSizes;
+  private Object[] stackTops;
+  private int next = 0;
+
+  /* the number of instructions executed */
+  private long count = 0;
+
+  /* where the trace is printed on an error */
+  private PrintStream out;
+
+  /**
+   * Create a tracer that prints to standard error.
+   *
+   * @param capacity the number of instructions to keep (at least 1)
+   */
+  public VMTracer(int capacity) {
+    this(capacity, System.err);
+  }
+
+  /**
+   * Create a tracer.
+   *
+   * @param capacity the number of instructions to keep (at least 1)
+   * @param out where to print the trace on an error
+   */
+  public VMTracer(int capacity, PrintStream out) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("trace capacity must be at least 1: " + capacity);
+    functions = new VMFrameTemplate[capacity];
+    pcs = new int[capacity];
+    instructions = new VMInstr[capacity];
+    stackSizes = new int[capacity];
+    stackTops = new Object[capacity];
+    this.out = out;
+  }
+
+  @Override
+  public void execute(VMFrame frame, VMInstr instr, VMStack operandStack) {
+    functions[next] = frame.template;
+    pcs[next] = frame.pc;
+    instructions[next] = instr;
+    stackSizes[next] = operandStack.size();
+    stackTops[next] = operandStack.peek();
+    next = next + 1 == pcs.length ? 0 : next + 1;
+    ++count;
+  }
+
+  @Override
+  public void error(MyPLException error) {
+    out.print(this);
+    out.flush();
+  }
+
+  /**
+   * Gives the number of instructions executed.
+   */
+  public long count() {
+    return count;
+  }
+
+  /**
+   * Format the trace, oldest instruction first.
+   */
+  public String toString() {
+    int kept = (int) Math.min(count, pcs.length);
+    StringBuilder s = new StringBuilder();
+    s.append(String.format("last %d of %d instructions executed:%n", kept, count));
+    for (int i = 0; i < kept; ++i) {
+      int j = Math.floorMod(next - kept + i, pcs.length);
+      String location = functions[j].functionName + ":" + pcs[j];
+      String stack = stackSizes[j] == 0 ? "[]" : "[" + stackSizes[j] + ": " + stackTops[j] + "]";
+      s.append(String.format("  %-16s %-16s %s%n", location, stack, instructions[j]));
+    }
+    return s.toString();
+  }
+
+}
@@ -10,12 +10,18 @@ import java.util.Deque;
 import java.util.ArrayDeque;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
 
 
 public class VarTable {
 
-  // a stack (as a deque) of environments (name -> data type mappings)
+  // a stack (as a deque) of environments (the names added to each,
+  // in order, for undoing their bindings when it is popped)
   private Deque<List<String>> environments = new ArrayDeque<>();
+  // name -> stack of the indexes it is bound to (innermost on top),
+  // so a name is found without searching each environment
+  private Map<String, Deque<Integer>> bindings = new HashMap<>();
   // total number of variables that have been added
   private int totalVars = 0;
 
@@ -30,8 +36,14 @@ public class VarTable {
    */
   public void popEnvironment() {
     if (environments.size() > 0) {
-      totalVars -= environments.peek().size();
-      environments.pop();
+      List<String> names = environments.pop();
+      totalVars -= names.size();
+      for (String name : names) {
+        Deque<Integer> indexes = bindings.get(name);
+        indexes.pop();
+        if (indexes.isEmpty())
+          bindings.remove(name);
+      }
     }
   }
 
@@ -40,22 +52,18 @@ public class VarTable {
   public void add(String varName) {
     if (environments.size() > 0) {
       environments.peek().add(varName);
+      bindings.computeIfAbsent(varName, k -> new ArrayDeque<>()).push(totalVars);
       ++totalVars;
     }
   }
 
   /**
-   * Return the index of name in the 
+   * Return the index of name in the innermost environment it was
+   * added to (or -1 if it wasn't added)
    */
   public int get(String name) {
-    int numRemaining = totalVars;
-    for (var env : environments) {
-      numRemaining -= env.size();
-      int index = env.indexOf(name);
-      if (index >= 0) 
-        return numRemaining + index;
-    }
-    return -1;
+    Deque<Integer> indexes = bindings.get(name);
+    return indexes == null ? -1 : indexes.peek();
   }
   
   /**
@@ -0,0 +1,111 @@
+/**
+ * CPSC 326, Spring 2025
+ * Parser tests.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Unit tests for the ASTParser's expression modes (checked by
+ * running the parsed programs).
+ */
+class ASTParserTests {
+
+  /** For dealing with program output **/
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @BeforeEach
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @AfterEach
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  //----------------------------------------------------------------------
+  // PRECEDENCE PARSING
+
+  /**
+   * Helper to generate a VM from a program parsed by precedence
+   * climbing
+   */
+  VM buildPrecedence(String program) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    parser.exprMode(ASTParser.ExprMode.PRECEDENCE);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    return vm;
+  }
+
+  @Test
+  void precedenceOfArithmeticOperators() {
+    String p = """
+      void main() {
+        println(1 + 2 * 3)
+        println(2 * 3 + 1)
+        println(10 - 4 - 3)
+        println(24 / 4 / 2)
+        println((1 + 2) * 3)
+        println(2.0 * 1.5 - 0.5 / 0.25)
+      }
+    """;
+    buildPrecedence(p).run();
+    assertEquals("7\n7\n3\n3\n9\n1.0\n", output.toString());
+  }
+
+  @Test
+  void precedenceOfLogicalAndComparisonOperators() {
+    String p = """
+      void main() {
+        var x = 3
+        println(x + 1 > 3 and x < 2 or x == 3)
+        println(false and true or true)
+        println(not x < 2 and x > 2)
+        println(not true or true)
+        println(x * 2 != 6 or not false)
+      }
+    """;
+    buildPrecedence(p).run();
+    assertEquals("true\ntrue\ntrue\nfalse\ntrue\n", output.toString());
+  }
+
+  @Test
+  void longSameOperatorChainIsLeftAssociated() {
+    StringBuilder expr = new StringBuilder("100");
+    for (int i = 1; i <= 2000; ++i)
+      expr.append(" - 1");
+    String p = "void main() {println(" + expr + ")}";
+    buildPrecedence(p).run();
+    assertEquals("-1900\n", output.toString());
+  }
+
+}
@@ -11,10 +11,18 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.AfterEach;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
 import java.io.PrintStream;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 
 class CodeGeneratorTests {
@@ -1312,5 +1320,1281 @@ class CodeGeneratorTests {
     assertTrue(e.getMessage().startsWith("VM_ERROR: "));
   }
 
-}
+  //----------------------------------------------------------------------
+  // EXECUTION ENGINES
+
+  @Test
+  void chainAndSwitchEnginesAgree() {
+    String p = """
+      bool is_prime(n: int) {
+        var m = n / 2
+        var v = 2
+        while v <= m {
+          var p = (n / v) * v
+          if p == n {
+            return false
+          }
+          v = v + 1
+        }
+        return true
+      }
+      void main() {
+        for i from 2 to 30 {
+          if is_prime(i) {
+            print(str_val(i) + " ")
+          }
+        }
+      }
+    """;
+    VM vm = build(p);
+    vm.engineMode(VM.Engine.CHAIN);
+    vm.run();
+    String chainOutput = output.toString();
+    output.reset();
+    vm = build(p);
+    vm.engineMode(VM.Engine.SWITCH);
+    vm.run();
+    assertEquals("2 3 5 7 11 13 17 19 23 29 ", chainOutput);
+    assertEquals(chainOutput, output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // TYPE-SPECIALIZED INSTRUCTIONS
+
+  @Test
+  void typedArithmeticInstructions() {
+    String p = """
+      void main() {
+        var x = 7
+        var y = 2.5
+        print(((x / 2) * 3) - 1)
+        print(" ")
+        print((y * 2.0) + 0.5)
+        print(" ")
+        print(x < 8)
+        print(y >= 3.0)
+      }
+    """;
+    VM vm = build(p);
+    String ir = vm.toString();
+    assertTrue(ir.contains("IDIV"));
+    assertTrue(ir.contains("DMUL"));
+    assertTrue(ir.contains("ICMPLT"));
+    assertTrue(ir.contains("DCMPLE"));
+    vm.run();
+    assertEquals("8 5.5 truefalse", output.toString());
+  }
+
+  @Test
+  void typedArithmeticOnNullValue() {
+    String p = """
+      void main() {
+        var x: int = null
+        var y = x + 1
+      }
+    """;
+    VM vm = build(p);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: "));
+  }
+
+  //----------------------------------------------------------------------
+  // LINKING
+
+  @Test
+  void undefinedFunctionReportedBeforeRunning() {
+    VMFrameTemplate m = new VMFrameTemplate("main");
+    m.add(VMInstr.PUSH("blue"));
+    m.add(VMInstr.WRITE());
+    m.add(VMInstr.CALL("f"));
+    VM vm = new VM();
+    vm.add(m);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().startsWith("VM_ERROR: undefined function: f"));
+    assertEquals("", output.toString());
+  }
+
+  @Test
+  void linkedCallsPrintFunctionNames() {
+    String p = """
+      int f(x: int) {return x + 1}
+      void main() {print(f(1))}
+    """;
+    VM vm = build(p);
+    vm.link();
+    assertTrue(vm.toString().contains("CALL(f)"));
+    vm.run();
+    assertEquals("2", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // STRUCT LAYOUT
+
+  @Test
+  void structFieldsAccessedBySlot() {
+    String p = """
+      struct P {a: int, b: string, next: P}
+      void main() {
+        var p = new P(1, "x", new P(2, "y", null))
+        p.next.b = "z"
+        print(p.next.b)
+        print(p.a)
+      }
+    """;
+    VM vm = build(p);
+    String ir = vm.toString();
+    assertTrue(ir.contains("ALLOCS(3)"));
+    assertTrue(ir.contains("GETF(2)"));
+    assertTrue(ir.contains("SETF(1)"));
+    vm.run();
+    assertEquals("z1", output.toString());
+  }
+
+  @Test
+  void objectEqualityIsByReference() {
+    String p = """
+      struct T {x: int}
+      void main() {
+        var a = new int[2]
+        var b = new int[2]
+        var c = a
+        var t1 = new T(1)
+        var t2 = new T(1)
+        print(a == b)
+        print(a == c)
+        print(t1 != t2)
+        print(t1 == null)
+      }
+    """;
+    build(p).run();
+    assertEquals("falsetruetruefalse", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // HEAP
+
+  @Test
+  void temporaryObjectsAreNotRetained() {
+    String p = """
+      struct T {xs: [int]}
+      void main() {
+        var keep = new T(new int[1])
+        for i from 1 to 50000 {
+          var t = new T(new int[1000])
+          t.xs[999] = i
+        }
+        print(keep.xs[0])
+      }
+    """;
+    VM vm = build(p);
+    // sample the live heap while the loop runs (before each 1000th
+    // array allocation): only keep, keep.xs, the last iteration's t
+    // and t.xs (until t is assigned), and the new T are reachable
+    long[] samples = {0, 0}; // {samples taken, most live objects}
+    vm.addListener((frame, instr, stack) -> {
+      if (instr.opcode == OpCode.ALLOCA && vm.arraysAllocated() % 1000 == 0) {
+        samples[0]++;
+        samples[1] = Math.max(samples[1], vm.liveHeap()[0]);
+      }
+    });
+    vm.run();
+    assertEquals("null", output.toString());
+    assertEquals(50001, vm.structsAllocated());
+    assertEquals(50001, vm.arraysAllocated());
+    assertEquals(51, samples[0]);
+    assertTrue(samples[1] >= 2 && samples[1] <= 5);
+  }
+
+  //----------------------------------------------------------------------
+  // OUTPUT BUFFERING
+
+  @Test
+  void bufferedOutputFlushedOnError() {
+    String p = """
+      void main() {
+        println("before")
+        var x = 1 / 0
+        println("after")
+      }
+    """;
+    VM vm = build(p);
+    assertThrows(MyPLException.class, () -> vm.run());
+    assertEquals("before\n", output.toString());
+  }
+
+  @Test
+  void unbufferedOutput() {
+    String p = """
+      void main() {
+        for i from 1 to 3 {
+          print(i)
+        }
+      }
+    """;
+    VM vm = build(p);
+    vm.bufferedOutput(false);
+    vm.run();
+    assertEquals("123", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // INPUT
+
+  @Test
+  void consecutiveReadsFromStandardInput() {
+    String p = """
+      void main() {
+        var x = int_val(readln())
+        var y = int_val(readln())
+        print(x + y)
+      }
+    """;
+    InputStream stdin = System.in;
+    System.setIn(istream("3\n4\n"));
+    try {
+      build(p).run();
+    } finally {
+      System.setIn(stdin);
+    }
+    assertEquals("7", output.toString());
+  }
+
+  @Test
+  void readsFromGivenInput() {
+    String p = """
+      void main() {
+        var line = readln()
+        while line != "end" {
+          print(line)
+          line = readln()
+        }
+      }
+    """;
+    VM vm = build(p);
+    vm.setInput(new StringReader("a\nb\nc\nend\n"));
+    vm.run();
+    assertEquals("abc", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // PEEPHOLE OPTIMIZER
+
+  @Test
+  void removesPushPopAndJumpToNext() {
+    VMFrameTemplate main = new VMFrameTemplate("main");
+    main.add(VMInstr.PUSH(1));
+    main.add(VMInstr.POP());
+    main.add(VMInstr.JMP(3));
+    main.add(VMInstr.PUSH("ok"));
+    main.add(VMInstr.WRITE());
+    VM vm = new VM();
+    vm.add(main);
+    PeepholeOptimizer optimizer = new PeepholeOptimizer();
+    optimizer.optimize(vm);
+    assertEquals(3, optimizer.removedCount());
+    assertEquals(2, main.instructions.size());
+    vm.run();
+    assertEquals("ok", output.toString());
+  }
+
+  @Test
+  void remapsJumpTargets() {
+    VMFrameTemplate main = new VMFrameTemplate("main");
+    main.add(VMInstr.PUSH(3));       // 0
+    main.add(VMInstr.STORE(0));      // 1
+    main.add(VMInstr.PUSH(0));       // 2
+    main.add(VMInstr.LOAD(0));       // 3
+    main.add(VMInstr.ICMPLT());      // 4
+    main.add(VMInstr.JMPF(15));      // 5
+    main.add(VMInstr.LOAD(0));       // 6
+    main.add(VMInstr.WRITE());       // 7
+    main.add(VMInstr.PUSH(1));       // 8
+    main.add(VMInstr.POP());         // 9
+    main.add(VMInstr.LOAD(0));       // 10
+    main.add(VMInstr.PUSH(1));       // 11
+    main.add(VMInstr.ISUB());        // 12
+    main.add(VMInstr.STORE(0));      // 13
+    main.add(VMInstr.JMP(2));        // 14
+    main.add(VMInstr.PUSH("done"));  // 15
+    main.add(VMInstr.WRITE());       // 16
+    VM vm = new VM();
+    vm.add(main);
+    new PeepholeOptimizer().optimize(vm);
+    assertEquals(15, main.instructions.size());
+    vm.run();
+    assertEquals("321done", output.toString());
+  }
+
+  @Test
+  void keepsSequencesWithJumpTargetsInside() {
+    VMFrameTemplate main = new VMFrameTemplate("main");
+    main.add(VMInstr.PUSH(true));    // 0
+    main.add(VMInstr.JMPF(3));       // 1
+    main.add(VMInstr.PUSH("a"));     // 2
+    main.add(VMInstr.POP());         // 3 (jump target)
+    main.add(VMInstr.PUSH("b"));     // 4
+    main.add(VMInstr.WRITE());       // 5
+    VM vm = new VM();
+    vm.add(main);
+    PeepholeOptimizer optimizer = new PeepholeOptimizer();
+    optimizer.optimize(vm);
+    assertEquals(0, optimizer.removedCount());
+    vm.run();
+    assertEquals("b", output.toString());
+  }
+
+  @Test
+  void combinesConsecutiveWrites() {
+    String p = """
+      void main() {
+        print(1)
+        print(" ")
+        print(2.5)
+        println(true)
+      }
+    """;
+    VM vm = build(p);
+    PeepholeOptimizer optimizer = new PeepholeOptimizer();
+    optimizer.optimize(vm);
+    assertTrue(optimizer.removedCount() > 0);
+    vm.run();
+    assertEquals("1 2.5true\n", output.toString());
+  }
+
+  @Test
+  void optimizedProgramOutputUnchanged() {
+    String p = """
+      void show(i: int) {
+        print(i)
+      }
+      void f(n: int) {
+        var r = 0
+        for i from 1 to n {
+          if i > 3 {
+            r = r + i
+          }
+          else {
+            show(i)
+          }
+        }
+        println(" " + str_val(r))
+      }
+      void main() {
+        f(6)
+        var i = 0
+        while i < 3 {
+          print(i)
+          i = i + 1
+        }
+      }
+    """;
+    build(p).run();
+    String expected = output.toString();
+    output.reset();
+    VM vm = build(p);
+    new PeepholeOptimizer().optimize(vm);
+    vm.run();
+    assertEquals(expected, output.toString());
+    assertEquals("123 15\n012", expected);
+  }
+
+  //----------------------------------------------------------------------
+  // INCREMENTAL COMPILATION
+
+  @Test
+  void recompilesOnlyChangedFunction() {
+    String p = """
+      struct S {v: int}
+      void f(s: S) {
+        print(s.v)
+      }
+      void g() {
+        print("g")
+      }
+      void main() {
+        f(new S(1))
+        g()
+      }
+    """;
+    IncrementalCompiler compiler = new IncrementalCompiler();
+    compiler.compile(p).run();
+    assertEquals(4, compiler.parsedCount());
+    assertEquals(3, compiler.checkedCount());
+    compiler.compile(p.replace("print(\"g\")", "print(\"h\")")).run();
+    assertEquals(1, compiler.parsedCount());
+    assertEquals(1, compiler.checkedCount());
+    assertEquals("1g1h", output.toString());
+  }
+
+  @Test
+  void movedFunctionIsNotRecompiled() {
+    String p = """
+      void g() {
+        print("g")
+      }
+      void main() {
+        g()
+      }
+    """;
+    IncrementalCompiler compiler = new IncrementalCompiler();
+    compiler.compile(p);
+    compiler.compile("# a new comment\n\n" + p).run();
+    assertEquals(0, compiler.parsedCount());
+    assertEquals(0, compiler.checkedCount());
+    assertEquals("g", output.toString());
+  }
+
+  @Test
+  void structChangeRechecksFunctions() {
+    String p = """
+      struct S {v: int}
+      void f(s: S) {
+        var x: int = s.v
+      }
+      void main() {
+        f(new S(1))
+      }
+    """;
+    IncrementalCompiler compiler = new IncrementalCompiler();
+    compiler.compile(p);
+    // the (unchanged) function moves down and no longer checks
+    String q = "\n\n" + p.replace("struct S {v: int}", "struct S {v: double}");
+    Exception e1 = assertThrows(MyPLException.class, () -> compiler.compile(q));
+    Exception e2 = assertThrows(MyPLException.class, () -> build(q));
+    assertEquals(e2.getMessage(), e1.getMessage());
+    compiler.compile(q.replace("var x: int", "var x: double").replace("S(1)", "S(1.0)"));
+    assertEquals(2, compiler.checkedCount());
+  }
+
+  @Test
+  void incrementalAndFullCompileGiveSameOutput() {
+    String p = """
+      struct Node {val: int, next: Node}
+      int sum(n: Node) {
+        var total = 0
+        while n != null {
+          total = total + n.val
+          n = n.next
+        }
+        return total
+      }
+      void main() {
+        var n: Node = null
+        for i from 1 to 4 {
+          n = new Node(i, n)
+        }
+        println(sum(n))
+      }
+    """;
+    build(p).run();
+    String expected = output.toString();
+    output.reset();
+    IncrementalCompiler compiler = new IncrementalCompiler();
+    compiler.compile(p);
+    compiler.compile(p).run();
+    assertEquals(expected, output.toString());
+    assertEquals("10\n", expected);
+  }
+
+  //----------------------------------------------------------------------
+  // BYTECODE FILE
+
+  @Test
+  void loadedBytecodeRunsTheSame() throws Exception {
+    String p = """
+      struct P {x: int, y: double}
+      int f(n: int) {
+        return n * 2
+      }
+      void main() {
+        var p = new P(f(3), 2.5)
+        var xs = new bool[2]
+        println(str_val(p.x) + " " + str_val(p.y) + " " + "text")
+        println((xs[0] == null) and true)
+      }
+    """;
+    build(p).run();
+    String expected = output.toString();
+    output.reset();
+    byte[] hash = BytecodeFile.hash(p.getBytes(), "");
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    BytecodeFile.write(build(p), hash, file);
+    VM vm = new VM();
+    assertTrue(BytecodeFile.load(new ByteArrayInputStream(file.toByteArray()), hash, vm));
+    vm.run();
+    assertEquals(expected, output.toString());
+    assertEquals("6 2.5 text\ntrue\n", expected);
+  }
+
+  @Test
+  void outOfDateBytecodeIsNotLoaded() throws Exception {
+    String p = "void main() {println(\"hi\")}";
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    BytecodeFile.write(build(p), BytecodeFile.hash(p.getBytes(), ""), file);
+    byte[] hash = BytecodeFile.hash((p + " ").getBytes(), "");
+    VM vm = new VM();
+    assertTrue(!BytecodeFile.load(new ByteArrayInputStream(file.toByteArray()), hash, vm));
+    assertEquals(0, vm.frameTemplates().size());
+  }
+
+  @Test
+  void bytecodeConstantsArePooled() throws Exception {
+    String once = "print(\"a long repeated string\")\n";
+    String p = "void main() {\n" + once + "}";
+    String q = "void main() {\n" + once.repeat(10) + "}";
+    ByteArrayOutputStream file1 = new ByteArrayOutputStream();
+    ByteArrayOutputStream file2 = new ByteArrayOutputStream();
+    BytecodeFile.write(build(p), BytecodeFile.hash(p.getBytes(), ""), file1);
+    BytecodeFile.write(build(q), BytecodeFile.hash(q.getBytes(), ""), file2);
+    // each extra print only adds its instructions (not the string)
+    int perPrint = (file2.size() - file1.size()) / 9;
+    assertTrue(perPrint < "a long repeated string".length());
+  }
+
+  @Test
+  void malformedBytecodeIsNotLoaded() throws Exception {
+    String p = """
+      int f(n: int) {
+        return n * 2
+      }
+      void main() {
+        println(str_val(f(3)) + " " + "text" + str_val(2.5))
+      }
+    """;
+    byte[] hash = BytecodeFile.hash(p.getBytes(), "");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BytecodeFile.write(build(p), hash, out);
+    byte[] file = out.toByteArray();
+    // every truncation is an error (or isn't a compiled file at all)
+    for (int length = 0; length < file.length; ++length) {
+      VM vm = new VM();
+      InputStream in = new ByteArrayInputStream(Arrays.copyOf(file, length));
+      try {
+        assertTrue(!BytecodeFile.load(in, hash, vm));
+      } catch (IOException e) {
+        // expected
+      }
+      assertEquals(0, vm.frameTemplates().size());
+    }
+    // corrupting any byte after the header loads or is an error, but
+    // never throws anything else
+    int header = 4 + 2 + 2 + hash.length;
+    for (int i = header; i < file.length; ++i) {
+      for (int value : new int[] {0x80, 0xFF, 0x7F}) {
+        byte[] corrupt = file.clone();
+        corrupt[i] = (byte) value;
+        try {
+          BytecodeFile.load(new ByteArrayInputStream(corrupt), hash, new VM());
+        } catch (IOException e) {
+          // expected
+        }
+      }
+    }
+  }
+
+  @Test
+  void bytecodeOperandsMustFitTheirOpcodes() throws Exception {
+    String p = """
+      int f(n: int) {
+        if n > 0 {
+          return n
+        }
+        return 0
+      }
+      void main() {
+        var s = "text"
+        println(f(2))
+      }
+    """;
+    byte[] hash = BytecodeFile.hash(p.getBytes(), "");
+    OpCode[] opcodes = {OpCode.JMPF, OpCode.JMPF, OpCode.STORE, OpCode.CALL, OpCode.RET};
+    Object[] operands = {"text", 1000, "text", "g", 1};
+    for (int i = 0; i < opcodes.length; ++i) {
+      VM vm = build(p);
+      boolean patched = false;
+      for (VMFrameTemplate template : vm.frameTemplates())
+        for (VMInstr instr : template.instructions)
+          if (instr.opcode == opcodes[i] && !patched) {
+            instr.operand = operands[i];
+            patched = true;
+          }
+      assertTrue(patched);
+      ByteArrayOutputStream file = new ByteArrayOutputStream();
+      BytecodeFile.write(vm, hash, file);
+      VM loaded = new VM();
+      assertThrows(IOException.class, () -> BytecodeFile.load(
+          new ByteArrayInputStream(file.toByteArray()), hash, loaded));
+      assertEquals(0, loaded.frameTemplates().size());
+    }
+  }
+
+  @Test
+  void runFallsBackToSourceForCorruptBytecode() throws Exception {
+    String p = """
+      int f(n: int) {
+        return n * 2
+      }
+      void main() {
+        println(f(21))
+      }
+    """;
+    Path dir = Files.createTempDirectory("mypl");
+    Path source = dir.resolve("prog.mypl");
+    Path compiled = dir.resolve("prog.myplc");
+    try {
+      Files.writeString(source, p);
+      MyPL.main(new String[] {"-m", "COMPILE", source.toString()});
+      byte[] file = Files.readAllBytes(compiled);
+      Files.write(compiled, Arrays.copyOf(file, file.length - 3));
+      MyPL.main(new String[] {source.toString()});
+      assertEquals("42\n", output.toString());
+      file[file.length - 5] = (byte) 0xFF; // an out of range pool index
+      Files.write(compiled, file);
+      output.reset();
+      MyPL.main(new String[] {source.toString()});
+      assertEquals("42\n", output.toString());
+    } finally {
+      Files.deleteIfExists(compiled);
+      Files.delete(source);
+      Files.delete(dir);
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // PARALLEL CODE GENERATION
+
+  /**
+   * Helper to generate a program with many small functions.
+   */
+  String manyFunctions(int count) {
+    StringBuilder p = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      p.append("int f" + i + "(x: int) {\n");
+      p.append("  var y: int = x + " + i + "\n");
+      if (i > 0)
+        p.append("  y = f" + (i - 1) + "(y)\n");
+      p.append("  return y\n}\n");
+    }
+    p.append("void main() {\n  println(f" + (count - 1) + "(1))\n}\n");
+    return p.toString();
+  }
+
+  /**
+   * Helper to generate a VM, optionally generating functions in
+   * parallel
+   */
+  VM build(String program, boolean parallel) {
+    Program p = new ASTParser(new Lexer(istream(program))).parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    CodeGenerator generator = new CodeGenerator(vm);
+    generator.parallelMode(parallel);
+    p.accept(generator);
+    return vm;
+  }
+
+  @Test
+  void parallelCodegenGivesSameCode() {
+    String p = "struct S {a: int, b: string}\n" + manyFunctions(300)
+      .replace("void main() {", "void main() {\n  var s = new S(1, \"x\")\n  println(s.b)");
+    String expected = build(p, false).toString();
+    for (int i = 0; i < 5; ++i)
+      assertEquals(expected, build(p, true).toString());
+  }
+
+  @Test
+  void parallelCodegenRunsTheSame() {
+    String p = manyFunctions(100);
+    build(p, true).run();
+    assertEquals("4951\n", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // CONSTANT FOLDING
+
+  /**
+   * Helper to generate a VM from a constant folded program
+   */
+  VM buildFolded(String program, ConstantFolder folder) {
+    Program p = new ASTParser(new Lexer(istream(program))).parse();
+    p.accept(new SemanticChecker());
+    p.accept(folder);
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    return vm;
+  }
+
+  @Test
+  void foldsArithmetic() {
+    String p = """
+      void main() {
+        var x = (60 * 60) * 24
+        var y = (7 / 2) - (1 - 5)
+        var z = (1.5 * 2.0) + (1.0 / 4.0)
+        println(x)
+        println(y)
+        println(z)
+      }
+    """;
+    int unfolded = build(p).frameTemplates().iterator().next().instructions.size();
+    ConstantFolder folder = new ConstantFolder();
+    VM vm = buildFolded(p, folder);
+    assertEquals(8, folder.foldedCount());
+    // each fold removes a push and an operator
+    assertEquals(unfolded - 16, vm.frameTemplates().iterator().next().instructions.size());
+    vm.run();
+    assertEquals("86400\n7\n3.25\n", output.toString());
+  }
+
+  @Test
+  void foldsLikeTheVM() {
+    String p = """
+      void main() {
+        println(2147483647 + 1)
+        println((0 - 7) / 2)
+        println(1.0 * 3.0)
+        println(1.0 / 3.0)
+      }
+    """;
+    build(p).run();
+    String expected = output.toString();
+    output.reset();
+    buildFolded(p, new ConstantFolder()).run();
+    assertEquals(expected, output.toString());
+    assertEquals("-2147483648\n-3\n3.0\n0.3333333333333333\n", expected);
+  }
+
+  @Test
+  void foldsComparisonsAndLogic() {
+    String p = """
+      void main() {
+        println(1 < 2)
+        println(2.5 >= 3.5)
+        println("abc" > "abd")
+        println("a" == "a")
+        println(null == null)
+        println(1 != null)
+        println(not (true and false))
+        println(false or (3 <= 3))
+      }
+    """;
+    ConstantFolder folder = new ConstantFolder();
+    buildFolded(p, folder).run();
+    assertEquals(10, folder.foldedCount());
+    assertEquals("true\nfalse\nfalse\ntrue\ntrue\ntrue\ntrue\ntrue\n", output.toString());
+  }
+
+  @Test
+  void foldsStringConcatenation() {
+    String p = """
+      void main() {
+        var s = "a\\t" + ("b" + "\\n")
+        print(s)
+        print("x\\" + "n")
+      }
+    """;
+    ConstantFolder folder = new ConstantFolder();
+    buildFolded(p, folder).run();
+    assertEquals(2, folder.foldedCount());
+    assertEquals("a\tb\nx\\n", output.toString());
+  }
+
+  @Test
+  void foldsNestedInStatementsAndCalls() {
+    String p = """
+      int f(x: int) {
+        return x * (2 + 3)
+      }
+      void main() {
+        var xs = new int[1 + 2]
+        xs[3 - 1] = f(1 + 1)
+        for i from 0 + 1 to 2 * 1 {
+          if (i == 1) and true {
+            println(xs[4 / 2])
+          }
+        }
+      }
+    """;
+    ConstantFolder folder = new ConstantFolder();
+    buildFolded(p, folder).run();
+    assertEquals(7, folder.foldedCount());
+    assertEquals("10\n", output.toString());
+  }
+
+  @Test
+  void keepsRunTimeErrors() {
+    String[] exprs = {"1 / 0", "1.0 / 0.0", "1 / (2 - 2)", "(2.0 * 0.5) / (1.0 - 1.0)"};
+    int[] folds = {0, 0, 1, 2};
+    for (int i = 0; i < exprs.length; ++i) {
+      String p = "void main() {\n  println(" + exprs[i] + ")\n}";
+      ConstantFolder folder = new ConstantFolder();
+      VM vm = buildFolded(p, folder);
+      assertEquals(folds[i], folder.foldedCount());
+      Exception e = assertThrows(MyPLException.class, () -> vm.run());
+      assertTrue(e.getMessage().contains("division by zero"));
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // SHORT-CIRCUIT EVALUATION
+
+  /**
+   * Helper to generate a VM with short-circuit and/or
+   */
+  VM buildShortCircuit(String program) {
+    Program p = new ASTParser(new Lexer(istream(program))).parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    CodeGenerator generator = new CodeGenerator(vm);
+    generator.shortCircuitMode(true);
+    p.accept(generator);
+    return vm;
+  }
+
+  @Test
+  void shortCircuitGivesSameValues() {
+    String p = """
+      void main() {
+        var bs = new bool[2]
+        bs[0] = true
+        bs[1] = false
+        for i from 0 to 1 {
+          for j from 0 to 1 {
+            println(bs[i] and bs[j])
+            println(bs[i] or bs[j])
+            println((bs[i] and (bs[j] or bs[i])) or (not bs[j]))
+          }
+        }
+      }
+    """;
+    build(p).run();
+    String expected = output.toString();
+    output.reset();
+    buildShortCircuit(p).run();
+    assertEquals(expected, output.toString());
+    output.reset();
+    VM vm = buildShortCircuit(p);
+    new PeepholeOptimizer().optimize(vm);
+    vm.run();
+    assertEquals(expected, output.toString());
+  }
+
+  @Test
+  void shortCircuitSkipsRightOperand() {
+    String p = """
+      bool f(b: bool) {
+        print("f")
+        return b
+      }
+      void main() {
+        if false and f(true) {
+          print("x")
+        }
+        if true or f(false) {
+          print("y")
+        }
+        if true and f(false) {
+          print("z")
+        }
+        if false or f(true) {
+          print("w")
+        }
+      }
+    """;
+    build(p).run();
+    assertEquals("ffyffw", output.toString());
+    output.reset();
+    buildShortCircuit(p).run();
+    assertEquals("yffw", output.toString());
+  }
+
+  @Test
+  void shortCircuitGuardsArrayIndex() {
+    String p = """
+      void main() {
+        var xs = new int[3]
+        xs[0] = 1
+        xs[1] = 2
+        xs[2] = 3
+        var i = 0
+        while (i < size(xs)) and (xs[i] != 0) {
+          i = i + 1
+        }
+        println(i)
+      }
+    """;
+    VM vm = build(p);
+    Exception e = assertThrows(MyPLException.class, () -> vm.run());
+    assertTrue(e.getMessage().contains("out of bounds"));
+    output.reset();
+    buildShortCircuit(p).run();
+    assertEquals("3\n", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // JIT ENGINE
 
+  /**
+   * Helper to run a program with the JIT engine (after the peephole
+   * optimizer) and give its output.
+   */
+  String runJit(VM vm, int threshold) {
+    new PeepholeOptimizer().optimize(vm);
+    vm.engineMode(VM.Engine.JIT);
+    vm.jitThreshold(threshold);
+    vm.run();
+    String result = output.toString();
+    output.reset();
+    return result;
+  }
+
+  @Test
+  void jitCompilesRecursiveFunction() {
+    String p = """
+      int fib(n: int) {
+        if n < 2 {
+          return n
+        }
+        return fib(n - 1) + fib(n - 2)
+      }
+      void main() {
+        println(fib(20))
+      }
+    """;
+    VM vm = build(p);
+    assertEquals("6765\n", runJit(vm, 100));
+    assertEquals(List.of("fib"), vm.compiler().compiled());
+  }
+
+  @Test
+  void jitRunsDeepRecursion() {
+    String p = """
+      double sum(n: int, x: double, s: string) {
+        if n == 0 {
+          return x
+        }
+        var y = x + 0.5
+        var t = s + "."
+        return 1.0 + sum(n - 1, y, t)
+      }
+      int depth(n: int) {
+        if n == 0 {
+          return 0
+        }
+        return 1 + depth(n - 1)
+      }
+      void main() {
+        println(depth(10000))
+        println(sum(10000, 0.0, ""))
+      }
+    """;
+    VM vm = build(p);
+    new PeepholeOptimizer().optimize(vm);
+    vm.run();
+    String expected = output.toString();
+    output.reset();
+    assertEquals("10000\n15000.0\n", expected);
+    vm = build(p);
+    assertEquals(expected, runJit(vm, 100));
+    assertEquals(List.of("depth", "sum"), vm.compiler().compiled());
+  }
+
+  @Test
+  void jitContinuesHotLoopInMain() {
+    String p = """
+      void main() {
+        var n = 2000
+        var composite = new bool[n + 1]
+        for i from 0 to n {
+          composite[i] = false
+        }
+        var count = 0
+        for i from 2 to n {
+          if not composite[i] {
+            count = count + 1
+            var j = i * i
+            while j <= n {
+              composite[j] = true
+              j = j + i
+            }
+          }
+        }
+        println(count)
+      }
+    """;
+    VM vm = build(p);
+    assertEquals("303\n", runJit(vm, 50));
+    assertEquals(List.of("main"), vm.compiler().compiled());
+  }
+
+  @Test
+  void jitAndInterpreterAgree() {
+    String p = """
+      struct Node {
+        val: double,
+        name: string,
+        next: Node
+      }
+      Node push(head: Node, v: double, name: string) {
+        return new Node(v, name, head)
+      }
+      string describe(n: Node) {
+        var s = ""
+        while n != null {
+          s = s + n.name + "=" + str_val(n.val) + " "
+          n = n.next
+        }
+        return s
+      }
+      bool even(x: int) {
+        return ((x / 2) * 2) == x
+      }
+      void main() {
+        var head: Node = null
+        var words = new string[3]
+        words[0] = "a"
+        words[1] = "bc"
+        words[2] = "def"
+        for i from 0 to 2 {
+          head = push(head, dbl_val(size(words[i])) / 2.0, words[i])
+        }
+        println(describe(head))
+        var total = 0
+        var x: int = null
+        for i from 1 to 10 {
+          if even(i) and (i < 8) or (x == null) {
+            total = total + i
+          }
+        }
+        println(total)
+        println(get(1, words[2]) + str_val(int_val("41") + 1))
+        println(("abc" < "abd") and not (1.5 >= 2.5))
+      }
+    """;
+    build(p).run();
+    String expected = output.toString();
+    output.reset();
+    VM vm = build(p);
+    assertEquals(expected, runJit(vm, 0));
+    assertEquals(4, vm.compiler().compiled().size());
+    assertEquals(0, vm.compiler().rejected().size());
+  }
+
+  @Test
+  void jitReportsSameErrors() {
+    String[] programs = {
+      "int f(x: int) {\n  return 10 / x\n}\nvoid main() {\n  println(f(0))\n}",
+      "int f(x: int) {\n  return x + 1\n}\nvoid main() {\n  println(f(null))\n}",
+      "int f(xs: [int], i: int) {\n  return xs[i]\n}\nvoid main() {\n  println(f(new int[2], 2))\n}",
+      "string f(s: string) {\n  return get(5, s)\n}\nvoid main() {\n  println(f(\"ab\"))\n}",
+    };
+    for (String p : programs) {
+      Exception expected = assertThrows(MyPLException.class, () -> build(p).run());
+      VM vm = build(p);
+      Exception e = assertThrows(MyPLException.class, () -> runJit(vm, 0));
+      assertEquals(expected.getMessage(), e.getMessage());
+      assertEquals(List.of("f"), vm.compiler().compiled());
+    }
+  }
+
+  @Test
+  void jitFallsBackToInterpreter() {
+    // a loop that leaves a value on the stack each iteration (so its
+    // start is reached with different stack sizes)
+    VMFrameTemplate main = new VMFrameTemplate("main");
+    main.add(VMInstr.PUSH(0));
+    main.add(VMInstr.STORE(0));
+    main.add(VMInstr.LOAD(0));
+    main.add(VMInstr.PUSH(3));
+    main.add(VMInstr.ICMPLT());
+    main.add(VMInstr.JMPF(12));
+    main.add(VMInstr.PUSH(7));
+    main.add(VMInstr.LOAD(0));
+    main.add(VMInstr.PUSH(1));
+    main.add(VMInstr.IADD());
+    main.add(VMInstr.STORE(0));
+    main.add(VMInstr.JMP(2));
+    main.add(VMInstr.WRITE());
+    main.add(VMInstr.WRITE());
+    main.add(VMInstr.WRITE());
+    main.add(VMInstr.PUSH(VM.NULL));
+    main.add(VMInstr.RET());
+    VM vm = new VM();
+    vm.add(main);
+    assertEquals("777", runJit(vm, 0));
+    assertEquals(0, vm.compiler().compiled().size());
+    assertTrue(vm.compiler().rejected().get("main").contains("stack sizes"));
+  }
+
+  //----------------------------------------------------------------------
+  // JAR COMPILER
+
+  /**
+   * Helper to compile a program to JVM classes.
+   */
+  JarCompiler compileJar(String program, boolean shortCircuit) {
+    Lexer lexer = new Lexer(istream(program));
+    ASTParser parser = new ASTParser(lexer);
+    Program p = parser.parse();
+    p.accept(new SemanticChecker());
+    JarCompiler compiler = new JarCompiler();
+    compiler.shortCircuitMode(shortCircuit);
+    p.accept(compiler);
+    return compiler;
+  }
+
+  /**
+   * Helper to run a program's compiled classes (loaded from memory)
+   * with the given input and give its output.
+   */
+  String runJar(JarCompiler compiler, String input) throws Exception {
+    Map<String, byte[]> classes = compiler.classes();
+    ClassLoader loader = new ClassLoader(getClass().getClassLoader()) {
+      @Override
+      protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = classes.get(name);
+        if (bytes == null)
+          throw new ClassNotFoundException(name);
+        return defineClass(name, bytes, 0, bytes.length);
+      }
+    };
+    InputStream stdin = System.in;
+    System.setIn(istream(input));
+    try {
+      JarRuntime.run(loader.loadClass(JarCompiler.PROGRAM_CLASS));
+    } finally {
+      System.setIn(stdin);
+    }
+    String result = output.toString();
+    output.reset();
+    return result;
+  }
+
+  @Test
+  void jarAndInterpreterAgree() throws Exception {
+    String p = """
+      struct Node {
+        val: double,
+        name: string,
+        next: Node
+      }
+      Node push(head: Node, v: double, name: string) {
+        return new Node(v, name, head)
+      }
+      string describe(n: Node) {
+        var s = ""
+        while n != null {
+          s = s + n.name + "=" + str_val(n.val) + " "
+          n = n.next
+        }
+        return s
+      }
+      bool even(x: int) {
+        return ((x / 2) * 2) == x
+      }
+      void main() {
+        var head: Node = null
+        var words = new string[3]
+        words[0] = "a"
+        words[1] = "bc"
+        words[2] = readln()
+        for i from 0 to 2 {
+          head = push(head, dbl_val(size(words[i])) / 2.0, words[i])
+        }
+        println(describe(head))
+        head.next.val = head.next.val * 4.0
+        println(head.next.val)
+        var total = 0
+        var x: int = null
+        for i from 1 to 10 {
+          if even(i) and (i < 8) or (x == null) {
+            total = total + i
+          }
+        }
+        println(total)
+        var y = 3
+        y = x
+        println(y == null)
+        println(get(1, words[2]) + str_val(int_val("41") + 1))
+        println(("abc" < "abd") and not (1.5 >= 2.5))
+      }
+    """;
+    VM vm = build(p);
+    vm.setInput(new StringReader("def\n"));
+    vm.run();
+    String expected = output.toString();
+    output.reset();
+    assertEquals(expected, runJar(compileJar(p, false), "def\n"));
+  }
+
+  @Test
+  void jarShortCircuitAndOr() throws Exception {
+    String p = """
+      bool t(s: string) {
+        print(s)
+        return true
+      }
+      void main() {
+        var b: bool = null
+        println(false and t("no"))
+        println(true or t("no"))
+        println(true and t("yes"))
+        println(false or b)
+      }
+    """;
+    // (a null right operand gives null, the same as the VM code)
+    assertEquals("false\ntrue\nyestrue\nnull\n", runJar(compileJar(p, true), ""));
+  }
+
+  @Test
+  void jarReportsErrorsWithPositions() throws Exception {
+    String[] programs = {
+      "int f(x: int) {\n  return 10 / x\n}\nvoid main() {\n  println(f(0))\n}",
+      "int f(x: int) {\n  return x + 1\n}\nvoid main() {\n  println(f(null))\n}",
+      "int f(xs: [int], i: int) {\n  return xs[i]\n}\nvoid main() {\n  println(f(new int[2], 2))\n}",
+      "string f(s: string) {\n  return get(5, s)\n}\nvoid main() {\n  println(f(\"ab\"))\n}",
+    };
+    String[] errors = {
+      "VM_ERROR: division by zero error in f at [2,13]",
+      "VM_ERROR: null value error in f at [2,12]",
+      "VM_ERROR: array index out of bounds: 2 in f at [2,10]",
+      "VM_ERROR: string index out of bounds: 5 in f at [2,10]",
+    };
+    for (int i = 0; i < programs.length; ++i) {
+      JarCompiler compiler = compileJar(programs[i], false);
+      Exception e = assertThrows(MyPLException.class, () -> runJar(compiler, ""));
+      assertEquals(errors[i], e.getMessage());
+    }
+  }
+
+  @Test
+  void jarRunsWithoutInterpreter() throws Exception {
+    String p = """
+      int fib(n: int) {
+        if n < 2 {
+          return n
+        }
+        return fib(n - 1) + fib(n - 2)
+      }
+      void main() {
+        println("fib(" + readln() + ") = " + str_val(fib(20)))
+      }
+    """;
+    Path jar = Files.createTempFile("mypl", ".jar");
+    try {
+      try (OutputStream out = Files.newOutputStream(jar)) {
+        compileJar(p, false).write(out);
+      }
+      String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+      Process process = new ProcessBuilder(java, "-jar", jar.toString()).start();
+      process.getOutputStream().write("20\n".getBytes());
+      process.getOutputStream().close();
+      String result = new String(process.getInputStream().readAllBytes());
+      assertEquals(0, process.waitFor());
+      assertEquals("fib(20) = 6765\n", result);
+    } finally {
+      Files.delete(jar);
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * CPSC 326, Spring 2025
+ * Lexer tests.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.nio.CharBuffer;
+
+/**
+ * Unit tests for the Lexer's input handling and token storage.
+ */
+class LexerTests {
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  //----------------------------------------------------------------------
+  // LEXER INPUT
+
+  @Test
+  void lexesSameTokensFromStreamAndBuffer() {
+    String p = """
+      # a comment
+      void main() {
+        var s = "a string"
+        var x: double = 10.25 + 3
+        if (x >= 0) and (s != "") {
+          println(s)
+        }
+      }
+    """;
+    Lexer fromStream = new Lexer(istream(p));
+    Lexer fromBuffer = new Lexer(CharBuffer.wrap(p.toCharArray()));
+    Token t1 = null;
+    do {
+      t1 = fromStream.nextToken();
+      Token t2 = fromBuffer.nextToken();
+      assertEquals(t1.toString(), t2.toString());
+    } while (t1.tokenType != TokenType.EOS);
+  }
+
+  @Test
+  void decodesStreamAsUtf8() {
+    String p = "\"h\u00e9llo \u03bb\"";
+    Lexer lexer = new Lexer(istream(p));
+    Token t = lexer.nextToken();
+    assertEquals(TokenType.STRING_VAL, t.tokenType);
+    assertEquals("h\u00e9llo \u03bb", t.lexeme);
+  }
+
+  //----------------------------------------------------------------------
+  // LEXEME POOL AND PACKED TOKENS
+
+  @Test
+  void internsIdentifierLexemes() {
+    Lexer lexer = new Lexer(istream("main x main x"));
+    Token t1 = lexer.nextToken();
+    Token t2 = lexer.nextToken();
+    Token t3 = lexer.nextToken();
+    Token t4 = lexer.nextToken();
+    assertTrue(t1.lexeme == t3.lexeme);
+    assertTrue(t2.lexeme == t4.lexeme);
+    assertEquals("main", t1.lexeme);
+    assertTrue(t1.lexeme == lexer.pool().intern("main"));
+    assertEquals(2, lexer.pool().size());
+  }
+
+  @Test
+  void packedTokensMatchTokenStream() {
+    String p = """
+      # a comment
+      struct S {v: int}
+      void main() {
+        var s = "a string"
+        var x: double = 10.25 + 3
+        if (x >= 0) and (s != "") {
+          println(s)
+        }
+      }
+    """;
+    PackedTokens tokens = new Lexer(istream(p)).tokenize();
+    Lexer lexer = new Lexer(istream(p));
+    for (int i = 0; i < tokens.size(); ++i)
+      assertEquals(lexer.nextToken().toString(), tokens.token(i).toString());
+    assertEquals(TokenType.EOS, tokens.type(tokens.size() - 1));
+  }
+
+}
@@ -0,0 +1,204 @@
+/**
+ * CPSC 326, Spring 2025
+ * Semantic checker tests.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Unit tests for the SemanticChecker's checking modes and scopes.
+ */
+class SemanticCheckerTests {
+
+  /** For dealing with program output **/
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @BeforeEach
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @AfterEach
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to check, compile, and return a VM to run a program.
+   */
+  VM build(String program) {
+    Program p = new ASTParser(new Lexer(istream(program))).parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    return vm;
+  }
+
+  //----------------------------------------------------------------------
+  // PARALLEL CHECKING
+
+  /**
+   * Helper to generate a program with many small functions, where the
+   * bodies of the given functions have a type error.
+   */
+  String manyFunctions(int count, int... badFunctions) {
+    StringBuilder p = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      p.append("int f" + i + "(x: int) {\n");
+      p.append("  var y: int = x + " + i + "\n");
+      for (int bad : badFunctions)
+        if (bad == i)
+          p.append("  var z: string = y\n");
+      if (i > 0)
+        p.append("  y = f" + (i - 1) + "(y)\n");
+      p.append("  return y\n}\n");
+    }
+    p.append("void main() {\n  println(f" + (count - 1) + "(1))\n}\n");
+    return p.toString();
+  }
+
+  /**
+   * Helper to check a program and return the error message (or null).
+   */
+  String checkError(String program, boolean parallel) {
+    Program p = new ASTParser(new Lexer(istream(program))).parse();
+    SemanticChecker checker = new SemanticChecker();
+    checker.parallelMode(parallel);
+    try {
+      p.accept(checker);
+    } catch (MyPLException e) {
+      return e.getMessage();
+    }
+    return null;
+  }
+
+  @Test
+  void parallelCheckPassesValidProgram() {
+    String p = manyFunctions(200);
+    assertEquals(null, checkError(p, true));
+    Program ast = new ASTParser(new Lexer(istream(p))).parse();
+    SemanticChecker checker = new SemanticChecker();
+    checker.parallelMode(true);
+    ast.accept(checker);
+    VM vm = new VM();
+    ast.accept(new CodeGenerator(vm));
+    vm.run();
+    assertEquals("19901\n", output.toString());
+  }
+
+  @Test
+  void parallelCheckReportsFirstErrorInSourceOrder() {
+    String p = manyFunctions(200, 150, 37, 80);
+    String expected = checkError(p, false);
+    assertTrue(expected.startsWith("STATIC_ERROR: [187,")); // in f37
+    for (int i = 0; i < 10; ++i)
+      assertEquals(expected, checkError(p, true));
+  }
+
+  @Test
+  void parallelCheckRejectsCallBeforeDefinition() {
+    String p = """
+      int f(x: int) {
+        return g(x)
+      }
+      int g(x: int) {
+        return x
+      }
+      void main() {
+        f(1)
+      }
+    """;
+    String expected = checkError(p, false);
+    assertTrue(expected.contains("Function not defined"));
+    assertEquals(expected, checkError(p, true));
+  }
+
+  @Test
+  void returnIsCheckedAgainstItsOwnFunction() {
+    String p = """
+      void f() {
+        return null
+      }
+      int g(x: int) {
+        return x + 1
+      }
+      void main() {
+        f()
+        println(g(1))
+      }
+    """;
+    build(p).run();
+    assertEquals("2\n", output.toString());
+  }
+
+  //----------------------------------------------------------------------
+  // SCOPES
+
+  @Test
+  void shadowedVariablesAreRestored() {
+    String p = """
+      void main() {
+        var x = 1
+        var y = "a"
+        if true {
+          var x = "b"
+          for y from 2 to 2 {
+            var x = 3.5
+            println(x)
+            println(y)
+          }
+          println(x)
+          println(y)
+        }
+        println(x)
+        println(y)
+      }
+    """;
+    build(p).run();
+    assertEquals("3.5\n2\nb\na\n1\na\n", output.toString());
+  }
+
+  @Test
+  void deeplyNestedBlocks() {
+    int depth = 300;
+    StringBuilder p = new StringBuilder("void main() {\n  var x = 0\n");
+    for (int i = 0; i < depth; ++i) {
+      p.append("if true {\n");
+      for (int j = 0; j < 5; ++j)
+        p.append("var v" + j + " = x\n");
+      p.append("var x = v4 + 1\n");
+    }
+    p.append("println(x)\n");
+    for (int i = 0; i < depth; ++i)
+      p.append("}\n");
+    p.append("println(x)\n}\n");
+    build(p.toString()).run();
+    assertEquals(depth + "\n0\n", output.toString());
+  }
+
+}
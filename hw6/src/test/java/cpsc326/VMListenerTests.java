@@ -0,0 +1,234 @@
+/**
+ * CPSC 326, Spring 2025
+ * VM listener tests.
+ */
+
+package cpsc326;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * Unit tests for the VM's listeners: the profiler and the tracer.
+ */
+class VMListenerTests {
+
+  /** For dealing with program output **/
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @BeforeEach
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @AfterEach
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  /**
+   * Helper to build an input string.
+   */
+  InputStream istream(String str) {
+    try {
+      return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Helper to check, compile, and return a VM to run a program.
+   */
+  VM build(String program) {
+    Program p = new ASTParser(new Lexer(istream(program))).parse();
+    p.accept(new SemanticChecker());
+    VM vm = new VM();
+    p.accept(new CodeGenerator(vm));
+    return vm;
+  }
+
+  //----------------------------------------------------------------------
+  // PROFILER
+
+  @Test
+  void profilesOpcodesAndCalls() {
+    String p = """
+      int fib(n: int) {
+        if n < 2 {
+          return n
+        }
+        return fib(n - 1) + fib(n - 2)
+      }
+      void main() {
+        println(fib(10))
+      }
+    """;
+    VM vm = build(p);
+    vm.profileMode(true);
+    vm.run();
+    assertEquals("55\n", output.toString());
+    VMProfiler profiler = vm.profiler();
+    assertEquals(177, profiler.calls("fib"));
+    assertEquals(1, profiler.calls("main"));
+    assertEquals(177, profiler.count(OpCode.CALL));
+    assertEquals(178, profiler.count(OpCode.RET));
+    assertEquals(2, profiler.count(OpCode.WRITE));
+    String summary = profiler.toString();
+    assertTrue(summary.contains("fib"));
+    assertTrue(summary.contains("hottest instructions"));
+  }
+
+  @Test
+  void profilesUntilAnError() {
+    String p = """
+      int f(x: int) {
+        return x / 0
+      }
+      void main() {
+        println(f(1))
+      }
+    """;
+    VM vm = build(p);
+    vm.profileMode(true);
+    assertThrows(MyPLException.class, () -> vm.run());
+    assertEquals(1, vm.profiler().calls("f"));
+    assertEquals(1, vm.profiler().count(OpCode.IDIV));
+    assertTrue(vm.profiler().toString().contains("main"));
+  }
+
+  //----------------------------------------------------------------------
+  // LISTENERS AND TRACING
+
+  @Test
+  void listenerSeesEachInstruction() {
+    String p = """
+      void main() {
+        var x = 0
+        for i from 1 to 3 {
+          x = x + i
+        }
+        println(x)
+      }
+    """;
+    build(p).run();
+    String expected = output.toString();
+    output.reset();
+    VM vm = build(p);
+    List<OpCode> executed = new ArrayList<>();
+    vm.addListener((frame, instr, stack) -> executed.add(instr.opcode));
+    vm.run();
+    assertEquals(expected, output.toString());
+    assertEquals(OpCode.RET, executed.get(executed.size() - 1));
+    assertEquals(2, executed.stream().filter(op -> op == OpCode.WRITE).count());
+    assertEquals(3, executed.stream().filter(op -> op == OpCode.JMP).count());
+  }
+
+  @Test
+  void tracerPrintsOnlyOnError() {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    VM vm = build("void main() {\n  println(1 + 2)\n}");
+    vm.addListener(new VMTracer(4, new PrintStream(trace)));
+    vm.run();
+    assertEquals("3\n", output.toString());
+    assertEquals("", trace.toString());
+  }
+
+  @Test
+  void tracerKeepsLastInstructions() {
+    String p = """
+      int f(x: int) {
+        return x / 0
+      }
+      void main() {
+        var y = 3
+        println(f(y))
+      }
+    """;
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    VM vm = build(p);
+    VMTracer tracer = new VMTracer(3, new PrintStream(trace));
+    vm.addListener(tracer);
+    assertThrows(MyPLException.class, () -> vm.run());
+    String[] lines = trace.toString().split("\n");
+    assertEquals(4, lines.length);
+    assertEquals("last 3 of " + tracer.count() + " instructions executed:", lines[0]);
+    assertTrue(lines[2].contains("PUSH(0)"));
+    assertTrue(lines[3].contains("f:"));
+    assertTrue(lines[3].contains("[2: 0]"));
+    assertTrue(lines[3].contains("IDIV()"));
+  }
+
+  @Test
+  void tracerRejectsEmptyRing() {
+    assertThrows(IllegalArgumentException.class, () -> new VMTracer(0));
+  }
+
+  @Test
+  void tracerRejectsNegativeRingSize() {
+    assertThrows(IllegalArgumentException.class, () -> new VMTracer(-1));
+  }
+
+  /**
+   * Helper to run mypl (in a new JVM) on a one line program with the
+   * given options.
+   *
+   * @return the exit status and the printed output (and errors)
+   */
+  Object[] runMyPL(String... options) throws Exception {
+    Path file = Files.createTempFile("mypl", ".mypl");
+    try {
+      Files.writeString(file, "void main() {println(1)}");
+      List<String> command = new ArrayList<>(List.of(
+          Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+          "-cp", System.getProperty("java.class.path"), "cpsc326.MyPL"));
+      command.addAll(List.of(options));
+      command.add(file.toString());
+      Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      String result = new String(process.getInputStream().readAllBytes());
+      return new Object[] {process.waitFor(), result};
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  void traceOptionRejectsSizesBelowOne() throws Exception {
+    for (String size : new String[] {"0", "-1"}) {
+      Object[] result = runMyPL("--trace", size);
+      assertEquals(1, result[0]);
+      assertTrue(((String) result[1]).contains("--trace"));
+      assertTrue(!((String) result[1]).contains("Exception"));
+    }
+  }
+
+  @Test
+  void listenersRejectOtherEngines() throws Exception {
+    String[][] options = {{"-e", "JIT", "--trace", "10"}, {"-e", "JIT", "-m", "PROFILE"},
+                          {"-e", "CHAIN", "-m", "DEBUG"}};
+    for (String[] option : options) {
+      Object[] result = runMyPL(option);
+      assertEquals(1, result[0]);
+      assertTrue(((String) result[1]).contains("engine can't be used with"));
+    }
+    Object[] result = runMyPL("-e", "SWITCH", "--trace", "10");
+    assertEquals(0, result[0]);
+    assertEquals("1\n", result[1]);
+  }
+}